@@ -0,0 +1,281 @@
+package com.icerealm.server;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures a running server under the load of persistent connections, to compare the
+ * execution modes of a plugin, like &lt;thread&gt;N&lt;/thread&gt; and
+ * &lt;executor&gt;virtual&lt;/executor&gt;:
+ * <pre>
+ * java com.icerealm.server.LoadBenchmark host port path idle clients requests
+ * </pre>
+ * The idle connections send one request each and stay open without sending another,
+ * like the browsers do between two pages, their responses are not read. On a pool of
+ * platform threads each of them holds a worker until the keep-alive timeout. The clients
+ * then send the requests on their own persistent connections, a new connection is
+ * opened when the server closes one.
+ * The path must answer with a Content-Length. The keepalivetimeout of the plugin must
+ * be longer than the run, or the server closes the idle connections before the end.
+ * @author punisher
+ *
+ */
+public class LoadBenchmark {
+
+	/**
+	 * the time a response can take before the request is counted as failed, in ms
+	 */
+	private static final int READ_TIMEOUT = 30000;
+
+	/**
+	 * the host of the server
+	 */
+	private String _host = null;
+
+	/**
+	 * the port of the server
+	 */
+	private int _port = 0;
+
+	/**
+	 * the request sent, a GET of the path
+	 */
+	private byte[] _request = null;
+
+	/**
+	 * the number of requests that failed
+	 */
+	private AtomicInteger _failed = new AtomicInteger();
+
+	/**
+	 * default constructor
+	 * @param host the host of the server
+	 * @param port the port of the server
+	 * @param path the path requested
+	 */
+	public LoadBenchmark(String host, int port, String path) {
+		_host = host;
+		_port = port;
+		_request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n").getBytes();
+	}
+
+	/**
+	 * run the benchmark
+	 * @param args the host, the port, the path, the number of idle connections, of clients and of requests
+	 * @throws Exception if the idle connections cannot be opened
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 6) {
+			System.out.println("usage: LoadBenchmark <host> <port> <path> <idle connections> <clients> <requests>");
+			System.exit(1);
+		}
+
+		LoadBenchmark benchmark = new LoadBenchmark(args[0], Integer.parseInt(args[1]), args[2]);
+		int idle = Integer.parseInt(args[3]);
+		int clients = Integer.parseInt(args[4]);
+		int requests = Integer.parseInt(args[5]);
+
+		long started = System.currentTimeMillis();
+		List<Socket> idleConnections = benchmark.openIdle(idle);
+		System.out.println(idleConnections.size() + " idle connections opened in " + (System.currentTimeMillis() - started) + " ms");
+
+		benchmark.run(clients, requests);
+
+		for (Socket socket : idleConnections) {
+			socket.close();
+		}
+	}
+
+	/**
+	 * open the idle connections, each one sends a request and waits
+	 * @param count the number of connections
+	 * @return the connections
+	 * @throws IOException if a connection cannot be opened
+	 */
+	public List<Socket> openIdle(int count) throws IOException {
+		List<Socket> sockets = new ArrayList<Socket>();
+		for (int i = 0; i < count; i++) {
+			Socket socket = connect();
+			OutputStream out = socket.getOutputStream();
+			out.write(_request);
+			out.flush();
+			sockets.add(socket);
+		}
+		return sockets;
+	}
+
+	/**
+	 * send the requests from the clients and print the throughput and the latencies
+	 * @param clients the number of clients sending at once
+	 * @param requests the number of requests, shared by the clients
+	 * @throws InterruptedException if the benchmark is interrupted
+	 */
+	public void run(int clients, int requests) throws InterruptedException {
+		final long[] latencies = new long[requests];
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(clients);
+
+		long started = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			Thread client = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sendAll(next, latencies);
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			}, "LoadBenchmark-client-" + i);
+			client.start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - started;
+
+		Arrays.sort(latencies);
+		System.out.println(requests + " requests from " + clients + " clients in " + (elapsed / 1000000) + " ms, " +
+						   (long)(requests * 1e9 / elapsed) + " requests/s, " + _failed.get() + " failed");
+		System.out.println("latency ms: p50 " + millis(latencies, 0.50) + ", p99 " + millis(latencies, 0.99) +
+						   ", max " + millis(latencies, 1.0));
+	}
+
+	/**
+	 * send requests on a persistent connection until all of them are sent
+	 * @param next the index of the next request
+	 * @param latencies the latency of each request, in ns
+	 */
+	private void sendAll(AtomicInteger next, long[] latencies) {
+		Socket socket = null;
+		InputStream in = null;
+		int i = 0;
+		while ((i = next.getAndIncrement()) < latencies.length) {
+			long started = System.nanoTime();
+			try {
+				if (socket == null) {
+					socket = connect();
+					in = new BufferedInputStream(socket.getInputStream());
+				}
+				if (!send(socket, in)) {
+					socket.close();
+					socket = null;
+				}
+			}
+			catch (IOException ex) {
+				_failed.incrementAndGet();
+				close(socket);
+				socket = null;
+			}
+			latencies[i] = System.nanoTime() - started;
+		}
+		close(socket);
+	}
+
+	/**
+	 * open a connection to the server
+	 * @return the connection
+	 * @throws IOException if the server cannot be reached
+	 */
+	private Socket connect() throws IOException {
+		Socket socket = new Socket(_host, _port);
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(READ_TIMEOUT);
+		return socket;
+	}
+
+	/**
+	 * send the request and read the response
+	 * @param socket the connection
+	 * @param in the buffered stream of the connection
+	 * @return false if the server closes the connection after the response
+	 * @throws IOException if the response is not complete
+	 */
+	private boolean send(Socket socket, InputStream in) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(_request);
+		out.flush();
+
+		long length = -1;
+		boolean keepAlive = true;
+		String line = readLine(in);
+		if (!line.startsWith("HTTP/1.1 200")) {
+			throw new IOException("Unexpected response: " + line);
+		}
+		while ((line = readLine(in)).length() > 0) {
+			String lower = line.toLowerCase();
+			if (lower.startsWith("content-length:")) {
+				length = Long.parseLong(line.substring(15).trim());
+			}
+			else if (lower.startsWith("connection:") && lower.contains("close")) {
+				keepAlive = false;
+			}
+		}
+		if (length < 0) {
+			throw new IOException("The response has no Content-Length");
+		}
+
+		for (long skipped = 0; skipped < length; skipped++) {
+			if (in.read() < 0) {
+				throw new IOException("Connection closed in the body");
+			}
+		}
+		return keepAlive;
+	}
+
+	/**
+	 * read a line of the response header
+	 * @param in the stream
+	 * @return the line without its line end
+	 * @throws IOException if the connection is closed
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c = 0;
+		while ((c = in.read()) != '\n') {
+			if (c < 0) {
+				throw new IOException("Connection closed in the header");
+			}
+			if (c != '\r') {
+				line.append((char)c);
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * the latency at a percentile
+	 * @param sorted the latencies, sorted, in ns
+	 * @param percentile the percentile, between 0 and 1
+	 * @return the latency in ms
+	 */
+	private static String millis(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return "-";
+		}
+		int index = Math.min(sorted.length - 1, (int)Math.ceil(percentile * sorted.length) - 1);
+		return String.format("%.1f", sorted[Math.max(0, index)] / 1e6);
+	}
+
+	/**
+	 * close a connection, quietly
+	 * @param socket the connection, can be null
+	 */
+	private static void close(Socket socket) {
+		if (socket != null) {
+			try {
+				socket.close();
+			}
+			catch (IOException ex) {
+				// the connection is gone already
+			}
+		}
+	}
+}
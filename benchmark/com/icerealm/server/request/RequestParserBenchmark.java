@@ -0,0 +1,186 @@
+package com.icerealm.server.request;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Compares the deprecated RequestEntireContent(InputStreamReader) with the
+ * HTTPRequestParser on the same requests, a browser GET and a small form POST:
+ * <pre>
+ * java com.icerealm.server.request.RequestParserBenchmark [requests] [rounds]
+ * </pre>
+ * The parser reads all the requests pipelined on one stream, like a persistent
+ * connection. The reader of the deprecated constructor reads ahead, it is given each
+ * request in its own stream, like the server did with one request per connection.
+ * Each request has its method, URI, Host and form fields read, as a handler does.
+ * The time and the bytes allocated per request are those of the last round, the
+ * allocations are measured on the JVMs that count them per thread.
+ * @author punisher
+ *
+ */
+public class RequestParserBenchmark {
+
+	/**
+	 * the requests, sent in turn
+	 */
+	private static final String[] REQUESTS = new String[] {
+		"GET /app/products/list.html?page=2&sort=price HTTP/1.1\r\n" +
+		"Host: www.example.com\r\n" +
+		"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n" +
+		"Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+		"Accept-Language: en-US,en;q=0.5\r\n" +
+		"Accept-Encoding: gzip, deflate, br\r\n" +
+		"Referer: http://www.example.com/app/index.html\r\n" +
+		"Cookie: session=4f2a9c1e7b3d5a60; theme=dark\r\n" +
+		"Connection: keep-alive\r\n\r\n",
+
+		"POST /app/cart/add HTTP/1.1\r\n" +
+		"Host: www.example.com\r\n" +
+		"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n" +
+		"Content-Type: application/x-www-form-urlencoded\r\n" +
+		"Content-Length: 38\r\n" +
+		"Connection: keep-alive\r\n\r\n" +
+		"product=1042&quantity=3&color=blue&x=1"
+	};
+
+	/**
+	 * the number of requests parsed by round, by default
+	 */
+	private static final int DEFAULT_REQUESTS = 100000;
+
+	/**
+	 * the number of rounds, the first ones warm the JVM up
+	 */
+	private static final int DEFAULT_ROUNDS = 5;
+
+	/**
+	 * the bytes of each request
+	 */
+	private byte[][] _requests = null;
+
+	/**
+	 * all the requests, pipelined
+	 */
+	private byte[] _pipelined = null;
+
+	/**
+	 * a value read from every request, so the work is not removed by the JIT
+	 */
+	private long _sink = 0;
+
+	/**
+	 * default constructor
+	 * @param count the number of requests parsed by round
+	 */
+	public RequestParserBenchmark(int count) {
+		_requests = new byte[REQUESTS.length][];
+		for (int i = 0; i < REQUESTS.length; i++) {
+			_requests[i] = REQUESTS[i].getBytes();
+		}
+
+		ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+		for (int i = 0; i < count; i++) {
+			byte[] request = _requests[i % _requests.length];
+			pipelined.write(request, 0, request.length);
+		}
+		_pipelined = pipelined.toByteArray();
+	}
+
+	/**
+	 * run the benchmark
+	 * @param args the number of requests by round and the number of rounds
+	 * @throws IOException if a request cannot be parsed
+	 */
+	public static void main(String[] args) throws IOException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_REQUESTS;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+		RequestParserBenchmark benchmark = new RequestParserBenchmark(count);
+
+		for (int round = 1; round <= rounds; round++) {
+			long[] reader = benchmark.measure(false, count);
+			long[] parser = benchmark.measure(true, count);
+			System.out.println("round " + round + ": " +
+							   "reader " + reader[0] + " ns/request " + format(reader[1]) + " bytes/request, " +
+							   "parser " + parser[0] + " ns/request " + format(parser[1]) + " bytes/request");
+		}
+		System.out.println("checksum " + benchmark._sink);
+	}
+
+	/**
+	 * parse the requests once
+	 * @param parser true for the HTTPRequestParser, false for the deprecated constructor
+	 * @param count the number of requests
+	 * @return the time and the bytes allocated by request, -1 for the bytes when they are not counted
+	 * @throws IOException if a request cannot be parsed
+	 */
+	@SuppressWarnings("deprecation")
+	private long[] measure(boolean parser, int count) throws IOException {
+		long allocated = getAllocatedBytes();
+		long started = System.nanoTime();
+
+		if (parser) {
+			HTTPRequestParser connection = new HTTPRequestParser(new ByteArrayInputStream(_pipelined));
+			for (int i = 0; i < count; i++) {
+				RequestEntireContent request = new RequestEntireContent(connection);
+				if (request.getFirstHeaderLine() == null) {
+					throw new IOException("Request " + i + " not parsed");
+				}
+				use(request);
+			}
+		}
+		else {
+			for (int i = 0; i < count; i++) {
+				byte[] bytes = _requests[i % _requests.length];
+				use(new RequestEntireContent(new InputStreamReader(new ByteArrayInputStream(bytes), "ISO-8859-1")));
+			}
+		}
+
+		long elapsed = System.nanoTime() - started;
+		long after = getAllocatedBytes();
+		return new long[] { elapsed / count, allocated < 0 ? -1 : (after - allocated) / count };
+	}
+
+	/**
+	 * read what a handler reads from a request
+	 * @param request the request
+	 */
+	private void use(RequestEntireContent request) {
+		_sink += request.getMethodName().length() + request.getRequestURI().length();
+		String host = request.getHeaderLine("Host");
+		if (host != null) {
+			_sink += host.length();
+		}
+		String quantity = request.getValueFromKey("quantity");
+		if (quantity != null) {
+			_sink += quantity.length();
+		}
+	}
+
+	/**
+	 * the bytes allocated by the current thread so far
+	 * @return the number of bytes, -1 if the JVM does not count them
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean)bean;
+			if (counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled()) {
+				return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * format a number of bytes
+	 * @param bytes the number, -1 when it is not known
+	 * @return the number, "n/a" when it is not known
+	 */
+	private static String format(long bytes) {
+		return bytes < 0 ? "n/a" : String.valueOf(bytes);
+	}
+}
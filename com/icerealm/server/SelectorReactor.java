@@ -0,0 +1,466 @@
+package com.icerealm.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.icerealm.server.request.IdleConnectionWatcher;
+import com.icerealm.server.request.PrefetchedSocket;
+
+/**
+ * A non-blocking acceptor that uses a Selector to accept the connections and to read
+ * the HTTP requests. A connection is given to a worker only when its request header
+ * and body are completely read, so a slow client never holds a worker thread while
+ * it is sending its request. The socket is put back in blocking mode before it is
+ * handed to the RequestHandler, the bytes already read are replayed by a PrefetchedSocket.
+ * <p>
+ * A persistent connection comes back to the reactor after each response, see watch():
+ * it waits for its next request in the selector, an idle browser holds no worker.
+ * @author punisher
+ *
+ */
+public class SelectorReactor implements IdleConnectionWatcher {
+
+	/**
+	 * default logger
+	 */
+	private static final Logger LOGGER = Logger.getLogger("Icerealm");
+
+	/**
+	 * the time the selector waits before checking the idle connections, in ms
+	 */
+	private static final long SELECT_TIMEOUT = 1000;
+
+	/**
+	 * the initial size of the buffer of a pending request
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	/**
+	 * The server channel, non-blocking
+	 */
+	private ServerSocketChannel _serverChannel = null;
+
+	/**
+	 * The selector used for accept and read operations
+	 */
+	private Selector _selector = null;
+
+	/**
+	 * The listener that gives the fully read requests to its workers
+	 */
+	private ServerListener _listener = null;
+
+	/**
+	 * the maximum number of bytes read for a request before it is handed to a worker
+	 */
+	private int _maxRequestSize = 0;
+
+	/**
+	 * the time a connection can stay idle while its request is not complete, in ms
+	 */
+	private long _readTimeout = 0;
+
+	/**
+	 * the connections given back by the workers, registered by the selector thread
+	 */
+	private Queue<PendingRequest> _watched = new ConcurrentLinkedQueue<PendingRequest>();
+
+	/**
+	 * Default constructor
+	 * @param listener the listener that gives the fully read requests to its workers
+	 * @param maxRequestSize the maximum number of bytes read without blocking
+	 * @param readTimeout the maximum idle time of an incomplete request, in ms
+	 */
+	public SelectorReactor(ServerListener listener, int maxRequestSize, long readTimeout) {
+		_listener = listener;
+		_maxRequestSize = maxRequestSize;
+		_readTimeout = readTimeout;
+	}
+
+	/**
+	 * Open the server channel on the port and return its socket. It has to be
+	 * called before run()
+	 * @param port the port to listen on
+	 * @return the socket of the server channel, closing it stops the reactor
+	 * @throws IOException if the port cannot be bound
+	 */
+	public ServerSocket open(int port) throws IOException {
+		_selector = Selector.open();
+		_serverChannel = ServerSocketChannel.open();
+		_serverChannel.configureBlocking(false);
+		_serverChannel.socket().bind(new InetSocketAddress(port));
+		_serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+		return _serverChannel.socket();
+	}
+
+	/**
+	 * Run the selector loop until the server channel is closed. This method blocks.
+	 * @throws IOException if the selector fails
+	 */
+	public void run() throws IOException {
+
+		List<SelectionKey> completed = new ArrayList<SelectionKey>();
+
+		try {
+			while (_serverChannel.isOpen()) {
+
+				_selector.select(SELECT_TIMEOUT);
+				Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.isAcceptable()) {
+						accept();
+					}
+					else if (key.isReadable()) {
+						read(key, completed);
+					}
+				}
+
+				registerWatched(completed);
+				closeIdleConnections();
+				dispatch(completed);
+			}
+		}
+		finally {
+			_selector.close();
+		}
+	}
+
+	/**
+	 * Give a persistent connection back to the reactor once its response is written.
+	 * It can be called from any thread, the selector registers the connection.
+	 */
+	@Override
+	public void watch(SocketChannel channel, byte[] pending, int requestCount, long idleTimeout) {
+		_watched.add(new PendingRequest(channel, pending, requestCount, idleTimeout));
+		_selector.wakeup();
+	}
+
+	/**
+	 * register the connections given back by the workers. A connection whose next
+	 * request is already received is handed to a worker at once
+	 * @param completed the list of connections ready to be handed to a worker
+	 */
+	private void registerWatched(List<SelectionKey> completed) {
+		PendingRequest request = null;
+		while ((request = _watched.poll()) != null) {
+			SocketChannel channel = request._channel;
+			try {
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(_selector, SelectionKey.OP_READ, request);
+				if (request.isComplete()) {
+					key.cancel();
+					completed.add(key);
+				}
+			}
+			catch (IOException ex) {
+				LOGGER.log(Level.FINE, "Problem while watching a persistent connection: " + ex.getMessage(), ex);
+				try {
+					channel.close();
+				}
+				catch (IOException closeEx) {
+					LOGGER.log(Level.FINE, "Problem while closing a persistent connection", closeEx);
+				}
+			}
+		}
+	}
+
+	/**
+	 * accept all the pending connections and register them for reading
+	 * @throws IOException if the server channel fails
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = null;
+		while ((channel = _serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.register(_selector, SelectionKey.OP_READ, new PendingRequest(channel, null, 0, _readTimeout));
+		}
+	}
+
+	/**
+	 * read the available bytes of a connection. the connection is added to the completed
+	 * list once the request is entirely read
+	 * @param key the selection key of the connection
+	 * @param completed the list of connections ready to be handed to a worker
+	 */
+	private void read(SelectionKey key, List<SelectionKey> completed) {
+
+		SocketChannel channel = (SocketChannel)key.channel();
+		PendingRequest request = (PendingRequest)key.attachment();
+
+		try {
+			if (channel.read(request.getBuffer()) < 0) {
+				close(key);
+				return;
+			}
+
+			request.touch();
+
+			if (request.isComplete()) {
+				key.cancel();
+				completed.add(key);
+			}
+			else if (request.isOverflowed()) {
+				LOGGER.log(Level.INFO, "Request header too large from " + channel.socket().getInetAddress() + ", closing");
+				close(key);
+			}
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.FINE, "Problem while reading a pending request: " + ex.getMessage(), ex);
+			close(key);
+		}
+	}
+
+	/**
+	 * hand the completed requests to the workers. the cancelled keys are flushed before
+	 * the channels are put back in blocking mode
+	 * @param completed the list of connections ready to be handed to a worker
+	 * @throws IOException if the selector fails
+	 */
+	private void dispatch(List<SelectionKey> completed) throws IOException {
+
+		if (completed.isEmpty()) {
+			return;
+		}
+
+		// deregister the cancelled keys, a channel cannot change its mode otherwise
+		_selector.selectNow();
+
+		for (SelectionKey key : completed) {
+			SocketChannel channel = (SocketChannel)key.channel();
+			PendingRequest request = (PendingRequest)key.attachment();
+			try {
+				channel.configureBlocking(true);
+				_listener.submit(new PrefetchedSocket(channel.socket(), request.getBytes(), this, request._requestCount));
+			}
+			catch (IOException ex) {
+				LOGGER.log(Level.WARNING, "Could not hand a request to a worker: " + ex.getMessage(), ex);
+				close(key);
+			}
+		}
+
+		completed.clear();
+	}
+
+	/**
+	 * close the connections that did not send a complete request in time
+	 */
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : _selector.keys()) {
+			Object attachment = key.attachment();
+			if (key.isValid() && attachment instanceof PendingRequest &&
+				now - ((PendingRequest)attachment).getLastActivity() > ((PendingRequest)attachment)._timeout) {
+				close(key);
+			}
+		}
+	}
+
+	/**
+	 * cancel the key and close its channel
+	 * @param key the selection key of the connection
+	 */
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.FINE, "Problem while closing a pending connection", ex);
+		}
+	}
+
+	/**
+	 * The bytes received for a request that is not completely read yet. It detects
+	 * the end of the header and waits for the number of bytes announced by the
+	 * Content-Length field.
+	 */
+	private class PendingRequest {
+
+		/**
+		 * the channel of the connection
+		 */
+		private SocketChannel _channel = null;
+
+		/**
+		 * the number of requests the connection served before
+		 */
+		private int _requestCount = 0;
+
+		/**
+		 * the time the connection can stay idle, in ms
+		 */
+		private long _timeout = 0;
+
+		/**
+		 * the bytes received so far
+		 */
+		private ByteBuffer _buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+		/**
+		 * the position in the buffer where the search for the end of header resumes
+		 */
+		private int _scanned = 0;
+
+		/**
+		 * the number of bytes of the request, header and body, -1 until the header is read
+		 */
+		private int _expected = -1;
+
+		/**
+		 * the last time bytes were received
+		 */
+		private long _lastActivity = System.currentTimeMillis();
+
+		/**
+		 * Start a request
+		 * @param channel the channel of the connection
+		 * @param pending the bytes already received, can be null
+		 * @param requestCount the number of requests the connection served before
+		 * @param timeout the time the connection can stay idle, in ms
+		 */
+		public PendingRequest(SocketChannel channel, byte[] pending, int requestCount, long timeout) {
+			_channel = channel;
+			_requestCount = requestCount;
+			_timeout = timeout;
+			if (pending != null && pending.length > 0) {
+				if (pending.length > _buffer.capacity()) {
+					_buffer = ByteBuffer.allocate(Math.max(pending.length, Math.min(pending.length * 2, _maxRequestSize)));
+				}
+				_buffer.put(pending);
+			}
+		}
+
+		/**
+		 * return the buffer to read into, it grows up to the maximum request size
+		 * @return the buffer with some room left, when possible
+		 */
+		public ByteBuffer getBuffer() {
+			if (!_buffer.hasRemaining() && _buffer.capacity() < _maxRequestSize) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.min(_buffer.capacity() * 2, _maxRequestSize));
+				_buffer.flip();
+				larger.put(_buffer);
+				_buffer = larger;
+			}
+			return _buffer;
+		}
+
+		/**
+		 * determine if the request can be handed to a worker. It is when the body is
+		 * received or when the buffer is full, the worker reads the rest of the body.
+		 * A chunked or a 100-continue request is handed after its header.
+		 * @return true if the request is complete
+		 */
+		public boolean isComplete() {
+			if (_expected < 0) {
+				parseHeader();
+			}
+			return _expected >= 0 && (_buffer.position() >= _expected || isFull());
+		}
+
+		/**
+		 * determine if the header does not fit in the maximum request size
+		 * @return true if the buffer is full and the header is not complete
+		 */
+		public boolean isOverflowed() {
+			return _expected < 0 && isFull();
+		}
+
+		/**
+		 * determine if the buffer reached the maximum request size
+		 * @return true if no more bytes can be read without blocking
+		 */
+		private boolean isFull() {
+			return !_buffer.hasRemaining() && _buffer.capacity() >= _maxRequestSize;
+		}
+
+		/**
+		 * copy the bytes received
+		 * @return the bytes received
+		 */
+		public byte[] getBytes() {
+			byte[] bytes = new byte[_buffer.position()];
+			System.arraycopy(_buffer.array(), 0, bytes, 0, bytes.length);
+			return bytes;
+		}
+
+		/**
+		 * record that bytes were received
+		 */
+		public void touch() {
+			_lastActivity = System.currentTimeMillis();
+		}
+
+		/**
+		 * the last time bytes were received
+		 * @return the time in ms
+		 */
+		public long getLastActivity() {
+			return _lastActivity;
+		}
+
+		/**
+		 * search for the empty line that ends the header and read the body size from it
+		 */
+		private void parseHeader() {
+			byte[] bytes = _buffer.array();
+			int end = _buffer.position();
+
+			for (int i = Math.max(_scanned, 1); i < end; i++) {
+				if (bytes[i] == '\n' && (bytes[i - 1] == '\n' || (i > 1 && bytes[i - 1] == '\r' && bytes[i - 2] == '\n'))) {
+					String header = new String(bytes, 0, i + 1).toLowerCase();
+					if (header.contains("\ntransfer-encoding:") || header.contains("\nexpect:")) {
+						_expected = i + 1;
+					}
+					else {
+						// a body larger than the maximum request size is read by the worker,
+						// the sum is made in long so a large Content-Length cannot overflow
+						_expected = (int)Math.min(i + 1L + getContentLength(header), _maxRequestSize);
+					}
+					return;
+				}
+			}
+			_scanned = end;
+		}
+
+		/**
+		 * extract the Content-Length value from the header
+		 * @param header the header, in lower case
+		 * @return the body size, 0 if there is none
+		 */
+		private long getContentLength(String header) {
+			String identifier = "\ncontent-length:";
+			int index = header.indexOf(identifier);
+			if (index >= 0) {
+				int start = index + identifier.length();
+				int end = header.indexOf('\n', start);
+				try {
+					return Math.max(0, Long.parseLong(header.substring(start, end).trim()));
+				}
+				catch (NumberFormatException ex) {
+					LOGGER.log(Level.WARNING, "Content-Length from request not parsable", ex);
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -1,15 +1,20 @@
 package com.icerealm.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Map;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import com.icerealm.server.request.LoadShedder;
 import com.icerealm.server.request.RequestHandler;
 import com.icerealm.server.request.RequestWorker;
+import com.icerealm.server.request.ResumableRequestHandler;
+import com.icerealm.server.stats.LoadSheddingStatistic;
+import com.icerealm.server.stats.StatisticRegistry;
 
 
 /**
@@ -31,6 +36,31 @@ public class ServerListener {
 	 */
 	private static final int DEFAULT_NUM_THREAD = 3;
 	
+	/**
+	 * the value of the mode property that enables the selector reactor
+	 */
+	private static final String REACTOR_MODE = "reactor";
+	
+	/**
+	 * the default number of bytes a reactor reads for a request without blocking
+	 */
+	private static final int DEFAULT_MAX_REQUEST_SIZE = 65536;
+	
+	/**
+	 * the default time a reactor waits for an incomplete request, in ms
+	 */
+	private static final long DEFAULT_READ_TIMEOUT = 30000;
+	
+	/**
+	 * the default number of connections waiting for a worker
+	 */
+	private static final int DEFAULT_QUEUE_SIZE = 1000;
+	
+	/**
+	 * the default number of seconds sent in the Retry-After field of a 503
+	 */
+	private static final int DEFAULT_RETRY_AFTER = 5;
+	
 	/**
 	 * The socket used by the server to listen to client request
 	 */
@@ -46,6 +76,16 @@ public class ServerListener {
 	 */
 	private Executor _executor = null;
 	
+	/**
+	 * The non-blocking acceptor, null when the server uses the blocking accept
+	 */
+	private SelectorReactor _reactor = null;
+	
+	/**
+	 * Answers the connections that cannot be handled in time
+	 */
+	private LoadShedder _shedder = null;
+	
 	/**
 	 * Default constructor that uses a concrete RequestHandler to handler
 	 * the client request
@@ -58,18 +98,28 @@ public class ServerListener {
 	/**
 	 * Creates a ServerSocket that listen to a specific port and wait for
 	 * client to send a request. This method blocks when the server waits 
-	 * for a connection.
+	 * for a connection. In reactor mode, the connections are accepted and read
+	 * by a Selector and only the complete requests are given to the executor.
 	 * @param port The port on which the server is listening.
 	 */
 	public void listen(int port) {
 		
 		try {
-			_serverSocket = new ServerSocket(port);
+			if (_reactor != null) {
+				_serverSocket = _reactor.open(port);
+				_reactor.run();
+				return;
+			}
+			
+			// a plain socket: the streams of a socket accepted through a channel share one lock
+			// on some JVMs, a WebSocket could not send while its listener waits in read(). The
+			// files are then copied to the stream, the reactor mode sends them with its channels.
+			_serverSocket = new ServerSocket();
+			_serverSocket.bind(new InetSocketAddress(port));
 			Socket socket = null;
 
 			while (((socket = _serverSocket.accept()) != null)) {
-				RequestWorker worker = new RequestWorker(_requestHandler, socket);
-				_executor.execute(worker);
+				submit(socket);
 			}
 			
 			stop();
@@ -79,6 +129,29 @@ public class ServerListener {
 		}
 	}
 	
+	/**
+	 * Give a connection to the executor. When the admission queue is full, the 503
+	 * response is written right away from the calling thread.
+	 * @param socket the client socket
+	 */
+	public void submit(Socket socket) {
+		try {
+			_executor.execute(new RequestWorker(_requestHandler, socket, _shedder));
+			_shedder.accepted();
+		}
+		catch (RejectedExecutionException ex) {
+			_shedder.reject(socket);
+		}
+	}
+	
+	/**
+	 * return the counters of accepted and shed connections
+	 * @return the statistic
+	 */
+	public LoadSheddingStatistic getStatistic() {
+		return _shedder.getStatistic();
+	}
+	
 	/**
 	 * a handle to configure the ServerListener based on the application name
 	 * @param config the map containing a list of key/value that represents a configuration
@@ -96,8 +169,58 @@ public class ServerListener {
 			}
 		}
 		
-		// setting the thread pool
-		_executor = Executors.newFixedThreadPool(numThread);
+		// the admission queue is bounded, the extra connections are shed with a 503
+		int queueSize = DEFAULT_QUEUE_SIZE;
+		int retryAfter = DEFAULT_RETRY_AFTER;
+		long queueTimeout = 0;
+		int maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
+		long readTimeout = DEFAULT_READ_TIMEOUT;
+		try {
+			if (config.containsKey("queuesize")) {
+				queueSize = Integer.parseInt(config.get("queuesize"));
+			}
+			if (config.containsKey("queuetimeout")) {
+				queueTimeout = Long.parseLong(config.get("queuetimeout"));
+			}
+			if (config.containsKey("retryafter")) {
+				retryAfter = Integer.parseInt(config.get("retryafter"));
+			}
+			if (config.containsKey("maxrequestsize")) {
+				maxRequestSize = Integer.parseInt(config.get("maxrequestsize"));
+			}
+			if (config.containsKey("readtimeout")) {
+				readTimeout = Long.parseLong(config.get("readtimeout"));
+			}
+		}
+		catch (NumberFormatException ex) {
+			LOGGER.log(Level.WARNING, "Cannot parse the queue configuration for server listener", ex);
+		}
+		
+		String name = config.get(WebContainer.getDefaultAppName());
+		LoadSheddingStatistic statistic = new LoadSheddingStatistic(name);
+		StatisticRegistry.register(name + ".shedding", statistic);
+		_shedder = new LoadShedder(retryAfter, queueTimeout, statistic);
+		
+		// setting the thread pool, or the virtual threads if configured
+		_executor = WorkerExecutors.newWorkerExecutor(config, numThread, queueSize);
+		if (_requestHandler instanceof ResumableRequestHandler) {
+			((ResumableRequestHandler)_requestHandler).setExecutor(_executor);
+		}
+		
+		// the reactor mode is opt-in, the plugin must speak HTTP
+		if (isReactorMode(config)) {
+			_reactor = new SelectorReactor(this, maxRequestSize, readTimeout);
+			LOGGER.info("Server listener uses the selector reactor mode");
+		}
+	}
+	
+	/**
+	 * determine if the configuration asks for the selector reactor
+	 * @param config the plugin configuration, can be null
+	 * @return true if the mode property is "reactor"
+	 */
+	public static boolean isReactorMode(Map<String, String> config) {
+		return config != null && REACTOR_MODE.equalsIgnoreCase(config.get("mode"));
 	}
 	
 	/**
@@ -493,7 +493,15 @@ public class WebContainer {
 		 											 "			<class>com.icerealm.server.web.WebServerHandler</class>\n" +
 		 											 "			<port>80</port>\n" +
 		 											 "			<publicfolder>html</publicfolder>\n" +
-		 											 "			<thread>20</thread>\n\n" +
+		 											 "			<thread>20</thread>\n" +
+		 											 "			<!-- uncomment to accept and read the requests with a non-blocking selector -->\n" +
+		 											 "			<!-- <mode>reactor</mode> -->\n" +
+		 											 "			<!-- uncomment to run the requests and WebSocket listeners on virtual threads -->\n" +
+		 											 "			<!-- <executor>virtual</executor> -->\n" +
+		 											 "			<!-- the time an idle persistent connection waits for its next request, in ms. It holds a thread\n" +
+		 											 "			     meanwhile in the default blocking mode, the default is 1000, and 5000 with the reactor mode\n" +
+		 											 "			     or the virtual threads -->\n" +
+		 											 "			<!-- <keepalivetimeout>1000</keepalivetimeout> -->\n\n" +
 		 											 "			<!-- example of a handler. browse to http://localhost/defaultGetHandler/DefaultGetHandler to run this handler \n" +
 		 											 "			<handler>\n" +
 		 											 "				<name>DefaultGetHandler</name>\n" +
@@ -0,0 +1,184 @@
+package com.icerealm.server;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the executors used to run the client requests and the WebSocket listeners.
+ * The execution mode is read from the plugin configuration. With the value "virtual"
+ * in the executor property, every task gets its own virtual thread, so an idle connection
+ * does not cost an OS thread. Virtual threads are looked up by reflection, the server
+ * falls back to the platform threads when the JVM does not provide them.
+ * @author punisher
+ *
+ */
+public class WorkerExecutors {
+
+	/**
+	 * default logger
+	 */
+	private static final Logger LOGGER = Logger.getLogger("Icerealm");
+
+	/**
+	 * the configuration property that selects the execution mode
+	 */
+	public static final String EXECUTOR_PROPERTY = "executor";
+
+	/**
+	 * the value of the executor property that enables the virtual threads
+	 */
+	public static final String VIRTUAL_MODE = "virtual";
+
+	/**
+	 * the configuration property that limits the requests running at once on virtual threads
+	 */
+	public static final String MAX_CONCURRENT_PROPERTY = "maxconcurrent";
+
+	/**
+	 * utility class, no instance
+	 */
+	private WorkerExecutors() { }
+
+	/**
+	 * Create the executor that runs the client requests of a plugin. The fixed pool throws
+	 * a RejectedExecutionException when its queue is full. With virtual threads nothing
+	 * waits for a thread, the connections being served are not limited unless the
+	 * maxconcurrent property is set.
+	 * @param config the plugin configuration
+	 * @param numThread the size of the fixed pool, when virtual threads are not used
+	 * @param queueSize the number of requests waiting for a thread of the fixed pool
+	 * @return a virtual thread executor if configured and available, otherwise a fixed thread pool
+	 */
+	public static Executor newWorkerExecutor(Map<String, String> config, int numThread, int queueSize) {
+		if (isVirtualMode(config)) {
+			ExecutorService executor = newVirtualThreadExecutor();
+			if (executor != null) {
+				LOGGER.info("Requests of " + config.get(WebContainer.getDefaultAppName()) + " run on virtual threads");
+				int maxConcurrent = getMaxConcurrent(config);
+				return maxConcurrent > 0 ? new BoundedExecutor(executor, maxConcurrent) : executor;
+			}
+		}
+		return new ThreadPoolExecutor(numThread, numThread, 0L, TimeUnit.MILLISECONDS, 
+									  new ArrayBlockingQueue<Runnable>(queueSize));
+	}
+
+	/**
+	 * Create the executor that runs the WebSocket listeners of a plugin
+	 * @param config the plugin configuration
+	 * @return a virtual thread executor if configured and available, otherwise null and
+	 * every listener uses its own thread
+	 */
+	public static ExecutorService newListenerExecutor(Map<String, String> config) {
+		if (isVirtualMode(config)) {
+			return newVirtualThreadExecutor();
+		}
+		return null;
+	}
+
+	/**
+	 * determine if the configuration asks for virtual threads
+	 * @param config the plugin configuration, can be null
+	 * @return true if the executor property is "virtual"
+	 */
+	public static boolean isVirtualMode(Map<String, String> config) {
+		return config != null && VIRTUAL_MODE.equalsIgnoreCase(config.get(EXECUTOR_PROPERTY));
+	}
+
+	/**
+	 * read the maximum number of requests running at once on virtual threads
+	 * @param config the plugin configuration
+	 * @return the maximum, 0 for no limit
+	 */
+	private static int getMaxConcurrent(Map<String, String> config) {
+		if (config.containsKey(MAX_CONCURRENT_PROPERTY)) {
+			try {
+				return Integer.parseInt(config.get(MAX_CONCURRENT_PROPERTY));
+			}
+			catch (NumberFormatException ex) {
+				LOGGER.log(Level.WARNING, "Cannot parse the maximum number of concurrent requests", ex);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Create an executor that starts a new virtual thread for each task
+	 * @return the executor, or null if the JVM does not support virtual threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)factory.invoke(null);
+		}
+		catch (NoSuchMethodException ex) {
+			LOGGER.log(Level.WARNING, "Virtual threads are not available on this JVM, using platform threads");
+		}
+		catch (Exception ex) {
+			LOGGER.log(Level.WARNING, "Could not create a virtual thread executor, using platform threads", ex);
+		}
+		return null;
+	}
+
+	/**
+	 * Limits the number of tasks running at the same time on an executor that never queues,
+	 * like the virtual thread executor
+	 */
+	private static class BoundedExecutor implements Executor {
+		
+		/**
+		 * the executor that runs the tasks
+		 */
+		private Executor _executor = null;
+		
+		/**
+		 * one permit per running task
+		 */
+		private Semaphore _permits = null;
+		
+		/**
+		 * default constructor
+		 * @param executor the executor that runs the tasks
+		 * @param limit the maximum number of tasks running at the same time
+		 */
+		public BoundedExecutor(Executor executor, int limit) {
+			_executor = executor;
+			_permits = new Semaphore(limit);
+		}
+		
+		@Override
+		public void execute(final Runnable task) {
+			if (!_permits.tryAcquire()) {
+				throw new RejectedExecutionException("Too many requests running");
+			}
+			
+			try {
+				_executor.execute(new Runnable() {
+					
+					@Override
+					public void run() {
+						try {
+							task.run();
+						}
+						finally {
+							_permits.release();
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException ex) {
+				_permits.release();
+				throw ex;
+			}
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package com.icerealm.server.request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The response of a request that is answered later, like after a call to a slow
+ * backend. A handler gets it with RequestEntireContent.startAsync() and returns at once,
+ * the worker goes back to the pool and the connection waits without a thread. The
+ * response is written by the thread that completes it, then the connection is given
+ * back to the workers for its next request.
+ * <p>
+ * A response is completed once: the first of complete(), fail(), cancel() or the
+ * timeout wins, the others return false. The timeout answers a 504 Gateway Timeout
+ * and cancels the task of the handler, see setTask().
+ * @author punisher
+ *
+ */
+public class AsyncResponse {
+
+	/**
+	 * default logger
+	 */
+	private static final Logger LOGGER = Logger.getLogger("Icerealm");
+
+	/**
+	 * the response sent when the handler fails
+	 */
+	private static final byte[] SERVER_ERROR_RESPONSE = getErrorResponse("500 Internal Server Error");
+
+	/**
+	 * the response sent when the handler does not answer in time
+	 */
+	private static final byte[] TIMEOUT_RESPONSE = getErrorResponse("504 Gateway Timeout");
+
+	/**
+	 * Called once the response is written or the connection is given up
+	 */
+	public interface Listener {
+
+		/**
+		 * the response is complete, see isKeepAlive() to know if the connection can be reused
+		 * @param response the response
+		 */
+		public void onComplete(AsyncResponse response);
+	}
+
+	/**
+	 * the client stream
+	 */
+	private OutputStream _out = null;
+
+	/**
+	 * determine if the request allows a persistent connection
+	 */
+	private boolean _keepAlive = false;
+
+	/**
+	 * the time the response can wait, in ms, -1 for the timeout of the server
+	 */
+	private long _timeout = -1;
+
+	/**
+	 * true once a response is chosen, guarded by this
+	 */
+	private boolean _done = false;
+
+	/**
+	 * true if the response timed out or was cancelled, guarded by this
+	 */
+	private boolean _cancelled = false;
+
+	/**
+	 * true once the response is written, guarded by this
+	 */
+	private boolean _finished = false;
+
+	/**
+	 * true if the connection can be reused once the response is written, guarded by this
+	 */
+	private boolean _reusable = false;
+
+	/**
+	 * the task of the handler, cancelled on timeout, guarded by this
+	 */
+	private Future<?> _task = null;
+
+	/**
+	 * the timer of the timeout, guarded by this
+	 */
+	private ScheduledFuture<?> _timer = null;
+
+	/**
+	 * the server, guarded by this
+	 */
+	private Listener _listener = null;
+
+	/**
+	 * Create the response of a request, see RequestEntireContent.startAsync()
+	 * @param out the client stream
+	 * @param keepAlive true if the request allows a persistent connection
+	 */
+	public AsyncResponse(OutputStream out, boolean keepAlive) {
+		_out = out;
+		_keepAlive = keepAlive;
+	}
+
+	/**
+	 * Set the time the response can wait before a 504 is sent
+	 * @param timeout the time in ms, 0 to wait forever
+	 */
+	public synchronized void setTimeout(long timeout) {
+		_timeout = timeout;
+	}
+
+	/**
+	 * Set the task that computes the response, it is interrupted when the response times
+	 * out or is cancelled
+	 * @param task the task, like the Future of an ExecutorService.submit()
+	 */
+	public void setTask(Future<?> task) {
+		boolean cancelled = false;
+		synchronized (this) {
+			_task = task;
+			cancelled = _cancelled;
+		}
+		if (cancelled) {
+			task.cancel(true);
+		}
+	}
+
+	/**
+	 * Write the response. The bytes are a complete HTTP response, with a Content-Length
+	 * when the request is persistent, like the bytes of a ContentHandler.
+	 * @param response the response
+	 * @return false if the response was already completed
+	 */
+	public boolean complete(byte[] response) {
+		return finish(response, _keepAlive, false);
+	}
+
+	/**
+	 * Answer a 500 Internal Server Error, the connection is closed after it
+	 * @param cause the failure of the handler
+	 * @return false if the response was already completed
+	 */
+	public boolean fail(Throwable cause) {
+		boolean failed = finish(SERVER_ERROR_RESPONSE, false, false);
+		if (failed) {
+			LOGGER.log(Level.WARNING, "Asynchronous handler failed: " + cause.getMessage(), cause);
+		}
+		return failed;
+	}
+
+	/**
+	 * Give up the response, the task is interrupted and the connection is closed
+	 * without response
+	 * @return false if the response was already completed
+	 */
+	public boolean cancel() {
+		return finish(null, false, true);
+	}
+
+	/**
+	 * determine if the response is completed
+	 * @return true if a response was chosen
+	 */
+	public synchronized boolean isDone() {
+		return _done;
+	}
+
+	/**
+	 * determine if the connection can be reused
+	 * @return true if the response is written and the connection is persistent
+	 */
+	public synchronized boolean isKeepAlive() {
+		return _reusable;
+	}
+
+	/**
+	 * Let the response wait without the worker, the server calls it once the handler
+	 * returned. The listener is called when the response is written.
+	 * @param timer the timer of the timeouts
+	 * @param defaultTimeout the timeout when the handler did not set one, in ms, 0 to wait forever
+	 * @param listener the server
+	 * @return false if the response is written already, the worker continues with the connection
+	 */
+	public boolean suspend(ScheduledExecutorService timer, long defaultTimeout, Listener listener) {
+		synchronized (this) {
+			if (_finished) {
+				return false;
+			}
+			_listener = listener;
+
+			long timeout = _timeout >= 0 ? _timeout : defaultTimeout;
+			if (!_done && timeout > 0) {
+				_timer = timer.schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						if (finish(TIMEOUT_RESPONSE, false, true)) {
+							LOGGER.log(Level.INFO, "Asynchronous response timed out");
+						}
+					}
+				}, timeout, TimeUnit.MILLISECONDS);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * choose the response, write it and call the listener
+	 * @param response the bytes to write, null to write nothing
+	 * @param keepAlive true if the connection can be reused after
+	 * @param interrupt true to cancel the task of the handler
+	 * @return false if the response was already chosen
+	 */
+	private boolean finish(byte[] response, boolean keepAlive, boolean interrupt) {
+		Future<?> task = null;
+		ScheduledFuture<?> timer = null;
+		synchronized (this) {
+			if (_done) {
+				return false;
+			}
+			_done = true;
+			_cancelled = interrupt;
+			task = _task;
+			timer = _timer;
+		}
+
+		if (timer != null) {
+			timer.cancel(false);
+		}
+		if (interrupt && task != null) {
+			task.cancel(true);
+		}
+
+		boolean written = false;
+		if (response != null) {
+			try {
+				_out.write(response);
+				_out.flush();
+				written = true;
+			}
+			catch (IOException ex) {
+				LOGGER.log(Level.FINE, "Problem writing an asynchronous response: " + ex.getMessage(), ex);
+			}
+		}
+
+		Listener listener = null;
+		synchronized (this) {
+			_reusable = keepAlive && written;
+			_finished = true;
+			listener = _listener;
+		}
+		if (listener != null) {
+			listener.onComplete(this);
+		}
+		return true;
+	}
+
+	/**
+	 * build an error response that closes the connection
+	 * @param status the status code and reason
+	 * @return the bytes of the response
+	 */
+	private static byte[] getErrorResponse(String status) {
+		String body = "Error " + status + "\n";
+		return ("HTTP/1.1 " + status + "\r\n" +
+				"Content-Type: text/plain\r\n" +
+				"Content-Length: " + body.length() + "\r\n" +
+				"Connection: close\r\n" +
+				"\r\n" + body).getBytes();
+	}
+}
@@ -0,0 +1,194 @@
+package com.icerealm.server.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a body sent with "Transfer-Encoding: chunked". Each chunk starts with its
+ * size in hexadecimal on its own line, the last chunk has a size of 0 and may be
+ * followed by trailer fields, which are ignored. The framing is strict: a size is made
+ * of hexadecimal digits only and the data of a chunk must be followed by its line break,
+ * so a body cannot be read differently by a proxy in front of the server.
+ * @author punisher
+ *
+ */
+public class ChunkedInputStream extends InputStream {
+
+	/**
+	 * the maximum length of a chunk size line
+	 */
+	private static final int MAX_LINE_LENGTH = 1024;
+
+	/**
+	 * the largest size that can take one more hexadecimal digit
+	 */
+	private static final long MAX_SIZE_BEFORE_DIGIT = Long.MAX_VALUE >> 4;
+
+	/**
+	 * the stream positioned on the first chunk
+	 */
+	private InputStream _source = null;
+
+	/**
+	 * the maximum size of the decoded body, -1 for no limit
+	 */
+	private long _maxSize = -1;
+
+	/**
+	 * the number of bytes left in the current chunk
+	 */
+	private long _remaining = 0;
+
+	/**
+	 * the number of decoded bytes so far
+	 */
+	private long _total = 0;
+
+	/**
+	 * true once the last chunk and the trailer are read
+	 */
+	private boolean _finished = false;
+
+	/**
+	 * the buffer of read(), kept for every byte
+	 */
+	private byte[] _single = new byte[1];
+
+	/**
+	 * Decode the chunks read from a stream
+	 * @param source the stream positioned on the first chunk
+	 * @param maxSize the maximum size of the decoded body, -1 for no limit
+	 */
+	public ChunkedInputStream(InputStream source, long maxSize) {
+		_source = source;
+		_maxSize = maxSize;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int read = read(_single, 0, 1);
+		return read < 0 ? -1 : _single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (_remaining == 0 && !nextChunk()) {
+			return -1;
+		}
+
+		int read = _source.read(b, off, (int)Math.min(len, _remaining));
+		if (read < 0) {
+			throw new IOException("Connection closed in the middle of a chunk");
+		}
+
+		_remaining -= read;
+		if (_remaining == 0) {
+			// the data of a chunk is followed by a line break, and nothing else
+			if (readLine().length() > 0) {
+				throw new IOException("Missing CRLF after chunk data");
+			}
+		}
+		return read;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int)Math.min(_remaining, _source.available());
+	}
+
+	/**
+	 * read the size of the next chunk
+	 * @return false when the last chunk is reached
+	 * @throws IOException if the size is not valid or the body is too large
+	 */
+	private boolean nextChunk() throws IOException {
+		if (_finished) {
+			return false;
+		}
+
+		String line = readLine();
+		_remaining = parseSize(line);
+
+		_total += _remaining;
+		if (_maxSize >= 0 && _total > _maxSize) {
+			throw new IOException("Request body larger than " + _maxSize + " bytes");
+		}
+
+		if (_remaining == 0) {
+			// skip the trailer fields up to the empty line
+			while (readLine().length() > 0) {
+				// trailer ignored
+			}
+			_finished = true;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * parse the size of a chunk: hexadecimal digits, then the end of the line or the
+	 * extensions after a ';', only spaces and tabs can come before it
+	 * @param line the size line
+	 * @return the size
+	 * @throws IOException if the line does not start with a valid size
+	 */
+	private static long parseSize(String line) throws IOException {
+		long size = 0;
+		int i = 0;
+		for (; i < line.length(); i++) {
+			int digit = Character.digit(line.charAt(i), 16);
+			if (digit < 0) {
+				break;
+			}
+			if (size > MAX_SIZE_BEFORE_DIGIT) {
+				throw new IOException("Chunk size too large: " + line);
+			}
+			size = (size << 4) | digit;
+		}
+		if (i == 0) {
+			throw new IOException("Invalid chunk size: " + line);
+		}
+
+		if (i == line.length()) {
+			return size;
+		}
+
+		// whitespace after the size is only allowed before an extension
+		for (; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == ';') {
+				return size;
+			}
+			if (c != ' ' && c != '\t') {
+				break;
+			}
+		}
+		throw new IOException("Invalid chunk size: " + line);
+	}
+
+	/**
+	 * read a line terminated by a line feed, the carriage return before it is removed
+	 * @return the line
+	 * @throws IOException if the stream ends or the line is too long
+	 */
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c = 0;
+		while ((c = _source.read()) != '\n') {
+			if (c < 0) {
+				throw new IOException("Connection closed in a chunk header");
+			}
+			if (line.length() >= MAX_LINE_LENGTH) {
+				throw new IOException("Chunk header too long");
+			}
+			line.append((char)c);
+		}
+		if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+			line.setLength(line.length() - 1);
+		}
+		return line.toString();
+	}
+}
@@ -0,0 +1,114 @@
+package com.icerealm.server.request;
+
+/**
+ * The header fields the server looks at for most requests. Each one has a constant
+ * slot, the parser records where it is when the request is read, so asking for it
+ * with RequestEntireContent.getHeader(int) costs no search.
+ * @author punisher
+ *
+ */
+public final class HTTPHeaders {
+
+	/**
+	 * the Host field, the site asked for
+	 */
+	public static final int HOST 				= 0;
+
+	/**
+	 * the Content-Length field, the size of the body
+	 */
+	public static final int CONTENT_LENGTH 		= 1;
+
+	/**
+	 * the Connection field, keep-alive, close or Upgrade
+	 */
+	public static final int CONNECTION 			= 2;
+
+	/**
+	 * the Upgrade field, the protocol of a WebSocket handshake
+	 */
+	public static final int UPGRADE 			= 3;
+
+	/**
+	 * the Sec-WebSocket-Key field of a WebSocket handshake
+	 */
+	public static final int SEC_WEBSOCKET_KEY 	= 4;
+
+	/**
+	 * the If-Modified-Since field of a conditional GET
+	 */
+	public static final int IF_MODIFIED_SINCE 	= 5;
+
+	/**
+	 * the Range field, the byte ranges asked for
+	 */
+	public static final int RANGE 				= 6;
+
+	/**
+	 * the Accept-Encoding field, the content codings the client accepts
+	 */
+	public static final int ACCEPT_ENCODING 	= 7;
+
+	/**
+	 * the Transfer-Encoding field, a chunked body
+	 */
+	public static final int TRANSFER_ENCODING 	= 8;
+
+	/**
+	 * the Expect field, a 100-continue before the body is sent
+	 */
+	public static final int EXPECT 				= 9;
+
+	/**
+	 * the Content-Type field, the type of the body and the boundary of a multipart body
+	 */
+	public static final int CONTENT_TYPE 		= 10;
+
+	/**
+	 * the If-None-Match field, the ETags known by the client
+	 */
+	public static final int IF_NONE_MATCH 		= 11;
+
+	/**
+	 * the If-Range field, the ETag or date a Range applies to
+	 */
+	public static final int IF_RANGE 			= 12;
+
+	/**
+	 * the names of the well-known fields, in lower case, by slot
+	 */
+	private static final String[] NAMES = new String[] {
+		"host",
+		"content-length",
+		"connection",
+		"upgrade",
+		"sec-websocket-key",
+		"if-modified-since",
+		"range",
+		"accept-encoding",
+		"transfer-encoding",
+		"expect",
+		"content-type",
+		"if-none-match",
+		"if-range"
+	};
+
+	/**
+	 * the number of well-known fields
+	 */
+	public static final int COUNT = NAMES.length;
+
+	/**
+	 * constants only, no instance
+	 */
+	private HTTPHeaders() { }
+
+	/**
+	 * return the name of a well-known field
+	 * @param slot the slot of the field
+	 * @return the name, in lower case
+	 */
+	public static String getName(int slot) {
+		return NAMES[slot];
+	}
+}
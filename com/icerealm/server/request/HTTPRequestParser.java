@@ -0,0 +1,963 @@
+package com.icerealm.server.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the HTTP requests of a connection directly as bytes. The request line and the
+ * header fields are not decoded, the parser only records their offsets in its receive
+ * buffer, the Strings are created by RequestEntireContent when they are asked for.
+ * One parser is used for all the requests of a persistent connection: the bytes read
+ * after the end of a request are kept for the next one. The offsets of a request are
+ * valid until the next call to parseNext().
+ * The body is not read with the header. It is read when the handler asks for it with
+ * openBody(), directly from the connection, so a large upload is never held in the
+ * receive buffer. The part of the body nobody read is skipped by the next parseNext().
+ * @author punisher
+ *
+ */
+public class HTTPRequestParser {
+
+	/**
+	 * the initial size of the receive buffer
+	 */
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * the default maximum size of the request line and header fields
+	 */
+	private static final int DEFAULT_MAX_HEADER_SIZE = 65536;
+
+	/**
+	 * the initial number of header fields
+	 */
+	private static final int DEFAULT_HEADER_COUNT = 32;
+
+	/**
+	 * the default maximum number of unread body bytes skipped to reach the next request
+	 */
+	private static final int DEFAULT_MAX_DRAIN_SIZE = 65536;
+
+	/**
+	 * the default number of body bytes kept in memory by RequestBody
+	 */
+	private static final int DEFAULT_SPOOL_THRESHOLD = 65536;
+
+	/**
+	 * the interim response sent when the client waits before sending the body
+	 */
+	private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+
+	/**
+	 * the stream of the client connection
+	 */
+	private InputStream _input = null;
+
+	/**
+	 * the receive buffer
+	 */
+	private byte[] _buffer = null;
+
+	/**
+	 * the number of valid bytes in the buffer
+	 */
+	private int _limit = 0;
+
+	/**
+	 * the offset of the first byte that does not belong to the current request
+	 */
+	private int _consumed = 0;
+
+	/**
+	 * the maximum size of the request line and header fields
+	 */
+	private int _maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+
+	/**
+	 * the offsets of the request line
+	 */
+	private int _methodStart = 0, _methodEnd = 0;
+	private int _uriStart = 0, _uriEnd = 0;
+	private int _versionStart = 0, _versionEnd = 0;
+
+	/**
+	 * the offsets of the header fields, 4 values per field: name start, name end,
+	 * value start, value end
+	 */
+	private int[] _headers = new int[DEFAULT_HEADER_COUNT * 4];
+
+	/**
+	 * the number of header fields
+	 */
+	private int _headerCount = 0;
+
+	/**
+	 * the case-insensitive hash of every header field name
+	 */
+	private int[] _hashes = new int[DEFAULT_HEADER_COUNT];
+
+	/**
+	 * the open addressing table of the header fields, by hash of the name. It
+	 * contains the field index plus one, 0 is an empty entry
+	 */
+	private int[] _index = new int[DEFAULT_HEADER_COUNT * 2];
+
+	/**
+	 * the index of each well-known header field, -1 when the request does not have it
+	 */
+	private int[] _known = new int[HTTPHeaders.COUNT];
+
+	/**
+	 * the offset of the body, the bytes before it belong to the header and are never
+	 * overwritten while the body is read
+	 */
+	private int _bodyStart = 0;
+
+	/**
+	 * the body of the current request, created by openBody()
+	 */
+	private InputStream _body = null;
+
+	/**
+	 * the maximum size of a body, -1 for no limit
+	 */
+	private long _maxBodySize = -1;
+
+	/**
+	 * the maximum number of unread body bytes skipped to reach the next request
+	 */
+	private int _maxDrainSize = DEFAULT_MAX_DRAIN_SIZE;
+
+	/**
+	 * the buffer the unread bodies are skipped into, created by the first one
+	 */
+	private byte[] _skipped = null;
+
+	/**
+	 * the number of body bytes kept in memory when the whole body is read
+	 */
+	private int _spoolThreshold = DEFAULT_SPOOL_THRESHOLD;
+
+	/**
+	 * the stream used to send the 100 Continue response, can be null
+	 */
+	private OutputStream _interim = null;
+
+	/**
+	 * true when the client asked for a 100 Continue that was not sent yet
+	 */
+	private boolean _continuePending = false;
+
+	/**
+	 * the size of the body given by the Content-Length, 0 without one
+	 */
+	private long _contentLength = 0;
+
+	/**
+	 * true when the last coding of the Transfer-Encoding is chunked
+	 */
+	private boolean _chunked = false;
+
+	/**
+	 * why the end of the body cannot be known, null when the framing is valid
+	 */
+	private String _framingError = null;
+
+	/**
+	 * Create a parser for a connection
+	 * @param input the stream of the client connection
+	 */
+	public HTTPRequestParser(InputStream input) {
+		_input = input;
+		_buffer = new byte[DEFAULT_BUFFER_SIZE];
+	}
+
+	/**
+	 * Create a parser for a connection that answers "Expect: 100-continue"
+	 * @param input the stream of the client connection
+	 * @param interim the stream used to send the 100 Continue response, it must
+	 * write directly to the client
+	 */
+	public HTTPRequestParser(InputStream input, OutputStream interim) {
+		this(input);
+		_interim = interim;
+	}
+
+	/**
+	 * Create a parser for a connection with a limit on the header size
+	 * @param input the stream of the client connection
+	 * @param maxHeaderSize the maximum size of the request line and header fields, in bytes
+	 */
+	public HTTPRequestParser(InputStream input, int maxHeaderSize) {
+		this(input);
+		_maxHeaderSize = maxHeaderSize;
+	}
+
+	/**
+	 * Read the next request of the connection. The bytes of the previous request
+	 * are discarded, its unread body is skipped.
+	 * @return true if a request was read, false if the connection is closed or the
+	 * previous body cannot be skipped
+	 * @throws IOException if the stream fails or the header is too large
+	 */
+	public boolean parseNext() throws IOException {
+
+		if (_headerCount > 0 && !skipBody()) {
+			return false;
+		}
+
+		compact();
+		_headerCount = 0;
+		_bodyStart = 0;
+		_body = null;
+		_continuePending = false;
+
+		// skip the empty lines some clients send between two requests
+		int position = 0;
+		do {
+			while (position < _limit && (_buffer[position] == '\r' || _buffer[position] == '\n')) {
+				position++;
+			}
+		} while (position == _limit && fill());
+
+		if (position == _limit) {
+			return false;
+		}
+
+		// wait for the empty line that ends the header
+		int headerEnd = -1;
+		int scanned = position;
+		while ((headerEnd = findHeaderEnd(scanned)) < 0) {
+			scanned = Math.max(position, _limit - 2);
+			if (_limit - position >= _maxHeaderSize) {
+				throw new IOException("Request header larger than " + _maxHeaderSize + " bytes");
+			}
+			if (!fill()) {
+				return false;
+			}
+		}
+
+		int lineEnd = parseRequestLine(position, headerEnd);
+		parseHeaderFields(lineEnd, headerEnd);
+		indexHeaderFields();
+		readFraming();
+
+		// the body follows the header, it is read on demand
+		_bodyStart = _consumed = headerEnd;
+		int expect = _known[HTTPHeaders.EXPECT];
+		_continuePending = expect >= 0 && containsIgnoreCase(getHeaderValueStart(expect), getHeaderValueEnd(expect), "100-continue");
+		return true;
+	}
+
+	/**
+	 * Finish the current request without reading the next one: its unread body is
+	 * skipped and the bytes received after it are returned. The connection can then
+	 * wait for its next request without the parser.
+	 * @return the bytes of the next requests already received, null if the body
+	 * cannot be skipped and the connection must be closed
+	 * @throws IOException if the stream fails
+	 */
+	public byte[] detach() throws IOException {
+		if (_headerCount > 0 && !skipBody()) {
+			return null;
+		}
+		_headerCount = 0;
+		return Arrays.copyOfRange(_buffer, _consumed, _limit);
+	}
+
+	/**
+	 * Open the body of the current request. If the client waits for a 100 Continue,
+	 * it is sent now. The stream ends with the body, it never reads the next request.
+	 * @return the body, the same stream on every call
+	 * @throws IOException if the body is larger than the maximum body size
+	 */
+	public InputStream openBody() throws IOException {
+		if (_body == null) {
+			if (isChunked()) {
+				_body = new ChunkedInputStream(new RawInputStream(), _maxBodySize);
+			}
+			else {
+				long length = getContentLength();
+				if (_maxBodySize >= 0 && length > _maxBodySize) {
+					throw new IOException("Request body larger than " + _maxBodySize + " bytes");
+				}
+				_body = new FixedLengthInputStream(new RawInputStream(), length);
+			}
+
+			if (_continuePending && hasBody()) {
+				sendContinue();
+			}
+		}
+		return _body;
+	}
+
+	/**
+	 * the Content-Length of the request
+	 * @return the body size, 0 if the field is missing or the framing is invalid, -1 if
+	 * the body is chunked
+	 */
+	public long getContentLength() {
+		return _chunked ? -1 : _contentLength;
+	}
+
+	/**
+	 * determine if the body is sent with "Transfer-Encoding: chunked"
+	 * @return true if the last coding of the Transfer-Encoding is chunked
+	 */
+	public boolean isChunked() {
+		return _chunked;
+	}
+
+	/**
+	 * Tell why the end of the body of the current request cannot be known. Such a
+	 * request must be answered with a 400 and its connection closed: reading it one
+	 * way when a proxy in front reads it another would take a part of the body for
+	 * the next request.
+	 * @return the reason, null when the framing is valid
+	 */
+	public String getFramingError() {
+		return _framingError;
+	}
+
+	/**
+	 * determine if the current request has a body
+	 * @return true if the body is chunked or its Content-Length is positive
+	 */
+	public boolean hasBody() {
+		return getContentLength() != 0;
+	}
+
+	/**
+	 * set the maximum size of a body, a larger body fails with an IOException
+	 * @param size the size in bytes, -1 for no limit
+	 */
+	public void setMaxBodySize(long size) {
+		_maxBodySize = size;
+	}
+
+	/**
+	 * the maximum size of a body
+	 * @return the size in bytes, -1 for no limit
+	 */
+	public long getMaxBodySize() {
+		return _maxBodySize;
+	}
+
+	/**
+	 * set the maximum number of unread body bytes skipped to keep the connection
+	 * open, a larger unread body closes it
+	 * @param size the size in bytes
+	 */
+	public void setMaxDrainSize(int size) {
+		_maxDrainSize = size;
+	}
+
+	/**
+	 * set the number of body bytes kept in memory when the whole body is read, a
+	 * larger body is written to a temporary file
+	 * @param threshold the size in bytes
+	 */
+	public void setSpoolThreshold(int threshold) {
+		_spoolThreshold = threshold;
+	}
+
+	/**
+	 * the number of body bytes kept in memory when the whole body is read
+	 * @return the size in bytes
+	 */
+	public int getSpoolThreshold() {
+		return _spoolThreshold;
+	}
+
+	/**
+	 * the receive buffer that contains the bytes of the request
+	 * @return the buffer, the offsets returned by this parser point in it
+	 */
+	public byte[] getBuffer() {
+		return _buffer;
+	}
+
+	/*
+	 * the offsets of the request line, the end offsets are exclusive
+	 */
+	
+	public int getMethodStart() {
+		return _methodStart;
+	}
+
+	public int getMethodEnd() {
+		return _methodEnd;
+	}
+
+	public int getURIStart() {
+		return _uriStart;
+	}
+
+	public int getURIEnd() {
+		return _uriEnd;
+	}
+
+	public int getVersionStart() {
+		return _versionStart;
+	}
+
+	public int getVersionEnd() {
+		return _versionEnd;
+	}
+
+	/**
+	 * the number of header fields of the request
+	 * @return the number of fields
+	 */
+	public int getHeaderCount() {
+		return _headerCount;
+	}
+
+	/*
+	 * the offsets of the header field at index i, the end offsets are exclusive
+	 */
+	
+	public int getHeaderNameStart(int i) {
+		return _headers[i * 4];
+	}
+
+	public int getHeaderNameEnd(int i) {
+		return _headers[i * 4 + 1];
+	}
+
+	public int getHeaderValueStart(int i) {
+		return _headers[i * 4 + 2];
+	}
+
+	public int getHeaderValueEnd(int i) {
+		return _headers[i * 4 + 3];
+	}
+
+	/**
+	 * find a header field by its name, the case is ignored. When a field is sent
+	 * more than once, the first one is returned.
+	 * @param name the field name
+	 * @return the index of the field, -1 if the request does not have it
+	 */
+	public int findHeader(String name) {
+		int hash = hashIgnoreCase(name);
+		int mask = _index.length - 1;
+		for (int slot = hash & mask; _index[slot] != 0; slot = (slot + 1) & mask) {
+			int i = _index[slot] - 1;
+			if (_hashes[i] == hash && equalsIgnoreCase(getHeaderNameStart(i), getHeaderNameEnd(i), name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * find a well-known header field
+	 * @param slot the slot of the field, one of the HTTPHeaders constants
+	 * @return the index of the field, -1 if the request does not have it
+	 */
+	public int getKnownHeader(int slot) {
+		return _known[slot];
+	}
+
+	/**
+	 * compare a range of the buffer with an ASCII string, the case is ignored
+	 * @param start the start of the range
+	 * @param end the end of the range, exclusive
+	 * @param s the string
+	 * @return true if the range and the string are equal
+	 */
+	public boolean equalsIgnoreCase(int start, int end, String s) {
+		if (end - start != s.length()) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			if (toLowerCase(_buffer[i]) != toLowerCase(s.charAt(i - start))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * search for an ASCII token in a range of the buffer, the case is ignored
+	 * @param start the start of the range
+	 * @param end the end of the range, exclusive
+	 * @param token the token, in lower case
+	 * @return true if the range contains the token
+	 */
+	public boolean containsIgnoreCase(int start, int end, String token) {
+		int length = token.length();
+		for (int i = start; i <= end - length; i++) {
+			int j = 0;
+			while (j < length && toLowerCase(_buffer[i + j]) == token.charAt(j)) {
+				j++;
+			}
+			if (j == length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * parse a decimal number from a range of the buffer
+	 * @param start the start of the range
+	 * @param end the end of the range, exclusive
+	 * @return the number, -1 if the range is not a valid number
+	 */
+	public long parseLong(int start, int end) {
+		if (start >= end) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			byte b = _buffer[i];
+			if (b < '0' || b > '9' || value > Long.MAX_VALUE / 10) {
+				return -1;
+			}
+			value = value * 10 + (b - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * read how the body of the current request ends. Every Content-Length must be a
+	 * number and the same one, a Transfer-Encoding must end with chunked and cannot
+	 * come with a Content-Length.
+	 */
+	private void readFraming() {
+		_contentLength = 0;
+		_chunked = false;
+		_framingError = null;
+
+		int transferEncoding = -1;
+		boolean hasLength = false;
+		for (int i = 0; i < _headerCount; i++) {
+			int nameStart = getHeaderNameStart(i), nameEnd = getHeaderNameEnd(i);
+			if (equalsIgnoreCase(nameStart, nameEnd, "Content-Length")) {
+				long length = parseLong(getHeaderValueStart(i), getHeaderValueEnd(i));
+				if (length < 0) {
+					_framingError = "Invalid Content-Length";
+					return;
+				}
+				if (hasLength && length != _contentLength) {
+					_framingError = "Conflicting Content-Length fields";
+					return;
+				}
+				hasLength = true;
+				_contentLength = length;
+			}
+			else if (equalsIgnoreCase(nameStart, nameEnd, "Transfer-Encoding")) {
+				transferEncoding = i;
+			}
+		}
+
+		if (transferEncoding >= 0) {
+			if (hasLength) {
+				_framingError = "Transfer-Encoding with a Content-Length";
+				_contentLength = 0;
+				return;
+			}
+			// the codings are applied in order, the last one must be chunked
+			int start = getHeaderValueStart(transferEncoding);
+			int end = getHeaderValueEnd(transferEncoding);
+			int coding = end;
+			while (coding > start && _buffer[coding - 1] != ',') {
+				coding--;
+			}
+			while (coding < end && (_buffer[coding] == ' ' || _buffer[coding] == '\t')) {
+				coding++;
+			}
+			if (!equalsIgnoreCase(coding, end, "chunked")) {
+				_framingError = "Transfer-Encoding does not end with chunked";
+				return;
+			}
+			_chunked = true;
+		}
+	}
+
+	/**
+	 * convert an ASCII byte to lower case
+	 * @param b the byte
+	 * @return the lower case character
+	 */
+	private static char toLowerCase(byte b) {
+		return toLowerCase((char)(b & 0xFF));
+	}
+
+	/**
+	 * convert an ASCII character to lower case
+	 * @param c the character
+	 * @return the lower case character
+	 */
+	private static char toLowerCase(char c) {
+		if (c >= 'A' && c <= 'Z') {
+			return (char)(c + ('a' - 'A'));
+		}
+		return c;
+	}
+
+	/**
+	 * the hash of a name in lower case, the same as String.hashCode() of the lower case name
+	 * @param name the name
+	 * @return the hash
+	 */
+	private static int hashIgnoreCase(String name) {
+		int hash = 0;
+		for (int i = 0; i < name.length(); i++) {
+			hash = 31 * hash + toLowerCase(name.charAt(i));
+		}
+		return hash;
+	}
+
+	/**
+	 * the hash of a name in lower case, from a range of the buffer
+	 * @return the hash
+	 */
+	private int hashIgnoreCase(int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + toLowerCase(_buffer[i]);
+		}
+		return hash;
+	}
+
+	/**
+	 * build the hash table of the header fields and record the well-known ones
+	 */
+	private void indexHeaderFields() {
+		if (_hashes.length < _headerCount) {
+			_hashes = new int[_headers.length / 4];
+		}
+		if (_index.length < _headerCount * 2) {
+			_index = new int[Integer.highestOneBit(_headerCount * 2) << 1];
+		}
+		else {
+			Arrays.fill(_index, 0);
+		}
+
+		int mask = _index.length - 1;
+		for (int i = 0; i < _headerCount; i++) {
+			_hashes[i] = hashIgnoreCase(getHeaderNameStart(i), getHeaderNameEnd(i));
+			int slot = _hashes[i] & mask;
+			while (_index[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			_index[slot] = i + 1;
+		}
+
+		for (int slot = 0; slot < HTTPHeaders.COUNT; slot++) {
+			_known[slot] = findHeader(HTTPHeaders.getName(slot));
+		}
+	}
+
+	/**
+	 * record the offsets of the method, the URI and the version
+	 * @param position the start of the request line
+	 * @param headerEnd the end of the header
+	 * @return the offset of the line after the request line
+	 */
+	private int parseRequestLine(int position, int headerEnd) {
+		int eol = findEndOfLine(position, headerEnd);
+		int lineEnd = trimLineEnd(position, eol);
+
+		_methodStart = position;
+		_methodEnd = indexOf((byte)' ', position, lineEnd);
+
+		_uriStart = Math.min(_methodEnd + 1, lineEnd);
+		_uriEnd = indexOf((byte)' ', _uriStart, lineEnd);
+
+		_versionStart = Math.min(_uriEnd + 1, lineEnd);
+		_versionEnd = lineEnd;
+
+		return eol + 1;
+	}
+
+	/**
+	 * record the offsets of the name and value of every header field
+	 * @param position the start of the first field
+	 * @param headerEnd the end of the header
+	 */
+	private void parseHeaderFields(int position, int headerEnd) {
+
+		while (position < headerEnd) {
+			int eol = findEndOfLine(position, headerEnd);
+			int lineEnd = trimLineEnd(position, eol);
+
+			if (lineEnd > position) {
+
+				// a line starting with a space continues the previous value
+				if ((_buffer[position] == ' ' || _buffer[position] == '\t') && _headerCount > 0) {
+					_headers[(_headerCount - 1) * 4 + 3] = lineEnd;
+				}
+				else {
+					int colon = indexOf((byte)':', position, lineEnd);
+					int valueStart = Math.min(colon + 1, lineEnd);
+					while (valueStart < lineEnd && (_buffer[valueStart] == ' ' || _buffer[valueStart] == '\t')) {
+						valueStart++;
+					}
+					addHeader(position, colon, valueStart, lineEnd);
+				}
+			}
+			position = eol + 1;
+		}
+	}
+
+	/**
+	 * add the offsets of a header field, the table grows when it is full
+	 */
+	private void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+		if ((_headerCount + 1) * 4 > _headers.length) {
+			int[] larger = new int[_headers.length * 2];
+			System.arraycopy(_headers, 0, larger, 0, _headers.length);
+			_headers = larger;
+		}
+		int i = _headerCount * 4;
+		_headers[i] = nameStart;
+		_headers[i + 1] = nameEnd;
+		_headers[i + 2] = valueStart;
+		_headers[i + 3] = valueEnd;
+		_headerCount++;
+	}
+
+	/**
+	 * search for the empty line that ends the header
+	 * @param from the offset where the search starts
+	 * @return the offset of the first byte after the empty line, -1 if not received yet
+	 */
+	private int findHeaderEnd(int from) {
+		for (int i = Math.max(from, 1); i < _limit; i++) {
+			if (_buffer[i] == '\n') {
+				if (_buffer[i - 1] == '\n' || (i > 1 && _buffer[i - 1] == '\r' && _buffer[i - 2] == '\n')) {
+					return i + 1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * find the line feed that ends a line
+	 * @return the offset of the line feed, or the end if there is none
+	 */
+	private int findEndOfLine(int from, int end) {
+		return indexOf((byte)'\n', from, end);
+	}
+
+	/**
+	 * remove the carriage return and the trailing spaces of a line
+	 * @return the end of the line content, exclusive
+	 */
+	private int trimLineEnd(int start, int end) {
+		while (end > start && (_buffer[end - 1] == '\r' || _buffer[end - 1] == ' ' || _buffer[end - 1] == '\t')) {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * find a byte in a range of the buffer
+	 * @return the offset of the byte, or the end of the range if it is not found
+	 */
+	private int indexOf(byte b, int from, int end) {
+		for (int i = from; i < end; i++) {
+			if (_buffer[i] == b) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * move the bytes of the next request at the start of the buffer
+	 */
+	private void compact() {
+		if (_consumed > 0) {
+			System.arraycopy(_buffer, _consumed, _buffer, 0, _limit - _consumed);
+			_limit -= _consumed;
+			_consumed = 0;
+		}
+	}
+
+	/**
+	 * read more bytes from the stream, the buffer grows when it is full
+	 * @return false if the stream is closed
+	 * @throws IOException if the stream fails
+	 */
+	private boolean fill() throws IOException {
+		if (_limit == _buffer.length) {
+			byte[] larger = new byte[_buffer.length * 2];
+			System.arraycopy(_buffer, 0, larger, 0, _limit);
+			_buffer = larger;
+		}
+
+		int read = _input.read(_buffer, _limit, _buffer.length - _limit);
+		if (read < 0) {
+			return false;
+		}
+		_limit += read;
+		return true;
+	}
+
+	/**
+	 * skip the body of the current request that the handler did not read
+	 * @return false if the body is too large to be skipped, the connection must be closed
+	 * @throws IOException if the stream fails
+	 */
+	private boolean skipBody() throws IOException {
+		if (!hasBody()) {
+			return true;
+		}
+		// the client did not send a body it was never asked for
+		if (_continuePending && _body == null) {
+			return false;
+		}
+
+		InputStream body = openBody();
+		if (_skipped == null) {
+			_skipped = new byte[DEFAULT_BUFFER_SIZE];
+		}
+		long total = 0;
+		int read = 0;
+		while ((read = body.read(_skipped, 0, _skipped.length)) != -1) {
+			total += read;
+			if (total > _maxDrainSize) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * send the 100 Continue response, once
+	 * @throws IOException if the stream fails
+	 */
+	private void sendContinue() throws IOException {
+		_continuePending = false;
+		if (_interim != null) {
+			_interim.write(CONTINUE_RESPONSE);
+			_interim.flush();
+		}
+	}
+
+	/**
+	 * read bytes that follow the header, the bytes already in the buffer come first
+	 * @param b the destination
+	 * @param off the offset in the destination
+	 * @param len the maximum number of bytes
+	 * @return the number of bytes read, -1 if the stream is closed
+	 * @throws IOException if the stream fails
+	 */
+	private int readRaw(byte[] b, int off, int len) throws IOException {
+		if (_consumed == _limit) {
+			// a large read goes directly to the destination
+			if (len >= _buffer.length - _bodyStart) {
+				return _input.read(b, off, len);
+			}
+			// the body bytes already read are replaced, the header stays
+			_limit = _consumed = _bodyStart;
+			if (!fill()) {
+				return -1;
+			}
+		}
+		int read = Math.min(len, _limit - _consumed);
+		System.arraycopy(_buffer, _consumed, b, off, read);
+		_consumed += read;
+		return read;
+	}
+
+	/**
+	 * The bytes of the connection after the header
+	 */
+	private class RawInputStream extends InputStream {
+
+		/**
+		 * the buffer of read() when the receive buffer is empty
+		 */
+		private byte[] _single = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			// a byte already received is read from the receive buffer
+			if (_consumed < _limit) {
+				return _buffer[_consumed++] & 0xFF;
+			}
+			int read = readRaw(_single, 0, 1);
+			return read < 0 ? -1 : _single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			return readRaw(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return _limit - _consumed;
+		}
+	}
+
+	/**
+	 * A body with a Content-Length, it ends after that number of bytes
+	 */
+	private static class FixedLengthInputStream extends InputStream {
+
+		/**
+		 * the bytes of the connection
+		 */
+		private InputStream _source = null;
+
+		/**
+		 * the number of bytes left in the body
+		 */
+		private long _remaining = 0;
+
+		/**
+		 * the buffer of read(), kept for every byte
+		 */
+		private byte[] _single = new byte[1];
+
+		/**
+		 * default constructor
+		 * @param source the stream positioned on the body
+		 * @param length the size of the body
+		 */
+		public FixedLengthInputStream(InputStream source, long length) {
+			_source = source;
+			_remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = read(_single, 0, 1);
+			return read < 0 ? -1 : _single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (_remaining == 0) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			int read = _source.read(b, off, (int)Math.min(len, _remaining));
+			if (read < 0) {
+				throw new IOException("Connection closed before the end of the body");
+			}
+			_remaining -= read;
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(_remaining, _source.available());
+		}
+	}
+}
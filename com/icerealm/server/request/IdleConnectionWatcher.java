@@ -0,0 +1,22 @@
+package com.icerealm.server.request;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * Keeps the persistent connections that wait for their next request, without a
+ * worker. A handler gives a connection back once its response is written, the
+ * connection is given to a worker again when its next request is received.
+ * @author punisher
+ *
+ */
+public interface IdleConnectionWatcher {
+
+	/**
+	 * Watch a connection until its next request is received
+	 * @param channel the channel of the connection, in blocking mode
+	 * @param pending the bytes of the next requests already received, can be empty
+	 * @param requestCount the number of requests the connection served
+	 * @param idleTimeout the time the connection can wait for its next request, in ms
+	 */
+	public void watch(SocketChannel channel, byte[] pending, int requestCount, long idleTimeout);
+}
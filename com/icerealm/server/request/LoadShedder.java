@@ -0,0 +1,227 @@
+package com.icerealm.server.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.icerealm.server.stats.LoadSheddingStatistic;
+
+/**
+ * Answers the connections that the server cannot handle in time with a 503 Service 
+ * Unavailable. The response is built once, so shedding a connection costs a single
+ * write and a shutdown of the output on the thread that accepts the connections. The
+ * rest of the request is then discarded and the socket closed by a small pool of
+ * drainer threads, a connection is closed at once when the pool is saturated.
+ * @author punisher
+ *
+ */
+public class LoadShedder {
+
+	/**
+	 * default logger
+	 */
+	private static final Logger LOGGER = Logger.getLogger("Icerealm");
+	
+	/**
+	 * the time a read waits for the rest of a shed request, in ms
+	 */
+	private static final int DRAIN_TIMEOUT = 100;
+	
+	/**
+	 * the maximum number of request bytes discarded before a shed connection is closed
+	 */
+	private static final int MAX_DRAIN_SIZE = 16384;
+	
+	/**
+	 * the number of threads that drain the shed connections
+	 */
+	private static final int DRAINERS = 2;
+	
+	/**
+	 * the maximum number of shed connections waiting for a drainer
+	 */
+	private static final int MAX_DRAIN_QUEUE = 256;
+	
+	/**
+	 * the 503 response sent to the shed connections
+	 */
+	private byte[] _response = null;
+	
+	/**
+	 * the maximum time a connection waits in the queue, in ms. 0 means no limit
+	 */
+	private long _queueTimeout = 0;
+	
+	/**
+	 * the counters of accepted and shed connections
+	 */
+	private LoadSheddingStatistic _statistic = null;
+	
+	/**
+	 * the threads that drain and close the shed connections, created on first use
+	 */
+	private ThreadPoolExecutor _drainer = null;
+	
+	/**
+	 * Build the 503 response once
+	 * @param retryAfter the number of seconds sent in the Retry-After field
+	 * @param queueTimeout the maximum time a connection waits in the queue, in ms. 0 means no limit
+	 * @param statistic the counters to update
+	 */
+	public LoadShedder(int retryAfter, long queueTimeout, LoadSheddingStatistic statistic) {
+		String body = "Error 503 Service Unavailable\nServer is busy, retry later";
+		_response = ("HTTP/1.1 503 Service Unavailable\r\n" +
+					 "Retry-After: " + retryAfter + "\r\n" +
+					 "Content-Type: text/plain\r\n" +
+					 "Content-Length: " + body.length() + "\r\n" +
+					 "Connection: close\r\n" +
+					 "\r\n" + body).getBytes();
+		_queueTimeout = queueTimeout;
+		_statistic = statistic;
+	}
+	
+	/**
+	 * determine if a connection waited too long in the queue
+	 * @param queuedAt the time the connection entered the queue, in ms
+	 * @return true if the deadline is passed
+	 */
+	public boolean isExpired(long queuedAt) {
+		return _queueTimeout > 0 && System.currentTimeMillis() - queuedAt > _queueTimeout;
+	}
+	
+	/**
+	 * record a connection given to a worker
+	 */
+	public void accepted() {
+		_statistic.accepted();
+	}
+	
+	/**
+	 * answer a connection refused because the queue is full
+	 * @param s the client socket
+	 */
+	public void reject(Socket s) {
+		_statistic.rejected();
+		shed(s);
+	}
+	
+	/**
+	 * answer a connection that waited past the deadline
+	 * @param s the client socket
+	 */
+	public void expire(Socket s) {
+		_statistic.expired();
+		shed(s);
+	}
+	
+	/**
+	 * return the counters of accepted and shed connections
+	 * @return the statistic
+	 */
+	public LoadSheddingStatistic getStatistic() {
+		return _statistic;
+	}
+	
+	/**
+	 * write the 503 response and close the connection. The request is not read: closing
+	 * a socket with unread bytes sends a reset that can discard the 503 before the client
+	 * reads it. The output is shut down here, the drainers discard the request for a short
+	 * time, until the client closes its side, and close the socket.
+	 * @param s the client socket
+	 */
+	private void shed(final Socket s) {
+		try {
+			OutputStream out = s.getOutputStream();
+			out.write(_response);
+			out.flush();
+			s.shutdownOutput();
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.FINE, "Could not send the 503 response: " + ex.getMessage());
+			close(s);
+			return;
+		}
+		
+		try {
+			getDrainer().execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						drain(s);
+					}
+					finally {
+						close(s);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException ex) {
+			// too many connections shed at once, the client may get a reset
+			close(s);
+		}
+	}
+	
+	/**
+	 * return the drainer threads, they are created on first use and stop when idle
+	 * @return the executor
+	 */
+	private synchronized ThreadPoolExecutor getDrainer() {
+		if (_drainer == null) {
+			_drainer = new ThreadPoolExecutor(DRAINERS, DRAINERS, 30, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(MAX_DRAIN_QUEUE), new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Icerealm-shed-drainer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			_drainer.allowCoreThreadTimeOut(true);
+		}
+		return _drainer;
+	}
+	
+	/**
+	 * discard the bytes of the request, until the client closes, a read times out or
+	 * MAX_DRAIN_SIZE bytes are read
+	 * @param s the client socket, its output is shut down
+	 */
+	private static void drain(Socket s) {
+		try {
+			s.setSoTimeout(DRAIN_TIMEOUT);
+			InputStream in = s.getInputStream();
+			byte[] discarded = new byte[2048];
+			int total = 0;
+			int read = 0;
+			while (total < MAX_DRAIN_SIZE && (read = in.read(discarded)) != -1) {
+				total += read;
+			}
+		}
+		catch (IOException ex) {
+			// the client is slow or gone, the connection is closed anyway
+			LOGGER.log(Level.FINEST, "Stop draining a shed connection: " + ex.getMessage());
+		}
+	}
+	
+	/**
+	 * close a shed connection
+	 * @param s the client socket
+	 */
+	private static void close(Socket s) {
+		try {
+			s.close();
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.FINE, "Problem while closing a shed connection", ex);
+		}
+	}
+}
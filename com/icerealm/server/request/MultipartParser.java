@@ -0,0 +1,404 @@
+package com.icerealm.server.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads a multipart/form-data body one part at a time. The body is read through a
+ * buffer of fixed size, the boundary is searched in that buffer, so an upload of
+ * any size is read in constant memory. The content of a part is read with the
+ * stream of the MultipartPart, the part nobody read is skipped by nextPart().
+ * A typical use in a handler:
+ *
+ * MultipartParser parser = new MultipartParser(request);
+ * for (MultipartPart part = parser.nextPart(); part != null; part = parser.nextPart()) {
+ *     ...
+ * }
+ * @author punisher
+ *
+ */
+public class MultipartParser {
+
+	/**
+	 * the minimum size of the buffer
+	 */
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * the default maximum size of the header fields of a part
+	 */
+	private static final int DEFAULT_MAX_HEADER_SIZE = 8192;
+
+	/**
+	 * the body
+	 */
+	private InputStream _input = null;
+
+	/**
+	 * the line that separates two parts, with the line break that precedes it
+	 */
+	private byte[] _delimiter = null;
+
+	/**
+	 * the buffer through which the body is read
+	 */
+	private byte[] _buffer = null;
+
+	/**
+	 * the offset of the first unread byte in the buffer
+	 */
+	private int _position = 0;
+
+	/**
+	 * the number of valid bytes in the buffer
+	 */
+	private int _limit = 0;
+
+	/**
+	 * the number of the current part, the stream of an older part is closed
+	 */
+	private int _partNumber = 0;
+
+	/**
+	 * true when the content of the current part is read up to the delimiter
+	 */
+	private boolean _partEnded = false;
+
+	/**
+	 * true once the closing delimiter is read
+	 */
+	private boolean _finished = false;
+
+	/**
+	 * the maximum size of the content of a part, -1 for no limit
+	 */
+	private long _maxPartSize = -1;
+
+	/**
+	 * the maximum size of the header fields of a part
+	 */
+	private int _maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+
+	/**
+	 * the buffer the unread parts are skipped into, created by the first one
+	 */
+	private byte[] _skipped = null;
+
+	/**
+	 * Read the multipart body of a request
+	 * @param request the request, its Content-Type gives the boundary
+	 * @throws IOException if the request is not multipart or its body cannot be opened
+	 */
+	public MultipartParser(RequestEntireContent request) throws IOException {
+		this(request.getBodyStream(), getBoundary(request.getHeader(HTTPHeaders.CONTENT_TYPE)));
+	}
+
+	/**
+	 * Read a multipart body
+	 * @param input the body
+	 * @param boundary the boundary parameter of the Content-Type
+	 */
+	public MultipartParser(InputStream input, String boundary) {
+		_input = input;
+		_delimiter = ("\r\n--" + boundary).getBytes();
+		_buffer = new byte[Math.max(DEFAULT_BUFFER_SIZE, _delimiter.length * 4)];
+
+		// the first delimiter is not preceded by a line break, one is added so
+		// the preamble is skipped like the content of a part
+		_buffer[0] = '\r';
+		_buffer[1] = '\n';
+		_limit = 2;
+	}
+
+	/**
+	 * determine if a request has a multipart/form-data body
+	 * @param request the request
+	 * @return true if the Content-Type is multipart with a boundary
+	 */
+	public static boolean isMultipart(RequestEntireContent request) {
+		String type = request.getHeader(HTTPHeaders.CONTENT_TYPE);
+		return type != null && type.toLowerCase().startsWith("multipart/") && getBoundaryParameter(type) != null;
+	}
+
+	/**
+	 * set the maximum size of the content of a part, reading a larger part fails
+	 * with an IOException
+	 * @param size the size in bytes, -1 for no limit
+	 */
+	public void setMaxPartSize(long size) {
+		_maxPartSize = size;
+	}
+
+	/**
+	 * set the maximum size of the header fields of a part
+	 * @param size the size in bytes
+	 */
+	public void setMaxHeaderSize(int size) {
+		_maxHeaderSize = size;
+	}
+
+	/**
+	 * Move to the next part, the rest of the current part is skipped
+	 * @return the next part, null after the last one
+	 * @throws IOException if the body is not a valid multipart body
+	 */
+	public MultipartPart nextPart() throws IOException {
+		if (_finished) {
+			return null;
+		}
+
+		// skipping what the handler did not read
+		if (_skipped == null) {
+			_skipped = new byte[DEFAULT_BUFFER_SIZE];
+		}
+		while (readPart(_skipped, 0, _skipped.length) != -1) {
+			// content ignored
+		}
+
+		// the delimiter is followed by "--" for the last part, or a line break
+		ensure(_delimiter.length + 2);
+		_position += _delimiter.length;
+		if (_buffer[_position] == '-' && _buffer[_position + 1] == '-') {
+			_finished = true;
+			return null;
+		}
+		readLine();
+
+		Map<String, String> headers = readHeaders();
+		_partNumber++;
+		_partEnded = false;
+		return new MultipartPart(headers, new PartInputStream(_partNumber));
+	}
+
+	/**
+	 * extract the boundary of a Content-Type
+	 * @param contentType the Content-Type of the request
+	 * @return the boundary
+	 * @throws IOException if the Content-Type is not multipart
+	 */
+	private static String getBoundary(String contentType) throws IOException {
+		String boundary = null;
+		if (contentType != null && contentType.toLowerCase().startsWith("multipart/")) {
+			boundary = getBoundaryParameter(contentType);
+		}
+		if (boundary == null) {
+			throw new IOException("Request is not multipart: " + contentType);
+		}
+		return boundary;
+	}
+
+	/**
+	 * extract the value of the boundary parameter
+	 * @param contentType the Content-Type of the request
+	 * @return the boundary, null if there is none
+	 */
+	private static String getBoundaryParameter(String contentType) {
+		int start = contentType.toLowerCase().indexOf("boundary=");
+		if (start < 0) {
+			return null;
+		}
+		String boundary = contentType.substring(start + "boundary=".length());
+		int end = boundary.indexOf(';');
+		if (end >= 0) {
+			boundary = boundary.substring(0, end);
+		}
+		boundary = boundary.trim();
+		if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+			boundary = boundary.substring(1, boundary.length() - 1);
+		}
+		return boundary.isEmpty() ? null : boundary;
+	}
+
+	/**
+	 * read the header fields of a part, up to the empty line
+	 * @return the fields, by name in lower case
+	 * @throws IOException if the fields are too large or the body ends
+	 */
+	private Map<String, String> readHeaders() throws IOException {
+		Map<String, String> headers = new HashMap<String, String>();
+		int size = 0;
+		String line = null;
+		while (!(line = readLine()).isEmpty()) {
+			size += line.length();
+			if (size > _maxHeaderSize) {
+				throw new IOException("Part header larger than " + _maxHeaderSize + " bytes");
+			}
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * read a line of the body, the line break is removed
+	 * @return the line, decoded as UTF-8
+	 * @throws IOException if the line is longer than the buffer or the body ends
+	 */
+	private String readLine() throws IOException {
+		int scanned = _position;
+		while (true) {
+			for (int i = scanned; i < _limit; i++) {
+				if (_buffer[i] == '\n') {
+					int end = i > _position && _buffer[i - 1] == '\r' ? i - 1 : i;
+					String line = new String(_buffer, _position, end - _position, "UTF-8");
+					_position = i + 1;
+					return line;
+				}
+			}
+			if (_position == 0 && _limit == _buffer.length) {
+				throw new IOException("Multipart line longer than " + _buffer.length + " bytes");
+			}
+			scanned = _limit - _position;
+			if (!fill()) {
+				throw new IOException("Multipart body ended in a part header");
+			}
+		}
+	}
+
+	/**
+	 * read the content of the current part, it ends before the delimiter
+	 * @param b the destination
+	 * @param off the offset in the destination
+	 * @param len the maximum number of bytes
+	 * @return the number of bytes read, -1 at the end of the part
+	 * @throws IOException if the body ends before the closing delimiter
+	 */
+	private int readPart(byte[] b, int off, int len) throws IOException {
+		if (_partEnded) {
+			return -1;
+		}
+
+		while (true) {
+			int delimiter = findDelimiter();
+			if (delimiter == _position) {
+				_partEnded = true;
+				return -1;
+			}
+
+			// the bytes that cannot be the start of a delimiter are safe to return
+			int available = delimiter >= 0 ? delimiter - _position : _limit - _position - (_delimiter.length - 1);
+			if (available > 0) {
+				int read = Math.min(len, available);
+				System.arraycopy(_buffer, _position, b, off, read);
+				_position += read;
+				return read;
+			}
+
+			if (!fill()) {
+				throw new IOException("Multipart body ended before the closing boundary");
+			}
+		}
+	}
+
+	/**
+	 * search for the delimiter in the unread bytes of the buffer
+	 * @return the offset of the delimiter, -1 if it is not in the buffer
+	 */
+	private int findDelimiter() {
+		byte first = _delimiter[0];
+		int last = _limit - _delimiter.length;
+		for (int i = _position; i <= last; i++) {
+			if (_buffer[i] == first) {
+				int j = 1;
+				while (j < _delimiter.length && _buffer[i + j] == _delimiter[j]) {
+					j++;
+				}
+				if (j == _delimiter.length) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * make sure a number of unread bytes are in the buffer
+	 * @param count the number of bytes
+	 * @throws IOException if the body ends before
+	 */
+	private void ensure(int count) throws IOException {
+		while (_limit - _position < count) {
+			if (!fill()) {
+				throw new IOException("Multipart body ended before the closing boundary");
+			}
+		}
+	}
+
+	/**
+	 * move the unread bytes at the start of the buffer and read more bytes
+	 * @return false if the body ended
+	 * @throws IOException if the stream fails
+	 */
+	private boolean fill() throws IOException {
+		if (_position > 0) {
+			System.arraycopy(_buffer, _position, _buffer, 0, _limit - _position);
+			_limit -= _position;
+			_position = 0;
+		}
+
+		int read = _input.read(_buffer, _limit, _buffer.length - _limit);
+		if (read < 0) {
+			return false;
+		}
+		_limit += read;
+		return true;
+	}
+
+	/**
+	 * The content of a part, with the size limit of the parser
+	 */
+	private class PartInputStream extends InputStream {
+
+		/**
+		 * the number of the part, the stream ends once the parser moves to the next part
+		 */
+		private int _number = 0;
+
+		/**
+		 * the number of bytes read
+		 */
+		private long _size = 0;
+
+		/**
+		 * the buffer of read(), kept for every byte
+		 */
+		private byte[] _single = new byte[1];
+
+		/**
+		 * default constructor
+		 * @param number the number of the part
+		 */
+		public PartInputStream(int number) {
+			_number = number;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = read(_single, 0, 1);
+			return read < 0 ? -1 : _single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (_number != _partNumber) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+
+			int read = readPart(b, off, len);
+			if (read > 0) {
+				_size += read;
+				if (_maxPartSize >= 0 && _size > _maxPartSize) {
+					throw new IOException("Part larger than " + _maxPartSize + " bytes");
+				}
+			}
+			return read;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.icerealm.server.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * One part of a multipart/form-data body, returned by MultipartParser.nextPart().
+ * The content of the part is not in memory, it is read from the request with
+ * getInputStream(), which ends at the boundary of the part. The stream is valid
+ * until the next call to nextPart().
+ * @author punisher
+ *
+ */
+public class MultipartPart {
+
+	/**
+	 * the header fields of the part, by name in lower case
+	 */
+	private Map<String, String> _headers = null;
+
+	/**
+	 * the content of the part
+	 */
+	private InputStream _stream = null;
+
+	/**
+	 * default constructor
+	 * @param headers the header fields of the part, by name in lower case
+	 * @param stream the content of the part
+	 */
+	MultipartPart(Map<String, String> headers, InputStream stream) {
+		_headers = headers;
+		_stream = stream;
+	}
+
+	/**
+	 * Return the value of a header field of the part, like Content-Type
+	 * @param name the name of the field, the case is ignored
+	 * @return the value, null if the part does not have this field
+	 */
+	public String getHeader(String name) {
+		return _headers.get(name.toLowerCase());
+	}
+
+	/**
+	 * the name of the form field, from the Content-Disposition
+	 * @return the name, null if there is none
+	 */
+	public String getName() {
+		return getDispositionParameter("name");
+	}
+
+	/**
+	 * the name of the uploaded file, from the Content-Disposition
+	 * @return the file name as sent by the client, null if the part is not a file
+	 */
+	public String getFileName() {
+		return getDispositionParameter("filename");
+	}
+
+	/**
+	 * determine if the part is an uploaded file
+	 * @return true if the Content-Disposition has a file name
+	 */
+	public boolean isFile() {
+		return getFileName() != null;
+	}
+
+	/**
+	 * the type of the content of the part
+	 * @return the Content-Type of the part, text/plain if there is none
+	 */
+	public String getContentType() {
+		String type = getHeader("content-type");
+		return type != null ? type : "text/plain";
+	}
+
+	/**
+	 * the content of the part, it can be read once
+	 * @return a stream that ends at the boundary of the part
+	 */
+	public InputStream getInputStream() {
+		return _stream;
+	}
+
+	/**
+	 * Read the content of a form field as text. The part is read entirely in memory,
+	 * use getInputStream() for files.
+	 * @return the content, decoded as UTF-8
+	 * @throws IOException if the part cannot be read or is larger than the part limit
+	 */
+	public String getValue() throws IOException {
+		ByteArrayOutputStream value = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read = 0;
+		while ((read = _stream.read(buffer)) != -1) {
+			value.write(buffer, 0, read);
+		}
+		return value.toString("UTF-8");
+	}
+
+	/**
+	 * extract a parameter of the Content-Disposition field, like name="field"
+	 * @param parameter the name of the parameter
+	 * @return the value without the quotes, null if the field or the parameter is missing
+	 */
+	private String getDispositionParameter(String parameter) {
+		String disposition = getHeader("content-disposition");
+		if (disposition == null) {
+			return null;
+		}
+
+		// the parameters follow the type, separated by ';'. A quoted value can contain a ';'
+		int position = disposition.indexOf(';');
+		while (position >= 0 && position < disposition.length()) {
+			int equal = disposition.indexOf('=', position);
+			if (equal < 0) {
+				return null;
+			}
+			String name = disposition.substring(position + 1, equal).trim();
+
+			int end = 0;
+			String value = null;
+			if (equal + 1 < disposition.length() && disposition.charAt(equal + 1) == '"') {
+				end = disposition.indexOf('"', equal + 2);
+				if (end < 0) {
+					end = disposition.length();
+				}
+				value = disposition.substring(equal + 2, end);
+				end = disposition.indexOf(';', end);
+			}
+			else {
+				end = disposition.indexOf(';', equal);
+				value = disposition.substring(equal + 1, end < 0 ? disposition.length() : end).trim();
+			}
+
+			if (name.equalsIgnoreCase(parameter)) {
+				return value;
+			}
+			position = end;
+		}
+		return null;
+	}
+}
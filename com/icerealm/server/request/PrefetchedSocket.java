@@ -0,0 +1,272 @@
+package com.icerealm.server.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A Socket that replays the bytes already read from the client before reading
+ * from the real connection. It is used when the request was read ahead by a
+ * non-blocking reader and the Socket is given to a RequestHandler afterwards.
+ * Every call is delegated to the wrapped Socket. A socket of a watcher is given back
+ * to it between two requests, see getWatcher().
+ * @author punisher
+ *
+ */
+public class PrefetchedSocket extends Socket {
+
+	/**
+	 * the real client socket
+	 */
+	private Socket _socket = null;
+
+	/**
+	 * the bytes that were read before the socket was handed to the handler
+	 */
+	private byte[] _prefetched = null;
+
+	/**
+	 * the input stream, created once so the prefetched bytes are read only one time
+	 */
+	private InputStream _input = null;
+
+	/**
+	 * keeps the connection between two requests, null if the handler keeps it
+	 */
+	private IdleConnectionWatcher _watcher = null;
+
+	/**
+	 * the number of requests the connection served before
+	 */
+	private int _requestCount = 0;
+
+	/**
+	 * Wrap a connected socket with the bytes already read from it
+	 * @param socket the connected client socket, in blocking mode
+	 * @param prefetched the bytes read ahead, in the order they were received
+	 */
+	public PrefetchedSocket(Socket socket, byte[] prefetched) {
+		_socket = socket;
+		_prefetched = prefetched;
+	}
+
+	/**
+	 * Wrap a connected socket that is given back to a watcher between two requests
+	 * @param socket the connected client socket, in blocking mode
+	 * @param prefetched the bytes read ahead, in the order they were received
+	 * @param watcher keeps the connection while it waits for its next request
+	 * @param requestCount the number of requests the connection served before
+	 */
+	public PrefetchedSocket(Socket socket, byte[] prefetched, IdleConnectionWatcher watcher, int requestCount) {
+		this(socket, prefetched);
+		_watcher = watcher;
+		_requestCount = requestCount;
+	}
+
+	/**
+	 * return the watcher of the connection
+	 * @return the watcher, null if the handler keeps the connection between two requests
+	 */
+	public IdleConnectionWatcher getWatcher() {
+		return _watcher;
+	}
+
+	/**
+	 * return the number of requests the connection served before this socket
+	 * @return the number of requests
+	 */
+	public int getRequestCount() {
+		return _requestCount;
+	}
+
+	@Override
+	public synchronized InputStream getInputStream() throws IOException {
+		if (_input == null) {
+			_input = new PrefetchedInputStream(_prefetched, _socket.getInputStream());
+		}
+		return _input;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return _socket.getOutputStream();
+	}
+
+	@Override
+	public SocketChannel getChannel() {
+		return _socket.getChannel();
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return _socket.getInetAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return _socket.getLocalAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return _socket.getPort();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return _socket.getLocalPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return _socket.getRemoteSocketAddress();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return _socket.getLocalSocketAddress();
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		_socket.setSoTimeout(timeout);
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException {
+		return _socket.getSoTimeout();
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		_socket.setTcpNoDelay(on);
+	}
+
+	@Override
+	public boolean getTcpNoDelay() throws SocketException {
+		return _socket.getTcpNoDelay();
+	}
+
+	@Override
+	public void setKeepAlive(boolean on) throws SocketException {
+		_socket.setKeepAlive(on);
+	}
+
+	@Override
+	public boolean getKeepAlive() throws SocketException {
+		return _socket.getKeepAlive();
+	}
+
+	@Override
+	public void shutdownInput() throws IOException {
+		_socket.shutdownInput();
+	}
+
+	@Override
+	public void shutdownOutput() throws IOException {
+		_socket.shutdownOutput();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return _socket.isConnected();
+	}
+
+	@Override
+	public boolean isBound() {
+		return _socket.isBound();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return _socket.isClosed();
+	}
+
+	@Override
+	public boolean isInputShutdown() {
+		return _socket.isInputShutdown();
+	}
+
+	@Override
+	public boolean isOutputShutdown() {
+		return _socket.isOutputShutdown();
+	}
+
+	@Override
+	public void close() throws IOException {
+		_socket.close();
+	}
+
+	@Override
+	public String toString() {
+		return _socket.toString();
+	}
+
+	/**
+	 * Read the prefetched bytes first, then continue with the socket stream
+	 */
+	private static class PrefetchedInputStream extends InputStream {
+
+		/**
+		 * the bytes to replay
+		 */
+		private byte[] _buffer = null;
+
+		/**
+		 * the next byte to replay
+		 */
+		private int _position = 0;
+
+		/**
+		 * the socket stream
+		 */
+		private InputStream _stream = null;
+
+		/**
+		 * default constructor
+		 * @param buffer the bytes to replay
+		 * @param stream the socket stream
+		 */
+		public PrefetchedInputStream(byte[] buffer, InputStream stream) {
+			_buffer = buffer;
+			_stream = stream;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (_position < _buffer.length) {
+				return _buffer[_position++] & 0xFF;
+			}
+			return _stream.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (_position < _buffer.length) {
+				int count = Math.min(len, _buffer.length - _position);
+				System.arraycopy(_buffer, _position, b, off, count);
+				_position += count;
+				return count;
+			}
+			return _stream.read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (_position < _buffer.length) {
+				return _buffer.length - _position;
+			}
+			return _stream.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			_stream.close();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package com.icerealm.server.request;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A request body read entirely. It stays in memory up to a threshold, a larger body
+ * is written to a temporary file, so an upload does not grow the heap. Call delete()
+ * once the body is not needed anymore.
+ * @author punisher
+ *
+ */
+public class RequestBody {
+
+	/**
+	 * default logger
+	 */
+	private static final Logger LOGGER = Logger.getLogger("Icerealm");
+
+	/**
+	 * the size of the copy buffer
+	 */
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	/**
+	 * the body, when it is in memory
+	 */
+	private byte[] _bytes = null;
+
+	/**
+	 * the temporary file, when the body is larger than the threshold
+	 */
+	private File _file = null;
+
+	/**
+	 * the size of the body
+	 */
+	private long _length = 0;
+
+	/**
+	 * Read a body stream entirely
+	 * @param stream the body stream
+	 * @param threshold the maximum number of bytes kept in memory
+	 * @throws IOException if the stream or the temporary file fails
+	 */
+	public RequestBody(InputStream stream, int threshold) throws IOException {
+		this(stream, threshold, -1);
+	}
+
+	/**
+	 * Read a body stream entirely, its size is known from the Content-Length. A small
+	 * body is copied with a buffer of its size.
+	 * @param stream the body stream
+	 * @param threshold the maximum number of bytes kept in memory
+	 * @param length the size of the body, -1 when it is not known
+	 * @throws IOException if the stream or the temporary file fails
+	 */
+	public RequestBody(InputStream stream, int threshold, long length) throws IOException {
+
+		int size = length >= 0 && length < COPY_BUFFER_SIZE ? (int)length + 1 : COPY_BUFFER_SIZE;
+		ByteArrayOutputStream memory = new ByteArrayOutputStream(size);
+		OutputStream out = memory;
+		byte[] buffer = new byte[size];
+		int read = 0;
+
+		try {
+			try {
+				while ((read = stream.read(buffer)) != -1) {
+					// switching to a file once the threshold is reached
+					if (_file == null && _length + read > threshold) {
+						_file = File.createTempFile("icerealm", ".body");
+						out = new FileOutputStream(_file);
+						memory.writeTo(out);
+					}
+					out.write(buffer, 0, read);
+					_length += read;
+				}
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException ex) {
+			delete();
+			throw ex;
+		}
+
+		if (_file == null) {
+			_bytes = memory.toByteArray();
+		}
+	}
+
+	/**
+	 * Wrap a body that is already in memory
+	 * @param bytes the body
+	 */
+	public RequestBody(byte[] bytes) {
+		_bytes = bytes;
+		_length = bytes.length;
+	}
+
+	/**
+	 * determine if the body is kept in memory
+	 * @return true if in memory, false if in a temporary file
+	 */
+	public boolean isInMemory() {
+		return _bytes != null;
+	}
+
+	/**
+	 * the bytes of the body
+	 * @return the bytes, null if the body is in a temporary file
+	 */
+	public byte[] getBytes() {
+		return _bytes;
+	}
+
+	/**
+	 * the temporary file that contains the body
+	 * @return the file, null if the body is in memory
+	 */
+	public File getFile() {
+		return _file;
+	}
+
+	/**
+	 * the size of the body
+	 * @return the number of bytes
+	 */
+	public long getLength() {
+		return _length;
+	}
+
+	/**
+	 * open a stream on the body, it can be called more than once
+	 * @return a new stream positioned at the start of the body
+	 * @throws IOException if the temporary file cannot be opened
+	 */
+	public InputStream getInputStream() throws IOException {
+		if (_bytes != null) {
+			return new ByteArrayInputStream(_bytes);
+		}
+		return new FileInputStream(_file);
+	}
+
+	/**
+	 * delete the temporary file, if any
+	 */
+	public void delete() {
+		if (_file != null && !_file.delete()) {
+			LOGGER.log(Level.WARNING, "Could not delete the temporary body file " + _file);
+		}
+	}
+}
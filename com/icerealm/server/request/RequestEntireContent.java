@@ -1,7 +1,16 @@
 package com.icerealm.server.request;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -10,8 +19,11 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * This class attemps to read all the InputStreamReader until this is at the end
- * of it.
+ * This class reads an entire request from a client. The request is read as bytes
+ * by a HTTPRequestParser, the Strings of the header and the body are created only 
+ * when they are asked for. The body is streamed from the connection, read it with
+ * getBodyStream() or getBody(), the form fields with getRequestBody() are meant for
+ * small bodies.
  * @author punisher
  *
  */
@@ -20,35 +32,96 @@ public class RequestEntireContent {
 	private static final Logger LOGGER = Logger.getLogger("Icerealm");
 	
 	/**
-	 * The stream that is used to read
+	 * the charset of the request line and header fields
 	 */
-	private InputStreamReader _stream = null;
+	private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+	
+	/**
+	 * The reader that is used by the deprecated constructor
+	 */
+	private BufferedReader _stream = null;
+	
+	/**
+	 * The parser that read the request, null if the request was built from Strings
+	 */
+	private HTTPRequestParser _parser = null;
 		
 	/**
-	 * The content of the HTTP request header
+	 * The content of the HTTP request header, created on demand when a parser is used
 	 */
 	private List<String> _header = null;
 	
 	/**
-	 * The content of the HTTP request body
+	 * The content of the HTTP request body, created on demand when a parser is used
 	 */
 	private List<String> _content = null;
 	
+	/**
+	 * the first line of the request, created on demand
+	 */
+	private String _firstLine = null;
+	
+	/**
+	 * the values of the header fields already asked for, by index in the parser
+	 */
+	private String[] _values = null;
+	
 	/**
 	 * the content of the body response, for easy retreival
 	 */
 	private Map<String, String> _postContent = null; 
 	
+	/**
+	 * determine if the connection stays open after the response
+	 */
+	private boolean _keepAlive = false;
+	
+	/**
+	 * the body read entirely, created on demand
+	 */
+	private RequestBody _body = null;
+	
+	/**
+	 * the response that is written later, null when the handler answers before returning
+	 */
+	private AsyncResponse _async = null;
+	
 	/**
 	 * Initialize the attributes and read the entire request. All the operations
-	 * are made in the constructor one time.
+	 * are made in the constructor one time. The reader decodes every byte and reads 
+	 * the body one character at a time, use RequestEntireContent(HTTPRequestParser).
 	 * @param stream The stream that is used to read the content of the request
 	 */
+	@Deprecated
 	public RequestEntireContent(InputStreamReader stream) {
-		_stream = stream;
+		_stream = new BufferedReader(stream);
 		_header = new ArrayList<String>();
 		_content = new ArrayList<String>();
 		readEntireRequest();
+		_keepAlive = isPersistentConnection();
+	}
+	
+	/**
+	 * Read the next request of a connection. Use the same parser for all the requests
+	 * of a persistent connection, the bytes it read ahead belong to the next request.
+	 * @param parser the parser of the client connection
+	 */
+	public RequestEntireContent(HTTPRequestParser parser) {
+		try {
+			if (parser.parseNext()) {
+				_parser = parser;
+				_keepAlive = isPersistentConnection();
+			}
+		}
+		catch (SocketTimeoutException ex) {
+			LOGGER.log(Level.FINE, "Connection idle, no request received");
+		}
+		catch (SocketException ex) {
+			LOGGER.log(Level.FINE, "Connection closed by the client: " + ex.getMessage());
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Could not read raw client request: " + ex.getMessage(), ex);
+		}
 	}
 	
 	/**
@@ -68,11 +141,51 @@ public class RequestEntireContent {
 	 * @return a string that is the first line of the HTTP request, if the header empty, an empty string
 	 */
 	public String getFirstHeaderLine() {
-		if (_header.size() > 0) {
-			return _header.get(0);	
+		if (_firstLine == null) {
+			if (_parser != null) {
+				_firstLine = decode(_parser.getMethodStart(), _parser.getVersionEnd());
+			}
+			else if (_header != null && _header.size() > 0) {
+				_firstLine = _header.get(0);
+			}
+			else {
+				return "";
+			}
 		}
-		return "";
-		
+		return _firstLine;
+	}
+	
+	/**
+	 * Returns the method of the request, like GET or POST
+	 * @return the method, an empty string if there is no request
+	 */
+	public String getMethodName() {
+		if (_parser != null) {
+			return decode(_parser.getMethodStart(), _parser.getMethodEnd());
+		}
+		return getRequestLineToken(0);
+	}
+	
+	/**
+	 * Returns the URI requested, with its query string
+	 * @return the URI, an empty string if there is no request
+	 */
+	public String getRequestURI() {
+		if (_parser != null) {
+			return decode(_parser.getURIStart(), _parser.getURIEnd());
+		}
+		return getRequestLineToken(1);
+	}
+	
+	/**
+	 * Returns the HTTP version of the request, like HTTP/1.1
+	 * @return the version, an empty string if there is no request
+	 */
+	public String getHTTPVersion() {
+		if (_parser != null) {
+			return decode(_parser.getVersionStart(), _parser.getVersionEnd());
+		}
+		return getRequestLineToken(2);
 	}
 
 	/**
@@ -80,29 +193,144 @@ public class RequestEntireContent {
 	 * @return A list of String that represents each header line sent by the client request
 	 */
 	public List<String> getRequestHeader() {
+		if (_header == null) {
+			_header = new ArrayList<String>();
+			if (_parser != null) {
+				_header.add(getFirstHeaderLine());
+				for (int i = 0; i < _parser.getHeaderCount(); i++) {
+					_header.add(decode(_parser.getHeaderNameStart(i), _parser.getHeaderValueEnd(i)));
+				}
+			}
+		}
 		return _header;
 	}
 	
 	/**
-	 * The complete request body
+	 * The complete request body, split on the '&' character like a form submission.
+	 * A body written to a temporary file is not split, use getBody() for it.
 	 * @return a list of String that represents each body line sent by the client request
 	 */
 	public List<String> getRequestBody() {
+		if (_content == null) {
+			_content = new ArrayList<String>();
+			if (_parser != null) {
+				try {
+					RequestBody body = getBody();
+					if (body.isInMemory()) {
+						splitBody(body.getBytes(), 0, body.getBytes().length);
+					}
+					else {
+						LOGGER.log(Level.WARNING, "Request body of " + body.getLength() + " bytes is too large to be split");
+					}
+				}
+				catch (IOException ex) {
+					LOGGER.log(Level.WARNING, "Could not read the request body: " + ex.getMessage(), ex);
+				}
+			}
+		}
 		return _content;
 	}
 	
+	/**
+	 * Open the body as a stream. The bytes come directly from the connection, the
+	 * stream can be read once. If the client sent "Expect: 100-continue", the interim
+	 * response is sent when the stream is opened.
+	 * @return the body stream, empty if the request has no body
+	 * @throws IOException if the body is larger than the maximum size of the server
+	 */
+	public InputStream getBodyStream() throws IOException {
+		if (_body != null) {
+			return _body.getInputStream();
+		}
+		if (_parser != null) {
+			return _parser.openBody();
+		}
+		return new ByteArrayInputStream(joinBody());
+	}
+	
+	/**
+	 * Open the body as a channel, see getBodyStream()
+	 * @return the body channel
+	 * @throws IOException if the body is larger than the maximum size of the server
+	 */
+	public ReadableByteChannel getBodyChannel() throws IOException {
+		return Channels.newChannel(getBodyStream());
+	}
+	
+	/**
+	 * Read the entire body. A body larger than the spool threshold is written to a 
+	 * temporary file, which is deleted by release().
+	 * @return the body
+	 * @throws IOException if the body cannot be read
+	 */
+	public RequestBody getBody() throws IOException {
+		if (_body == null) {
+			if (_parser != null && !_parser.hasBody()) {
+				// nothing to read, no copy buffer for the requests without a body
+				_body = new RequestBody(new byte[0]);
+			}
+			else if (_parser != null) {
+				_body = new RequestBody(_parser.openBody(), _parser.getSpoolThreshold(), _parser.getContentLength());
+			}
+			else {
+				_body = new RequestBody(joinBody());
+			}
+		}
+		return _body;
+	}
+	
+	/**
+	 * The size of the body given by the Content-Length field
+	 * @return the size, 0 if there is no body, -1 if the body is chunked
+	 */
+	public long getContentLength() {
+		if (_parser != null) {
+			return _parser.getContentLength();
+		}
+		return joinBody().length;
+	}
+	
+	/**
+	 * Determine if the body is sent with "Transfer-Encoding: chunked"
+	 * @return true if the body is chunked
+	 */
+	public boolean isChunked() {
+		return _parser != null && _parser.isChunked();
+	}
+	
+	/**
+	 * Tell why the end of the body cannot be known, like two different Content-Length
+	 * fields. The request must be answered with a 400 and the connection closed.
+	 * @return the reason, null when the framing is valid
+	 */
+	public String getFramingError() {
+		return _parser != null ? _parser.getFramingError() : null;
+	}
+	
+	/**
+	 * Free the resources of the body, like its temporary file. The server calls it
+	 * once the response is sent.
+	 */
+	public void release() {
+		if (_body != null) {
+			_body.delete();
+		}
+	}
+	
 	/**
 	 * return the value of a particular key from the body content
 	 * @param key the key to look for
 	 * @return the value found for this key, otherwise null
 	 */
 	public String getValueFromKey(String key) {
-		if (_postContent == null && _content.size() > 0) {
+		if (_postContent == null) {
 			_postContent = new HashMap<String, String>();
 			
-			for (String s : _content) {
-				String[] pair = s.split("=");
-				_postContent.put(pair[0], pair[1]);
+			for (String s : getRequestBody()) {
+				String[] pair = s.split("=", 2);
+				if (pair.length == 2) {
+					_postContent.put(pair[0], pair[1]);
+				}
 			}			
 		}
 		
@@ -110,21 +338,195 @@ public class RequestEntireContent {
 	}
 	
 	/**
-	 * Return the value of particular field of the HTTP request.
+	 * Return the value of particular field of the HTTP request. The name of the field must
+	 * match entirely, the case is ignored.
 	 * @param key Represents the key that should be looked at
 	 * @return The value based on the key. For example, if the key is 'Content-Type', then it would returns 'text/xml'.
 	 */
 	public String getHeaderLine(String key) {
 		
-		for (String s : _header) {
-			if (s.toLowerCase().contains(key)) {
-				return s.substring(s.lastIndexOf(":") + 1).trim();
+		if (_parser != null) {
+			return getHeaderValue(_parser.findHeader(key));
+		}
+		
+		for (String s : getRequestHeader()) {
+			int colon = s.indexOf(':');
+			if (colon >= 0 && s.substring(0, colon).trim().equalsIgnoreCase(key)) {
+				return s.substring(colon + 1).trim();
 			}
 		}
 		
 		return null;
 	}
 	
+	/**
+	 * Return the value of a well-known field of the HTTP request
+	 * @param slot the slot of the field, one of the HTTPHeaders constants
+	 * @return the value, null if the request does not have this field
+	 */
+	public String getHeader(int slot) {
+		if (_parser != null) {
+			return getHeaderValue(_parser.getKnownHeader(slot));
+		}
+		return getHeaderLine(HTTPHeaders.getName(slot));
+	}
+	
+	/**
+	 * Determine if a well-known field contains a token, the case is ignored. 
+	 * Nothing is allocated when the request was read by a parser.
+	 * @param slot the slot of the field, one of the HTTPHeaders constants
+	 * @param token the token to search for, in lower case
+	 * @return true if the field is present and contains the token
+	 */
+	public boolean headerContains(int slot, String token) {
+		if (_parser != null) {
+			int i = _parser.getKnownHeader(slot);
+			return i >= 0 && _parser.containsIgnoreCase(_parser.getHeaderValueStart(i), _parser.getHeaderValueEnd(i), token);
+		}
+		String value = getHeader(slot);
+		return value != null && value.toLowerCase().contains(token);
+	}
+	
+	/**
+	 * return the value of a field and keep it for the next call
+	 * @param i the index of the field in the parser, can be -1
+	 * @return the value, null if the index is -1
+	 */
+	private String getHeaderValue(int i) {
+		if (i < 0) {
+			return null;
+		}
+		if (_values == null) {
+			_values = new String[_parser.getHeaderCount()];
+		}
+		if (_values[i] == null) {
+			_values[i] = decode(_parser.getHeaderValueStart(i), _parser.getHeaderValueEnd(i));
+		}
+		return _values[i];
+	}
+	
+	/**
+	 * Determine if the connection stays open once the response is sent. It is true
+	 * for a HTTP/1.1 request without "Connection: close" and for a HTTP/1.0 request with
+	 * "Connection: keep-alive".
+	 * @return true if the connection is persistent
+	 */
+	public boolean isKeepAlive() {
+		return _keepAlive;
+	}
+	
+	/**
+	 * Let the server close the connection after the response, even if the client
+	 * asked for a persistent connection
+	 * @param k false to close the connection after the response
+	 */
+	public void setKeepAlive(boolean k) {
+		_keepAlive = k;
+	}
+	
+	/**
+	 * Answer the request later, from another thread. The handler returns at once and the
+	 * worker handles other connections, the response is written when it is completed.
+	 * The body of the request stays readable until then.
+	 * @param out the client stream the handler received
+	 * @return the response to complete, the same one if it is called again
+	 */
+	public AsyncResponse startAsync(OutputStream out) {
+		if (_async == null) {
+			_async = new AsyncResponse(out, isKeepAlive());
+		}
+		return _async;
+	}
+	
+	/**
+	 * return the response started with startAsync()
+	 * @return the response, null if the request is answered by its handler
+	 */
+	public AsyncResponse getAsyncResponse() {
+		return _async;
+	}
+	
+	/**
+	 * Determine if the client asked to switch to another protocol, like WebSocket
+	 * @return true if the Connection field contains "upgrade"
+	 */
+	public boolean isUpgrade() {
+		return headerContains(HTTPHeaders.CONNECTION, "upgrade");
+	}
+	
+	/**
+	 * apply the HTTP version rules to know if the connection is persistent
+	 * @return true if the connection can be reused for another request
+	 */
+	private boolean isPersistentConnection() {
+		if (headerContains(HTTPHeaders.CONNECTION, "close") || isUpgrade()) {
+			return false;
+		}
+		
+		if (getFirstHeaderLine().endsWith("HTTP/1.1")) {
+			return true;
+		}
+		return headerContains(HTTPHeaders.CONNECTION, "keep-alive");
+	}
+
+	/**
+	 * create a String from a range of the receive buffer
+	 * @param start the start of the range
+	 * @param end the end of the range, exclusive
+	 * @return the String
+	 */
+	private String decode(int start, int end) {
+		return new String(_parser.getBuffer(), start, end - start, HEADER_CHARSET);
+	}
+	
+	/**
+	 * return a token of the first line, used when the request was not read by a parser
+	 * @param index the index of the token
+	 * @return the token, an empty string if the line does not have it
+	 */
+	private String getRequestLineToken(int index) {
+		String[] tokenized = getFirstHeaderLine().split(" ");
+		if (tokenized.length > index) {
+			return tokenized[index];
+		}
+		return "";
+	}
+	
+	/**
+	 * rebuild the body of a request that was not read by a parser
+	 * @return the body fields joined by the '&' character
+	 */
+	private byte[] joinBody() {
+		StringBuilder body = new StringBuilder();
+		if (_content != null) {
+			for (String s : _content) {
+				if (body.length() > 0) {
+					body.append('&');
+				}
+				body.append(s);
+			}
+		}
+		return body.toString().getBytes(HEADER_CHARSET);
+	}
+	
+	/**
+	 * split the body on the '&' character, like a form submission
+	 * @param bytes the buffer that contains the body
+	 * @param start the start of the body
+	 * @param end the end of the body, exclusive
+	 */
+	private void splitBody(byte[] bytes, int start, int end) {
+		int tokenStart = start;
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == '&') {
+				_content.add(new String(bytes, tokenStart, i - tokenStart));
+				tokenStart = i + 1;
+			}
+		}
+		if (end > start) {
+			_content.add(new String(bytes, tokenStart, end - tokenStart));
+		}
+	}
 
 	/**
 	 * Read the entire request and saves it in memory
@@ -133,12 +535,17 @@ public class RequestEntireContent {
 		try {
 		
 			String contentLengthIdentifier = "Content-Length: ";
-			BufferedReader br = new BufferedReader(_stream);
+			BufferedReader br = _stream;
 			String line = null;
 			int bodyContentSize = 0;
 			
+			// skip the empty lines some clients send between two requests
+			while ((line = br.readLine()) != null && line.isEmpty()) {
+				// nothing to do
+			}
+			
 			// read each line
-			while ((line = br.readLine()) != null && !line.isEmpty()) {
+			for (; line != null && !line.isEmpty(); line = br.readLine()) {
 				_header.add(line);
 				
 				// detecting the content length, to know the size of the body
@@ -176,6 +583,12 @@ public class RequestEntireContent {
 				}
 			}
 		}
+		catch (SocketTimeoutException ex) {
+			LOGGER.log(Level.FINE, "Connection idle, no request received");
+		}
+		catch (SocketException ex) {
+			LOGGER.log(Level.FINE, "Connection closed by the client: " + ex.getMessage());
+		}
 		catch (Exception ex) {
 			LOGGER.log(Level.WARNING, "Could not read raw client request: " + ex.getMessage(), ex);
 		}
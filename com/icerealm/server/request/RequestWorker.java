@@ -19,18 +19,44 @@ public class RequestWorker implements Runnable {
 	 */
 	private Socket _socket = null;
 	
+	/**
+	 * Answers the request if it waited too long before running, can be null
+	 */
+	private LoadShedder _shedder = null;
+	
+	/**
+	 * the time this worker was created, in ms
+	 */
+	private long _queuedAt = 0;
+	
 	/**
 	 * Default constructor
 	 * @param handler The request handler
 	 * @param socket The client socket
 	 */
 	public RequestWorker(RequestHandler handler, Socket socket) {
+		this(handler, socket, null);
+	}
+	
+	/**
+	 * Build a worker that sheds its request when it waited past the deadline of the shedder
+	 * @param handler The request handler
+	 * @param socket The client socket
+	 * @param shedder the load shedder, if null the request is always handled
+	 */
+	public RequestWorker(RequestHandler handler, Socket socket, LoadShedder shedder) {
 		_handler = handler;
 		_socket = socket;
+		_shedder = shedder;
+		_queuedAt = System.currentTimeMillis();
 	}
 	
 	@Override
 	public void run() {
+		if (_shedder != null && _shedder.isExpired(_queuedAt)) {
+			_shedder.expire(_socket);
+			return;
+		}
 		_handler.handleClientRequest(_socket);
 	}
 }
@@ -0,0 +1,19 @@
+package com.icerealm.server.request;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A RequestHandler that can let a connection wait without a worker, like while an
+ * asynchronous response is computed. The connection is given back to the workers of
+ * the listener once its response is written.
+ * @author punisher
+ *
+ */
+public interface ResumableRequestHandler extends RequestHandler {
+
+	/**
+	 * Receive the executor of the listener, it is called after onInit()
+	 * @param executor the executor that runs the connections
+	 */
+	public void setExecutor(Executor executor);
+}
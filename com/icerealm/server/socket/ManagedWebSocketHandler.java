@@ -1,8 +1,11 @@
 package com.icerealm.server.socket;
 
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.icerealm.server.WorkerExecutors;
 import com.icerealm.server.web.WebServerHandler;
 
 
@@ -18,6 +21,11 @@ public abstract class ManagedWebSocketHandler extends WebServerHandler implement
 	
 	private static final Logger LOGGER = Logger.getLogger("Icerealm");
 	
+	/**
+	 * the executor shared by the WebSocket listeners, null if every listener has its own thread
+	 */
+	private Executor _listenerExecutor = null;
+	
 	/**
 	 * This is called after the handshake mechanism
 	 * @param ws The WebSocket connection from the client
@@ -48,11 +56,19 @@ public abstract class ManagedWebSocketHandler extends WebServerHandler implement
 		registerWebsocketHandler(this);
 	}
 	
+	@Override
+	public void onInit(Map<String, String> config) {
+		super.onInit(config);
+		
+		// the listeners can run on virtual threads
+		_listenerExecutor = WorkerExecutors.newListenerExecutor(config);
+	}
+	
 	@Override
 	public void newConnection(WebSocket ws) {
 		try {
 			ws.handshake();
-			WebSocketListener.getWebSocketListener(this, ws);
+			WebSocketListener.getWebSocketListener(this, ws, _listenerExecutor);
 			
 			// calling the extending class implementation
 			onNewConnection(ws);
@@ -1,11 +1,14 @@
 package com.icerealm.server.socket;
 
-import java.io.InputStreamReader;
 import java.net.Socket;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.icerealm.server.WorkerExecutors;
+import com.icerealm.server.request.HTTPHeaders;
+import com.icerealm.server.request.HTTPRequestParser;
 import com.icerealm.server.request.RequestEntireContent;
 import com.icerealm.server.request.RequestHandler;
 
@@ -19,6 +22,11 @@ public abstract class PureWebSocketHandler implements RequestHandler, WebSocketH
 
 	private static final Logger LOGGER = Logger.getLogger("Icerealm");
 	
+	/**
+	 * the executor shared by the WebSocket listeners, null if every listener has its own thread
+	 */
+	private Executor _listenerExecutor = null;
+	
 	/**
 	 * This is called after the handshake mechanism
 	 * @param ws The WebSocket connection from the client
@@ -47,12 +55,11 @@ public abstract class PureWebSocketHandler implements RequestHandler, WebSocketH
 		try {
 			
 			// reading the socket request
-			InputStreamReader isr = new InputStreamReader(s.getInputStream());
-			RequestEntireContent content = new RequestEntireContent(isr);
+			RequestEntireContent content = new RequestEntireContent(new HTTPRequestParser(s.getInputStream()));
 			String key = null;
 			
 			// checking if the client wants to initiate a websocket communication
-			if ((key = content.getHeaderLine("sec-websocket-key")) != null) {
+			if ((key = content.getHeader(HTTPHeaders.SEC_WEBSOCKET_KEY)) != null) {
 				this.newConnection(new WebSocket(s, key));
 			}
 		}
@@ -63,7 +70,8 @@ public abstract class PureWebSocketHandler implements RequestHandler, WebSocketH
 
 	@Override
 	public void onInit(Map<String, String> config) {
-		// nothing to do
+		// the listeners can run on virtual threads
+		_listenerExecutor = WorkerExecutors.newListenerExecutor(config);
 	}
 
 	@Override
@@ -92,7 +100,7 @@ public abstract class PureWebSocketHandler implements RequestHandler, WebSocketH
 	public void newConnection(WebSocket ws) {
 		try {
 			ws.handshake();
-			WebSocketListener.getWebSocketListener(this, ws);
+			WebSocketListener.getWebSocketListener(this, ws, _listenerExecutor);
 			
 			// calling the extending class implementation
 			this.onNewConnection(ws);
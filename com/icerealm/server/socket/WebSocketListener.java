@@ -22,6 +22,9 @@ public class WebSocketListener implements Runnable {
 	 */
 	private WebSocketHandler _wsCallback = null;
 	
+	/**
+	 * The executor that runs this listener
+	 */
 	private Executor _executor = null;
 	
 	/**
@@ -35,6 +38,19 @@ public class WebSocketListener implements Runnable {
 		return listen;
 	}
 	
+	/**
+	 * Returns an instance of a WebSocketListener started on a shared executor. 
+	 * @param cb WebSocketHandler instance
+	 * @param ws The WebSocket
+	 * @param executor the executor that runs the listener, if null the listener gets its own thread
+	 * @return A running WebSocketListener
+	 */
+	public static WebSocketListener getWebSocketListener(WebSocketHandler cb, WebSocket ws, Executor executor) {
+		WebSocketListener listen = new WebSocketListener(cb, ws, executor);
+		listen._executor.execute(listen);
+		return listen;
+	}
+	
 	/**
 	 * Assign the callback and the WebSocket to the member of the class. When this 
 	 * Runnable is executed, it will be in an infinite loop, waiting for a message to be
@@ -53,14 +69,24 @@ public class WebSocketListener implements Runnable {
 	 * @param now if true, this runnable will be start now, if false, it will not be started
 	 */
 	public WebSocketListener(WebSocketHandler cb, WebSocket ws, boolean now) {
-		_executor = Executors.newSingleThreadExecutor();
-		_wsCallback = cb;
-		_webSocket = ws;
+		this(cb, ws, null);
 		if (now) {
 			_executor.execute(this);
 		}
 	}
 	
+	/**
+	 * Build the WebSocketListener without starting it
+	 * @param cb WebSocket Handler instance
+	 * @param ws WebSocket instance
+	 * @param executor the executor that runs the listener, if null the listener gets its own thread
+	 */
+	public WebSocketListener(WebSocketHandler cb, WebSocket ws, Executor executor) {
+		_executor = executor != null ? executor : Executors.newSingleThreadExecutor();
+		_wsCallback = cb;
+		_webSocket = ws;
+	}
+	
 	@Override
 	public void run() {
 		try {
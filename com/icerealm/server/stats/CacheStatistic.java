@@ -0,0 +1,135 @@
+package com.icerealm.server.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * counts the hits, misses and evictions of a content cache, with the number of bytes
+ * and entries it holds.
+ * @author neilson
+ *
+ */
+public class CacheStatistic implements Statistic {
+
+	/**
+	 * the name of the cache
+	 */
+	private String _name = null;
+
+	/**
+	 * the number of requests answered from the cache
+	 */
+	private AtomicLong _hits = new AtomicLong();
+
+	/**
+	 * the number of requests that had to read the file
+	 */
+	private AtomicLong _misses = new AtomicLong();
+
+	/**
+	 * the number of entries removed to respect the byte budget
+	 */
+	private AtomicLong _evictions = new AtomicLong();
+
+	/**
+	 * the number of bytes held by the cache
+	 */
+	private AtomicLong _bytes = new AtomicLong();
+
+	/**
+	 * the number of entries held by the cache
+	 */
+	private AtomicLong _entries = new AtomicLong();
+
+	/**
+	 * default constructor
+	 * @param name the name of the cache
+	 */
+	public CacheStatistic(String name) {
+		_name = name;
+	}
+
+	/**
+	 * count a request answered from the cache
+	 */
+	public void hit() {
+		_hits.incrementAndGet();
+	}
+
+	/**
+	 * count a request that had to read the file
+	 */
+	public void miss() {
+		_misses.incrementAndGet();
+	}
+
+	/**
+	 * count an entry removed to respect the byte budget
+	 */
+	public void evicted() {
+		_evictions.incrementAndGet();
+	}
+
+	/**
+	 * record an entry added to the cache
+	 * @param size the size of the entry, in bytes
+	 */
+	public void added(long size) {
+		_bytes.addAndGet(size);
+		_entries.incrementAndGet();
+	}
+
+	/**
+	 * record an entry removed from the cache
+	 * @param size the size of the entry, in bytes
+	 */
+	public void removed(long size) {
+		_bytes.addAndGet(-size);
+		_entries.decrementAndGet();
+	}
+
+	/**
+	 * the number of requests answered from the cache
+	 * @return the number of hits
+	 */
+	public long getHits() {
+		return _hits.get();
+	}
+
+	/**
+	 * the number of requests that had to read the file
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return _misses.get();
+	}
+
+	/**
+	 * the number of entries removed to respect the byte budget
+	 * @return the number of evictions
+	 */
+	public long getEvictions() {
+		return _evictions.get();
+	}
+
+	/**
+	 * the number of bytes held by the cache
+	 * @return the number of bytes
+	 */
+	public long getBytes() {
+		return _bytes.get();
+	}
+
+	/**
+	 * the number of entries held by the cache
+	 * @return the number of entries
+	 */
+	public long getEntries() {
+		return _entries.get();
+	}
+
+	@Override
+	public String toString() {
+		return _name + " hits: " + getHits() + " misses: " + getMisses() + " evictions: " + getEvictions() +
+			   " bytes: " + getBytes() + " entries: " + getEntries();
+	}
+}
@@ -0,0 +1,98 @@
+package com.icerealm.server.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * counts the connections of a plugin that were accepted by the server and those that
+ * were shed because the admission queue was full or because they waited too long in it.
+ * @author neilson
+ *
+ */
+public class LoadSheddingStatistic implements Statistic {
+
+	/**
+	 * the name of the plugin
+	 */
+	private String _name = null;
+	
+	/**
+	 * the number of connections given to a worker
+	 */
+	private AtomicLong _accepted = new AtomicLong();
+	
+	/**
+	 * the number of connections refused because the queue was full
+	 */
+	private AtomicLong _rejected = new AtomicLong();
+	
+	/**
+	 * the number of connections dropped because they waited past the deadline
+	 */
+	private AtomicLong _expired = new AtomicLong();
+	
+	/**
+	 * default constructor
+	 * @param name the name of the plugin
+	 */
+	public LoadSheddingStatistic(String name) {
+		_name = name;
+	}
+	
+	/**
+	 * count a connection given to a worker
+	 */
+	public void accepted() {
+		_accepted.incrementAndGet();
+	}
+	
+	/**
+	 * count a connection refused because the queue was full
+	 */
+	public void rejected() {
+		_rejected.incrementAndGet();
+	}
+	
+	/**
+	 * count a connection dropped because it waited past the deadline
+	 */
+	public void expired() {
+		_expired.incrementAndGet();
+	}
+	
+	/**
+	 * the number of connections given to a worker
+	 * @return the number of connections
+	 */
+	public long getAccepted() {
+		return _accepted.get();
+	}
+	
+	/**
+	 * the number of connections refused because the queue was full
+	 * @return the number of connections
+	 */
+	public long getRejected() {
+		return _rejected.get();
+	}
+	
+	/**
+	 * the number of connections dropped because they waited past the deadline
+	 * @return the number of connections
+	 */
+	public long getExpired() {
+		return _expired.get();
+	}
+	
+	/**
+	 * the total number of connections answered with a 503
+	 * @return the number of connections
+	 */
+	public long getShed() {
+		return getRejected() + getExpired();
+	}
+	
+	@Override
+	public String toString() {
+		return _name + " accepted: " + getAccepted() + " rejected: " + getRejected() + " expired: " + getExpired();
+	}
+}
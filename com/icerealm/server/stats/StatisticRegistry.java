@@ -0,0 +1,51 @@
+package com.icerealm.server.stats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * keeps the statistics produced by the server components under a unique name, so a 
+ * Publisher or a plugin can find them without a reference to the component.
+ * @author neilson
+ *
+ */
+public class StatisticRegistry {
+
+	/**
+	 * the registered statistics by name
+	 */
+	private static Map<String, Statistic> _statistics = new ConcurrentHashMap<String, Statistic>();
+	
+	/**
+	 * utility class, no instance
+	 */
+	private StatisticRegistry() { }
+	
+	/**
+	 * register a statistic, it replaces the one with the same name
+	 * @param name the unique name of the statistic
+	 * @param s the statistic
+	 */
+	public static void register(String name, Statistic s) {
+		_statistics.put(name, s);
+	}
+	
+	/**
+	 * return a statistic by its name
+	 * @param name the unique name of the statistic
+	 * @return the statistic, otherwise null
+	 */
+	public static Statistic getStatistic(String name) {
+		return _statistics.get(name);
+	}
+	
+	/**
+	 * return all the registered statistics, ready to be given to Publisher.publishStats
+	 * @return a copy of the registered statistics
+	 */
+	public static Collection<Statistic> getAllStatistics() {
+		return new ArrayList<Statistic>(_statistics.values());
+	}
+}
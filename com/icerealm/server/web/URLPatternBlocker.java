@@ -37,12 +37,9 @@ public class URLPatternBlocker extends RequestBlocker {
 		Iterator<String> i = _urlPattern.iterator();
 		
 		// extracting the resources wanted by the client
-		String[] tokenized = content.getFirstHeaderLine().split(" ");
-		
-		// need to do some checking to avoid exception
-		String ressource = "";
-		if (tokenized.length > 1 && tokenized[1].length() > 1) {
-			ressource = tokenized[1].substring(1);
+		String ressource = content.getRequestURI();
+		if (ressource.length() > 0) {
+			ressource = ressource.substring(1);
 		}
 		
 		while (i.hasNext() && !blocked) {
@@ -1,27 +1,43 @@
 package com.icerealm.server.web;
 
 import java.io.File;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import com.icerealm.server.ServerListener;
 import com.icerealm.server.WebContainer;
-import com.icerealm.server.request.RequestEntireContent;
+import com.icerealm.server.WorkerExecutors;
+import com.icerealm.server.request.AsyncResponse;
+import com.icerealm.server.request.HTTPRequestParser;
+import com.icerealm.server.request.IdleConnectionWatcher;
+import com.icerealm.server.request.PrefetchedSocket;
 import com.icerealm.server.request.RequestBlockedException;
 import com.icerealm.server.request.RequestBlocker;
 import com.icerealm.server.request.RequestEntireContent;
-import com.icerealm.server.request.RequestHandler;
+import com.icerealm.server.request.ResumableRequestHandler;
 import com.icerealm.server.socket.DefaultWebSocketHandler;
 import com.icerealm.server.socket.WebSocketHandler;
+import com.icerealm.server.web.http.CachingHTTPMethodHandler;
+import com.icerealm.server.web.http.ChainedAsyncHTTPMethodHandler;
 import com.icerealm.server.web.http.ChainedHTTPMethodHandler;
 import com.icerealm.server.web.http.DefaultHTTPHandler;
+import com.icerealm.server.web.http.HTTPMethod;
 import com.icerealm.server.web.http.HTTPMethodHandler;
+import com.icerealm.server.web.http.HTTPRouter;
+import com.icerealm.server.web.io.ClientOutputStream;
 import com.icerealm.server.web.io.ContentHandler;
+import com.icerealm.server.web.io.ErrorResponse;
+import com.icerealm.server.web.io.HeaderOnlyOutputStream;
 import com.icerealm.server.web.io.WebContentDeliver;
 
 /**
@@ -30,7 +46,7 @@ import com.icerealm.server.web.io.WebContentDeliver;
  * @author punisher
  *
  */
-public class WebServerHandler implements RequestHandler {
+public class WebServerHandler implements ResumableRequestHandler {
 
 	/**
 	 * default logger
@@ -47,6 +63,44 @@ public class WebServerHandler implements RequestHandler {
 	 */
 	private static final String DEFAULT_URL_BLOCKED = "blocked.pattern.global";
 	
+	/**
+	 * the default time a persistent connection waits for the next request, in ms, when
+	 * waiting does not hold a thread: with the reactor mode or the virtual threads
+	 */
+	private static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5000;
+	
+	/**
+	 * the default time a persistent connection waits for the next request in the blocking
+	 * mode, in ms. A worker of the pool is held meanwhile, a browser asks for the resources
+	 * of a page right after the page, not seconds later
+	 */
+	private static final int DEFAULT_BLOCKING_KEEP_ALIVE_TIMEOUT = 1000;
+	
+	/**
+	 * the default number of requests served on a persistent connection
+	 */
+	private static final int DEFAULT_KEEP_ALIVE_MAX = 100;
+	
+	/**
+	 * the default number of body bytes kept in memory, a larger body is written to a temporary file
+	 */
+	private static final int DEFAULT_SPOOL_THRESHOLD = 65536;
+	
+	/**
+	 * the default time an asynchronous response can wait, in ms
+	 */
+	private static final long DEFAULT_ASYNC_TIMEOUT = 30000;
+	
+	/**
+	 * the response sent when the Content-Length is larger than the maximum body size
+	 */
+	private static final byte[] TOO_LARGE_RESPONSE = ("HTTP/1.1 413 Payload Too Large\r\n" +
+													  "Content-Type: text/plain\r\n" +
+													  "Content-Length: 28\r\n" +
+													  "Connection: close\r\n" +
+													  "\r\n" +
+													  "Error 413 Payload Too Large\n").getBytes();
+	
 	/**
 	 * A content handler
 	 */
@@ -89,6 +143,41 @@ public class WebServerHandler implements RequestHandler {
 	 */
 	protected RequestBlocker _urlBlocker = null;
 	
+	/**
+	 * the time a persistent connection waits for the next request, in ms
+	 */
+	protected int _keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+	
+	/**
+	 * the maximum number of requests served on a persistent connection
+	 */
+	protected int _keepAliveMax = DEFAULT_KEEP_ALIVE_MAX;
+	
+	/**
+	 * the maximum size of a request body, -1 for no limit
+	 */
+	protected long _maxBodySize = -1;
+	
+	/**
+	 * the number of body bytes kept in memory, a larger body is written to a temporary file
+	 */
+	protected int _spoolThreshold = DEFAULT_SPOOL_THRESHOLD;
+	
+	/**
+	 * the time an asynchronous response can wait before a 504 is sent, in ms, 0 to wait forever
+	 */
+	protected long _asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+	
+	/**
+	 * the executor of the listener, it serves a connection again after an asynchronous response
+	 */
+	private Executor _executor = null;
+	
+	/**
+	 * the timer of the asynchronous responses, created on first use
+	 */
+	private ScheduledExecutorService _timer = null;
+	
 	/**
 	 * Default constructor. Provide a simple implementation that let a website designer 
 	 * a very lean webserver to provide static files, image, sound, etc...
@@ -113,35 +202,132 @@ public class WebServerHandler implements RequestHandler {
 	
 	@Override
 	public void handleClientRequest(Socket s) {
+		serve(new Connection(s));
+	}
+	
+	/**
+	 * Serve the requests of a connection until it is closed, or until a response is
+	 * answered asynchronously. The connection is then served again once the response
+	 * is written, by another worker.
+	 * @param connection the connection
+	 */
+	private void serve(final Connection connection) {
 
-		InputStreamReader br = null;
-		OutputStream pw = null;
+		Socket s = connection._socket;
+		boolean upgrade = false;
+		boolean suspended = false;
+		boolean watched = false;
 		
 		try {
 			
-			// blocking ip address is fast and easy
-			if (_ipBlocker.isBlocked(s)) {
-				throw new RequestBlockedException("Request from " + s.getInetAddress().getHostAddress() + " blocked");
+			if (connection._parser == null) {
+				// blocking ip address is fast and easy
+				if (_ipBlocker.isBlocked(s)) {
+					throw new RequestBlockedException("Request from " + s.getInetAddress().getHostAddress() + " blocked");
+				}
+				
+				// set the stream to read and write them easily, they are kept for the whole connection
+				// the 100 Continue goes directly to the socket, it is not part of the response
+				connection._parser = new HTTPRequestParser(s.getInputStream(), s.getOutputStream());
+				connection._parser.setMaxBodySize(_maxBodySize);
+				connection._parser.setSpoolThreshold(_spoolThreshold);
+				connection._out = new ClientOutputStream(s.getOutputStream(), s.getChannel());
+				// a response is written in a few large pieces, the last one must not wait
+				// for the delayed acknowledgement of the previous one
+				s.setTcpNoDelay(true);
 			}
+			HTTPRequestParser parser = connection._parser;
+			ClientOutputStream pw = connection._out;
 			
-			// set the stream to read and write them easily
-			br = new InputStreamReader(s.getInputStream());
-			pw = s.getOutputStream();
+			boolean keepAlive = true;
 			
-			// reading the request header to know that to do
-			RequestEntireContent requestContent = new RequestEntireContent(br);
-			LOGGER.log(Level.INFO, "Client from " + s.getInetAddress().toString() + " requested: " + requestContent.getFirstHeaderLine());
-
-			// blocking the url pattern
-			if (_urlBlocker.isBlocked(requestContent)) {
-				throw new RequestBlockedException("Request with pattern " + requestContent.getFirstHeaderLine() + 
-												  " from " + s.getInetAddress().getHostAddress() + " blocked");	
-			}
-			
-			// read the first line to determine what to do next
-			_httpOperationHandler.handleHTTPOperation(requestContent, pw);
+			// a persistent connection serves requests until the client or the server closes it
+			while (keepAlive) {
+				
+				// the idle timeout applies while waiting for the next request
+				if (connection._served > 0) {
+					// the reactor waits for the next request, the worker goes back to the pool
+					if (connection._watcher != null) {
+						watched = watch(connection);
+						break;
+					}
+					s.setSoTimeout(_keepAliveTimeout);
+				}
+				
+				// reading the request header to know that to do
+				final RequestEntireContent requestContent = new RequestEntireContent(parser);
+				if (requestContent.getRequestHeader().isEmpty()) {
+					// connection closed or idle for too long
+					break;
+				}
+				
+				connection._requestCount++;
+				connection._served++;
+				if (connection._requestCount >= _keepAliveMax) {
+					requestContent.setKeepAlive(false);
+				}
+				upgrade = requestContent.isUpgrade();
+				
+				LOGGER.log(Level.INFO, "Client from " + s.getInetAddress().toString() + " requested: " + requestContent.getFirstHeaderLine());
 	
-			
+				// a body whose end is not known cannot be skipped, the next request would start in it
+				String framingError = requestContent.getFramingError();
+				if (framingError != null) {
+					LOGGER.log(Level.INFO, "Bad request from " + s.getInetAddress().toString() + ": " + framingError);
+					ErrorResponse.BAD_REQUEST.writeTo(pw, false);
+					break;
+				}
+				
+				// blocking the url pattern
+				if (_urlBlocker.isBlocked(requestContent)) {
+					throw new RequestBlockedException("Request with pattern " + requestContent.getFirstHeaderLine() + 
+													  " from " + s.getInetAddress().getHostAddress() + " blocked");	
+				}
+				
+				// a body announced larger than the limit is refused before it is sent
+				if (_maxBodySize >= 0 && requestContent.getContentLength() > _maxBodySize) {
+					LOGGER.log(Level.INFO, "Request body of " + requestContent.getContentLength() + " bytes refused");
+					pw.write(TOO_LARGE_RESPONSE);
+					pw.flush();
+					break;
+				}
+				
+				// read the first line to determine what to do next
+				pw.reset();
+				AsyncResponse async = null;
+				try {
+					// the response to HEAD is the one of GET, without its body
+					if (HTTPMethod.of(requestContent) == HTTPMethod.HEAD) {
+						_httpOperationHandler.handleHTTPOperation(requestContent, new HeaderOnlyOutputStream(pw));
+					}
+					else {
+						_httpOperationHandler.handleHTTPOperation(requestContent, pw);
+					}
+					
+					// an asynchronous response lets the worker go, the connection waits for it
+					async = requestContent.getAsyncResponse();
+					suspended = async != null && async.suspend(getTimer(), _asyncTimeout, new AsyncResponse.Listener() {
+						
+						@Override
+						public void onComplete(AsyncResponse response) {
+							requestContent.release();
+							resume(connection, response.isKeepAlive() && requestContent.isKeepAlive());
+						}
+					});
+					if (suspended) {
+						return;
+					}
+				}
+				finally {
+					if (!suspended) {
+						requestContent.release();
+					}
+				}
+				
+				// a request that got no answer cannot be followed by another one
+				keepAlive = requestContent.isKeepAlive() && pw.getBytesWritten() > 0 && !s.isClosed() &&
+							(async == null || async.isKeepAlive());
+			}
 		}
 		catch (RequestBlockedException rbex) {
 			LOGGER.log(Level.INFO, rbex.getMessage());
@@ -149,11 +335,116 @@ public class WebServerHandler implements RequestHandler {
 		catch (Exception e) {
 			LOGGER.log(Level.WARNING, e.getMessage(), e);
 		} 
+		finally {
+			// a protocol upgrade keeps the socket for the new protocol
+			if (!upgrade && !suspended && !watched) {
+				closeSocket(s);
+			}
+		}
+	}
+	
+	/**
+	 * give a persistent connection back to its watcher until its next request
+	 * @param connection the connection, its response is written
+	 * @return false if the unread body cannot be skipped, the connection must be closed
+	 * @throws IOException if the socket fails
+	 */
+	private boolean watch(Connection connection) throws IOException {
+		byte[] pending = connection._parser.detach();
+		if (pending == null || connection._socket.getChannel() == null) {
+			return false;
+		}
+		connection._watcher.watch(connection._socket.getChannel(), pending, connection._requestCount, _keepAliveTimeout);
+		return true;
+	}
+	
+	/**
+	 * give a connection back to the workers once its asynchronous response is written
+	 * @param connection the connection
+	 * @param keepAlive true if the connection serves another request
+	 */
+	private void resume(final Connection connection, boolean keepAlive) {
+		if (!keepAlive || connection._socket.isClosed()) {
+			closeSocket(connection._socket);
+			return;
+		}
+		
+		Runnable task = new Runnable() {
+			
+			@Override
+			public void run() {
+				serve(connection);
+			}
+		};
+		
+		if (_executor == null) {
+			task.run();
+			return;
+		}
+		try {
+			_executor.execute(task);
+		}
+		catch (RejectedExecutionException ex) {
+			LOGGER.log(Level.INFO, "No worker to resume a connection, closing it");
+			closeSocket(connection._socket);
+		}
+	}
+	
+	/**
+	 * return the timer of the asynchronous responses, it is created on first use
+	 * @return the timer
+	 */
+	private synchronized ScheduledExecutorService getTimer() {
+		if (_timer == null) {
+			_timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Icerealm-async-timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return _timer;
+	}
+	
+	@Override
+	public void setExecutor(Executor executor) {
+		_executor = executor;
+	}
+	
+	/**
+	 * close the client socket once the connection is over
+	 * @param s the client socket
+	 */
+	private void closeSocket(Socket s) {
+		try {
+			if (!s.isClosed()) {
+				s.close();
+			}
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.FINE, "Problem while closing the client socket", ex);
+		}
 	}
 
 	@Override
 	public void onInit(Map<String, String> config) {
 		
+		// another ContentHandler can deliver the resources, like the ArchiveContentDeliver
+		if (config.containsKey("contenthandler")) {
+			try {
+				Class<?> clazz = WebContainer.getDefaultClassLoader().loadClass(config.get("contenthandler"));
+				_contentHandler = (ContentHandler)clazz.newInstance();
+				_httpOperationHandler = new DefaultHTTPHandler(_contentHandler);
+			}
+			catch (Exception ex) {
+				LOGGER.log(Level.WARNING, "Cannot load the content handler " + config.get("contenthandler") + 
+						   ", the files are delivered from the public folder", ex);
+			}
+		}
+		
 		// this is some additional config for this request handler
 		if (config.containsKey("publicfolder")) {
 			_contentHandler.setRootFolder(config.get("publicfolder"));
@@ -163,6 +454,47 @@ public class WebServerHandler implements RequestHandler {
 		}
 		
 		LOGGER.log(Level.INFO, "Root folder from config: " + _contentHandler.getRootFolder());
+		_contentHandler.onInit(config);
+		
+		// the persistent connection settings, an idle connection holds a worker in the blocking mode
+		if (!ServerListener.isReactorMode(config) && !WorkerExecutors.isVirtualMode(config)) {
+			_keepAliveTimeout = DEFAULT_BLOCKING_KEEP_ALIVE_TIMEOUT;
+		}
+		try {
+			if (config.containsKey("keepalivetimeout")) {
+				_keepAliveTimeout = Integer.parseInt(config.get("keepalivetimeout"));
+			}
+			if (config.containsKey("keepalivemax")) {
+				_keepAliveMax = Integer.parseInt(config.get("keepalivemax"));
+			}
+		}
+		catch (NumberFormatException ex) {
+			LOGGER.log(Level.WARNING, "Cannot parse the keep-alive configuration", ex);
+		}
+		LOGGER.info("Persistent connections wait " + _keepAliveTimeout + " ms for their next request");
+		
+		// the request body settings
+		try {
+			if (config.containsKey("maxbodysize")) {
+				_maxBodySize = Long.parseLong(config.get("maxbodysize"));
+			}
+			if (config.containsKey("spoolthreshold")) {
+				_spoolThreshold = Integer.parseInt(config.get("spoolthreshold"));
+			}
+		}
+		catch (NumberFormatException ex) {
+			LOGGER.log(Level.WARNING, "Cannot parse the request body configuration", ex);
+		}
+		
+		// the time an asynchronous handler has to answer
+		try {
+			if (config.containsKey("asynctimeout")) {
+				_asyncTimeout = Long.parseLong(config.get("asynctimeout"));
+			}
+		}
+		catch (NumberFormatException ex) {
+			LOGGER.log(Level.WARNING, "Cannot parse the asynchronous timeout", ex);
+		}
 		
 		// checking if any handler are configured to be used here
 		Map<String, Map<String, String>> allHandlerConfig = WebContainer.getHandlersConfig();
@@ -177,6 +509,9 @@ public class WebServerHandler implements RequestHandler {
 			ChainedHTTPMethodHandler previous = null;
 			ChainedHTTPMethodHandler current = null;
 			int success = 0, failure = 0;
+			
+			// the handlers with a path are routed, the others stay in the chain
+			HTTPRouter router = new HTTPRouter();
 
 			// setting the handlers list to be instanciated
 			List<String> handlers = new ArrayList<String>();
@@ -202,7 +537,8 @@ public class WebServerHandler implements RequestHandler {
 				 * be registered as the HTTP handler. If it's not the first handler, 
 				 * the successor link is made after it is instanciated. the "previous" 
 				 * handler will have the next instance as the successor. The default
-				 * GET handler is added last all the time.
+				 * GET handler is added last all the time. A handler with a path is
+				 * not in the chain, the router calls it before the chain.
 				 */
 				try {
 					
@@ -210,19 +546,19 @@ public class WebServerHandler implements RequestHandler {
 					String className = handlerConfig.get("class");
 					Class<?> clazz = WebContainer.getDefaultClassLoader().loadClass(className);
 
+					if (handlerConfig.containsKey("path")) {
+						int methods = HTTPMethod.mask(handlerConfig.get("methods"));
+						current = newHandler(clazz, handlerConfig);
+						router.addRoute(handlerConfig.get("path"), methods, current);
+					}
 					// This is the first handle to be instanciate
-					if (first == null) {
-						first = (ChainedHTTPMethodHandler)clazz.newInstance();
-						first.onInit(handlerConfig);
-						first.registerContentHandler(_contentHandler);
-						registerHTTPHandler(first);
+					else if (first == null) {
+						first = newHandler(clazz, handlerConfig);
 						previous = first;
 					}
 					else {
 						// this is not the first handler
-						current = (ChainedHTTPMethodHandler)clazz.newInstance();
-						current.onInit(handlerConfig);
-						current.registerContentHandler(_contentHandler);
+						current = newHandler(clazz, handlerConfig);
 						
 						// setting the successor of the preivous
 						previous.setSuccessor(current);
@@ -247,12 +583,54 @@ public class WebServerHandler implements RequestHandler {
 					LOGGER.log(Level.SEVERE, "IllegalAccessException for class " + s, e);
 					failure++;
 				}
+				catch (IllegalArgumentException e) {
+					LOGGER.log(Level.SEVERE, "Cannot parse the methods of the handler " + s, e);
+					failure++;
+				}
+			}
+
+			// the router dispatches on the path, the chain is its fallback
+			if (router.size() > 0) {
+				router.setFallback(first);
+				registerHTTPHandler(router);
+				LOGGER.info(router.size() + " handlers routed by path");
+			}
+			else if (first != null) {
+				registerHTTPHandler(first);
 			}
 
 			LOGGER.log(Level.INFO, "Handler instanciated: " + success + " failed: " + failure);
 		}
 	}
 	
+	/**
+	 * Create and initialize a handler of the chain. A handler with the cachettl property
+	 * gets a response cache in front of it.
+	 * @param clazz the class of the handler
+	 * @param handlerConfig the configuration of the handler
+	 * @return the handler
+	 * @throws InstantiationException if the class cannot be instanciated
+	 * @throws IllegalAccessException if the constructor is not accessible
+	 */
+	private ChainedHTTPMethodHandler newHandler(Class<?> clazz, Map<String, String> handlerConfig) 
+			throws InstantiationException, IllegalAccessException {
+		ChainedHTTPMethodHandler handler = (ChainedHTTPMethodHandler)clazz.newInstance();
+		handler.onInit(handlerConfig);
+		
+		if (handlerConfig.containsKey("cachettl")) {
+			if (handler instanceof ChainedAsyncHTTPMethodHandler) {
+				LOGGER.log(Level.WARNING, "The responses of the asynchronous handler " + clazz.getName() + " are not cached");
+			}
+			else {
+				handler = new CachingHTTPMethodHandler(handler);
+				handler.onInit(handlerConfig);
+			}
+		}
+		
+		handler.registerContentHandler(_contentHandler);
+		return handler;
+	}
+	
 	/**
 	 * Register an instance of a WebSocketCallback. When a WebSocket upgrade request comes
 	 * from a client, this callback will be called after the initial handshake.
@@ -269,4 +647,55 @@ public class WebServerHandler implements RequestHandler {
 	public void registerHTTPHandler(HTTPMethodHandler h) {
 		_httpOperationHandler = h;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * the state of a connection that is kept between its requests, even while it waits
+	 * for an asynchronous response
+	 */
+	private static class Connection {
+		
+		/**
+		 * the client socket
+		 */
+		private Socket _socket = null;
+		
+		/**
+		 * reads the requests of the connection, created with the first one
+		 */
+		private HTTPRequestParser _parser = null;
+		
+		/**
+		 * the stream of the responses, created with the parser
+		 */
+		private ClientOutputStream _out = null;
+		
+		/**
+		 * the number of requests read on the connection, compared to the keep-alive maximum
+		 */
+		private int _requestCount = 0;
+		
+		/**
+		 * the number of requests read since the socket was handed over, the requests after
+		 * the first one are waited for with the keep-alive timeout
+		 */
+		private int _served = 0;
+		
+		/**
+		 * the reactor that waits for the next request, null in the blocking mode
+		 */
+		private IdleConnectionWatcher _watcher = null;
+		
+		/**
+		 * Keep the state of a connection, a socket handed over by the reactor brings
+		 * its watcher and the number of requests it read already
+		 * @param socket the client socket
+		 */
+		public Connection(Socket socket) {
+			_socket = socket;
+			if (socket instanceof PrefetchedSocket) {
+				_watcher = ((PrefetchedSocket)socket).getWatcher();
+				_requestCount = ((PrefetchedSocket)socket).getRequestCount();
+			}
+		}
+	}
+}
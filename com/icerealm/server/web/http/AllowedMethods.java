@@ -0,0 +1,116 @@
+package com.icerealm.server.web.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.icerealm.server.request.RequestEntireContent;
+import com.icerealm.server.web.io.ErrorResponse;
+
+/**
+ * The methods a path accepts, with the answer to an OPTIONS request and the
+ * 405 Method Not Allowed of the other methods. Both carry an Allow field and are
+ * serialized once for each set of methods. A path that accepts GET accepts HEAD,
+ * every path accepts OPTIONS.
+ * @author neilson
+ *
+ */
+public class AllowedMethods {
+
+	/**
+	 * the instances by mask, a server has a few of them
+	 */
+	private static final ConcurrentHashMap<Integer, AllowedMethods> INSTANCES = new ConcurrentHashMap<Integer, AllowedMethods>();
+
+	/**
+	 * the methods of the static files
+	 */
+	public static final AllowedMethods STATIC = of(HTTPMethod.GET.bit());
+
+	/**
+	 * the mask of the methods
+	 */
+	private int _mask = 0;
+
+	/**
+	 * the answer to OPTIONS
+	 */
+	private ErrorResponse _options = null;
+
+	/**
+	 * the answer to the other methods
+	 */
+	private ErrorResponse _notAllowed = null;
+
+	/**
+	 * use of()
+	 * @param mask the mask of the methods, with HEAD and OPTIONS
+	 */
+	private AllowedMethods(int mask) {
+		_mask = mask;
+
+		StringBuilder allow = new StringBuilder("Allow: ");
+		for (HTTPMethod method : HTTPMethod.values()) {
+			if (method.in(mask)) {
+				allow.append(method.name()).append(", ");
+			}
+		}
+		allow.setLength(allow.length() - 2);
+		allow.append("\r\n");
+
+		_options = new ErrorResponse("200 OK", allow.toString(), "");
+		_notAllowed = new ErrorResponse("405 Method Not Allowed", allow.toString(), "Error 405 Method Not Allowed\n");
+	}
+
+	/**
+	 * Return the methods of a mask
+	 * @param mask the mask of the methods, see HTTPMethod.mask()
+	 * @return the methods, with HEAD when GET is in the mask, and OPTIONS
+	 */
+	public static AllowedMethods of(int mask) {
+		if (HTTPMethod.GET.in(mask)) {
+			mask |= HTTPMethod.HEAD.bit();
+		}
+		mask |= HTTPMethod.OPTIONS.bit();
+
+		Integer key = Integer.valueOf(mask);
+		AllowedMethods methods = INSTANCES.get(key);
+		if (methods == null) {
+			methods = new AllowedMethods(mask);
+			AllowedMethods existing = INSTANCES.putIfAbsent(key, methods);
+			if (existing != null) {
+				methods = existing;
+			}
+		}
+		return methods;
+	}
+
+	/**
+	 * determine if a method is allowed
+	 * @param method the method, can be null
+	 * @return true if the method is in the set
+	 */
+	public boolean contains(HTTPMethod method) {
+		return method != null && method.in(_mask);
+	}
+
+	/**
+	 * Answer a request with these methods: OPTIONS gets the Allow field, the other
+	 * methods get a 405. The body of the request is not read, the connection is
+	 * closed after the response when there is one.
+	 * @param request the request
+	 * @param out the client stream
+	 * @throws IOException if the stream fails
+	 */
+	public void writeTo(RequestEntireContent request, OutputStream out) throws IOException {
+		if (request.getContentLength() != 0) {
+			request.setKeepAlive(false);
+		}
+		if (HTTPMethod.of(request) == HTTPMethod.OPTIONS) {
+			_options.writeTo(out, request.isKeepAlive());
+		}
+		else {
+			_notAllowed.writeTo(out, request.isKeepAlive());
+		}
+	}
+}
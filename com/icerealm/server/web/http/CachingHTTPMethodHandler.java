@@ -0,0 +1,611 @@
+package com.icerealm.server.web.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.icerealm.server.WebContainer;
+import com.icerealm.server.request.RequestEntireContent;
+import com.icerealm.server.stats.CacheStatistic;
+import com.icerealm.server.stats.StatisticRegistry;
+import com.icerealm.server.web.io.CachePolicy;
+import com.icerealm.server.web.io.ClientOutputStream;
+import com.icerealm.server.web.io.ContentHandler;
+
+/**
+ * Keeps the responses of a handler for a short time, so a page that is expensive to
+ * render is rendered once for many visitors. It is put in front of a handler of the
+ * chain by the cachettl property of its &lt;handler&gt; entry:
+ * <pre>
+ * cachettl     the time a response is fresh, in ms
+ * cachestale   the time a response is still sent after it expired while it is rendered again, in ms
+ * cachesize    the memory budget of the responses, in bytes
+ * cachequery   the query parameters that are part of the key, like "page,sort", "*" for the whole query
+ * cachevary    the header fields that are part of the key, like "Accept-Language"
+ * cachewait    the time a request waits for the same response rendered by another request, in ms
+ * cachepolicy  lru or tinylfu
+ * </pre>
+ * Only the GET requests are cached, a HEAD gets the header of the cached GET. Only
+ * the 200 responses with a Content-Length and without Set-Cookie, Cache-Control:
+ * private or no-store are kept. When requests miss the same key at once, one of them
+ * runs the handler and the others wait for its response. A key whose response is not
+ * kept goes straight to the handler for the cachettl, its requests do not wait for
+ * one another to render the same response again.
+ * A stale response is sent at once, the new one is rendered by the refresh thread of
+ * the cache from a copy of the request. A request with an Authorization field, or with
+ * a Cookie field when cachevary does not name it, is never answered from the cache
+ * nor stored: its response can belong to one user.
+ * @author neilson
+ *
+ */
+public class CachingHTTPMethodHandler extends ChainedHTTPMethodHandler {
+
+	/**
+	 * the logger
+	 */
+	private static final Logger LOGGER = Logger.getLogger("Icerealm");
+
+	/**
+	 * the default memory budget, in bytes
+	 */
+	public static final long DEFAULT_BUDGET = 1048576;
+
+	/**
+	 * the default time a request waits for the response of another request, in ms
+	 */
+	public static final long DEFAULT_WAIT = 10000;
+
+	/**
+	 * the charset of the header fields
+	 */
+	private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+
+	/**
+	 * the maximum number of keys remembered as not cacheable, the older ones are
+	 * forgotten when it is reached
+	 */
+	private static final int MAX_UNCACHEABLE = 10000;
+
+	/**
+	 * the handler whose responses are cached
+	 */
+	private ChainedHTTPMethodHandler _handler = null;
+
+	/**
+	 * the time a response is fresh, in ms
+	 */
+	private long _ttl = 0;
+
+	/**
+	 * the time a response is sent after it expired, while it is rendered again, in ms
+	 */
+	private long _stale = 0;
+
+	/**
+	 * the time a request waits for the response of another request, in ms
+	 */
+	private long _wait = DEFAULT_WAIT;
+
+	/**
+	 * the query parameters of the key, in a fixed order
+	 */
+	private String[] _queryParameters = new String[0];
+
+	/**
+	 * true if the whole query string is part of the key
+	 */
+	private boolean _wholeQuery = false;
+
+	/**
+	 * the header fields of the key
+	 */
+	private String[] _varyFields = new String[0];
+
+	/**
+	 * the responses by key, guarded by this
+	 */
+	private Map<String, Entry> _entries = new HashMap<String, Entry>();
+
+	/**
+	 * decides which responses stay within the budget, guarded by this
+	 */
+	private CachePolicy<String> _policy = null;
+
+	/**
+	 * the responses being rendered by key, the other requests wait for them
+	 */
+	private ConcurrentHashMap<String, Pending> _pending = new ConcurrentHashMap<String, Pending>();
+
+	/**
+	 * the keys whose last response could not be cached, with the time until their
+	 * requests go straight to the handler, in ms
+	 */
+	private ConcurrentHashMap<String, Long> _uncacheable = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * the counters of the cache
+	 */
+	private CacheStatistic _statistic = null;
+
+	/**
+	 * true if the Cookie field is part of the key
+	 */
+	private boolean _varyCookie = false;
+
+	/**
+	 * renders the stale responses again, created on first use
+	 */
+	private ExecutorService _refresher = null;
+
+	/**
+	 * Put a cache in front of a handler
+	 * @param handler the handler, its onInit() is called already
+	 */
+	public CachingHTTPMethodHandler(ChainedHTTPMethodHandler handler) {
+		_handler = handler;
+	}
+
+	/**
+	 * read the cache properties of the &lt;handler&gt; entry
+	 */
+	@Override
+	public void onInit(Map<String, String> config) {
+		long budget = DEFAULT_BUDGET;
+		try {
+			_ttl = Long.parseLong(config.get("cachettl"));
+			if (config.containsKey("cachestale")) {
+				_stale = Long.parseLong(config.get("cachestale"));
+			}
+			if (config.containsKey("cachesize")) {
+				budget = Long.parseLong(config.get("cachesize"));
+			}
+			if (config.containsKey("cachewait")) {
+				_wait = Long.parseLong(config.get("cachewait"));
+			}
+		}
+		catch (NumberFormatException ex) {
+			LOGGER.log(Level.WARNING, "Cannot parse the response cache configuration", ex);
+		}
+
+		if (config.containsKey("cachequery")) {
+			_wholeQuery = config.get("cachequery").trim().equals("*");
+			_queryParameters = split(config.get("cachequery"));
+		}
+		if (config.containsKey("cachevary")) {
+			_varyFields = split(config.get("cachevary"));
+			for (String field : _varyFields) {
+				_varyCookie |= field.equalsIgnoreCase("Cookie");
+			}
+		}
+
+		_policy = CachePolicy.<String>newPolicy(config.get("cachepolicy"), budget);
+		String name = config.get(WebContainer.getDefaultAppName()) + ".responsecache";
+		_statistic = new CacheStatistic(name);
+		StatisticRegistry.register(name, _statistic);
+		LOGGER.info("Response cache of " + budget + " bytes for " + config.get(WebContainer.getDefaultAppName()) +
+					", fresh for " + _ttl + " ms and stale for " + _stale + " ms");
+	}
+
+	@Override
+	public boolean canHandleRequest(RequestEntireContent request) {
+		return _handler.canHandleRequest(request);
+	}
+
+	@Override
+	public boolean pushToSuccessor() {
+		return _handler.pushToSuccessor();
+	}
+
+	@Override
+	public void registerContentHandler(ContentHandler contentHandler) {
+		super.registerContentHandler(contentHandler);
+		_handler.registerContentHandler(contentHandler);
+	}
+
+	@Override
+	public void specializedHandleHTTPOperation(RequestEntireContent c, OutputStream w) {
+		HTTPMethod method = HTTPMethod.of(c);
+		if ((method != HTTPMethod.GET && method != HTTPMethod.HEAD) || isPrivate(c)) {
+			_handler.specializedHandleHTTPOperation(c, w);
+			return;
+		}
+
+		String key = getKey(c);
+		Entry entry = get(key);
+		long now = System.currentTimeMillis();
+
+		try {
+			// a HEAD is answered with the response of the GET, its own response is not kept
+			if (method == HTTPMethod.HEAD) {
+				if (entry != null && now < entry._expires + _stale) {
+					_statistic.hit();
+					write(entry, w, now);
+				}
+				else {
+					_handler.specializedHandleHTTPOperation(c, w);
+				}
+				return;
+			}
+
+			if (entry != null && now < entry._expires + _stale) {
+				_statistic.hit();
+				write(entry, w, now);
+
+				// the client has its response, the refresh thread renders the next one
+				if (now >= entry._expires && entry._refreshing.compareAndSet(false, true)) {
+					refresh(key, entry, c);
+				}
+				return;
+			}
+			_statistic.miss();
+
+			// a key that did not give a cacheable response is not waited for during the TTL,
+			// the waiters would only render it again after the leader
+			if (isUncacheable(key, now)) {
+				_handler.specializedHandleHTTPOperation(c, w);
+				return;
+			}
+
+			// one request renders the response, the others wait for it
+			Pending pending = new Pending();
+			Pending leader = _pending.putIfAbsent(key, pending);
+			if (leader != null) {
+				Entry shared = leader.await(_wait);
+				if (shared != null) {
+					write(shared, w, System.currentTimeMillis());
+				}
+				else {
+					_handler.specializedHandleHTTPOperation(c, w);
+				}
+				return;
+			}
+
+			Captured captured = null;
+			try {
+				captured = render(c);
+				if (captured._entry != null) {
+					put(key, captured._entry);
+				}
+				else {
+					setUncacheable(key, now + _ttl);
+				}
+			}
+			finally {
+				_pending.remove(key, pending);
+				pending.done(captured != null ? captured._entry : null);
+			}
+			w.write(captured._bytes);
+			w.flush();
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.FINE, "Problem writing a cached response: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * determine if the last response of a key could not be cached, within the TTL
+	 * @param key the key
+	 * @param now the current time, in ms
+	 * @return true if the request must go straight to the handler
+	 */
+	private boolean isUncacheable(String key, long now) {
+		Long until = _uncacheable.get(key);
+		if (until == null) {
+			return false;
+		}
+		if (now < until.longValue()) {
+			return true;
+		}
+		_uncacheable.remove(key, until);
+		return false;
+	}
+
+	/**
+	 * remember that the response of a key could not be cached
+	 * @param key the key
+	 * @param until the time until its requests go straight to the handler, in ms
+	 */
+	private void setUncacheable(String key, long until) {
+		if (_uncacheable.size() >= MAX_UNCACHEABLE) {
+			_uncacheable.clear();
+		}
+		_uncacheable.put(key, until);
+	}
+
+	/**
+	 * determine if the response of a request can belong to one user
+	 * @param c the request
+	 * @return true if the request has an Authorization field, or a Cookie field that is
+	 * not part of the key
+	 */
+	private boolean isPrivate(RequestEntireContent c) {
+		return c.getHeaderLine("Authorization") != null || (!_varyCookie && c.getHeaderLine("Cookie") != null);
+	}
+
+	/**
+	 * render a stale response again on the refresh thread. The request is copied, the
+	 * worker reads the next request of the connection meanwhile
+	 * @param key the key
+	 * @param entry the stale entry
+	 * @param c the request
+	 */
+	private void refresh(final String key, final Entry entry, RequestEntireContent c) {
+		// the copy is persistent, so the response is not refused for its Connection: close
+		final RequestEntireContent copy = new RequestEntireContent(new ArrayList<String>(c.getRequestHeader()), new ArrayList<String>());
+		copy.setKeepAlive(true);
+		try {
+			getRefresher().execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						Captured fresh = render(copy);
+						if (fresh._entry != null) {
+							put(key, fresh._entry);
+						}
+					}
+					catch (RuntimeException ex) {
+						LOGGER.log(Level.WARNING, "Problem rendering a stale response again: " + ex.getMessage(), ex);
+					}
+					finally {
+						entry._refreshing.set(false);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException ex) {
+			entry._refreshing.set(false);
+		}
+	}
+
+	/**
+	 * return the refresh thread, it is created on first use
+	 * @return the executor
+	 */
+	private synchronized ExecutorService getRefresher() {
+		if (_refresher == null) {
+			_refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Icerealm-cache-refresh");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return _refresher;
+	}
+
+	/**
+	 * build the key of a request from its path, the selected query parameters and
+	 * the selected header fields
+	 * @param c the request
+	 * @return the key
+	 */
+	private String getKey(RequestEntireContent c) {
+		String uri = c.getRequestURI();
+		int question = uri.indexOf('?');
+		String query = question >= 0 ? uri.substring(question + 1) : "";
+		StringBuilder key = new StringBuilder(question >= 0 ? uri.substring(0, question) : uri);
+
+		if (_wholeQuery) {
+			key.append('?').append(query);
+		}
+		else if (_queryParameters.length > 0) {
+			key.append('?');
+			for (String parameter : _queryParameters) {
+				key.append(parameter).append('=');
+				for (String pair : query.split("&")) {
+					if (pair.equals(parameter) || pair.startsWith(parameter + "=")) {
+						key.append(pair.substring(parameter.length()));
+						break;
+					}
+				}
+				key.append('&');
+			}
+		}
+		for (String field : _varyFields) {
+			String value = c.getHeaderLine(field);
+			key.append('\n').append(value != null ? value : "");
+		}
+		return key.toString();
+	}
+
+	/**
+	 * run the handler and keep its response
+	 * @param c the request
+	 * @return the bytes of the response, and its entry if it can be cached
+	 */
+	private Captured render(RequestEntireContent c) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+		_handler.specializedHandleHTTPOperation(c, new ClientOutputStream(bytes));
+		Captured captured = new Captured();
+		captured._bytes = bytes.toByteArray();
+		captured._entry = toEntry(captured._bytes);
+		return captured;
+	}
+
+	/**
+	 * make an entry of a response that can be shared
+	 * @param response the bytes of the response
+	 * @return the entry, null if the response cannot be cached
+	 */
+	private Entry toEntry(byte[] response) {
+		int statusEnd = indexOf(response, "\r\n".getBytes(), 0);
+		int headerEnd = indexOf(response, "\r\n\r\n".getBytes(), 0);
+		if (statusEnd < 0 || headerEnd < 0 || response.length > _policy.getBudget()) {
+			return null;
+		}
+
+		String header = new String(response, 0, headerEnd + 2, HEADER_CHARSET).toLowerCase();
+		String statusLine = header.substring(0, statusEnd);
+		if (!statusLine.matches("http/1\\.[01] 200( .*)?") || !header.contains("\r\ncontent-length:") ||
+			header.contains("\r\ntransfer-encoding:") || header.contains("\r\nset-cookie:") ||
+			header.contains("\r\nconnection: close") || header.matches("(?s).*\r\ncache-control:[^\r]*(private|no-store).*")) {
+			return null;
+		}
+
+		Entry entry = new Entry();
+		entry._response = response;
+		entry._statusEnd = statusEnd + 2;
+		entry._created = System.currentTimeMillis();
+		entry._expires = entry._created + _ttl;
+		return entry;
+	}
+
+	/**
+	 * write a cached response with its Age field
+	 */
+	private void write(Entry entry, OutputStream w, long now) throws IOException {
+		byte[] age = ("Age: " + Math.max(0, (now - entry._created) / 1000) + "\r\n").getBytes();
+		byte[] response = entry._response;
+		if (w instanceof ClientOutputStream) {
+			((ClientOutputStream)w).write(new ByteBuffer[] {
+				ByteBuffer.wrap(response, 0, entry._statusEnd),
+				ByteBuffer.wrap(age),
+				ByteBuffer.wrap(response, entry._statusEnd, response.length - entry._statusEnd)
+			});
+		}
+		else {
+			w.write(response, 0, entry._statusEnd);
+			w.write(age);
+			w.write(response, entry._statusEnd, response.length - entry._statusEnd);
+		}
+		w.flush();
+	}
+
+	/**
+	 * return the entry of a key
+	 * @param key the key
+	 * @return the entry, null if there is none
+	 */
+	private synchronized Entry get(String key) {
+		Entry entry = _entries.get(key);
+		if (entry != null) {
+			_policy.onAccess(key);
+		}
+		return entry;
+	}
+
+	/**
+	 * add an entry and remove the ones the policy chooses
+	 * @param key the key
+	 * @param entry the entry
+	 */
+	private synchronized void put(String key, Entry entry) {
+		Entry old = _entries.remove(key);
+		if (old != null) {
+			_policy.onRemove(key);
+			_statistic.removed(old._response.length);
+		}
+		_entries.put(key, entry);
+		_statistic.added(entry._response.length);
+
+		List<String> evicted = _policy.onInsert(key, entry._response.length);
+		for (String victim : evicted) {
+			Entry removed = _entries.remove(victim);
+			if (removed != null) {
+				_statistic.removed(removed._response.length);
+				_statistic.evicted();
+			}
+		}
+	}
+
+	/**
+	 * split a comma separated list
+	 */
+	private static String[] split(String list) {
+		String[] items = list.split(",");
+		for (int i = 0; i < items.length; i++) {
+			items[i] = items[i].trim();
+		}
+		return items;
+	}
+
+	/**
+	 * find a sequence of bytes
+	 */
+	private static int indexOf(byte[] bytes, byte[] sequence, int from) {
+		for (int i = from; i <= bytes.length - sequence.length; i++) {
+			int j = 0;
+			while (j < sequence.length && bytes[i + j] == sequence[j]) {
+				j++;
+			}
+			if (j == sequence.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * a cached response
+	 */
+	private static class Entry {
+
+		private byte[] _response = null;
+		private int _statusEnd = 0;
+		private long _created = 0;
+		private long _expires = 0;
+		private AtomicBoolean _refreshing = new AtomicBoolean(false);
+	}
+
+	/**
+	 * the response of a run of the handler
+	 */
+	private static class Captured {
+
+		private byte[] _bytes = null;
+		private Entry _entry = null;
+	}
+
+	/**
+	 * a response being rendered, the requests of the same key wait for it
+	 */
+	private static class Pending {
+
+		private CountDownLatch _latch = new CountDownLatch(1);
+		private volatile Entry _entry = null;
+
+		/**
+		 * @param wait the maximum time to wait, in ms
+		 * @return the entry, null if the response cannot be shared or is not ready in time
+		 */
+		public Entry await(long wait) {
+			try {
+				if (_latch.await(wait, TimeUnit.MILLISECONDS)) {
+					return _entry;
+				}
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			return null;
+		}
+
+		/**
+		 * @param entry the entry, null if the response cannot be shared
+		 */
+		public void done(Entry entry) {
+			_entry = entry;
+			_latch.countDown();
+		}
+	}
+}
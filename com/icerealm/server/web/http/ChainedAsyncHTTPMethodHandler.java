@@ -0,0 +1,53 @@
+package com.icerealm.server.web.http;
+
+import java.io.OutputStream;
+
+import com.icerealm.server.request.AsyncResponse;
+import com.icerealm.server.request.RequestEntireContent;
+
+/**
+ * A handler of the chain that answers its requests asynchronously. It starts the work,
+ * like a call to a backend on its own executor, and returns: the worker goes back to
+ * the pool while the response is computed. The response is written when the work
+ * completes the AsyncResponse:
+ * <pre>
+ * public void specializedHandleAsync(RequestEntireContent c, final AsyncResponse response) {
+ *     response.setTask(_backend.submit(new Runnable() {
+ *         public void run() {
+ *             response.complete(render(query()));
+ *         }
+ *     }));
+ * }
+ * </pre>
+ * The synchronous handlers of the chain keep working as they are, the worker waits
+ * for them. An asynchronous handler does not pass its requests to its successor, the
+ * response belongs to it.
+ * @author neilson
+ *
+ */
+public abstract class ChainedAsyncHTTPMethodHandler extends ChainedHTTPMethodHandler {
+
+	/**
+	 * Start the work of a request and return without waiting for it. A failure is
+	 * answered with a 500, the timeout of the plugin applies unless the response has its own.
+	 * @param c the entire request content
+	 * @param response the response to complete, from any thread
+	 */
+	public abstract void specializedHandleAsync(RequestEntireContent c, AsyncResponse response);
+
+	@Override
+	public boolean pushToSuccessor() {
+		return false;
+	}
+
+	@Override
+	public void specializedHandleHTTPOperation(RequestEntireContent c, OutputStream w) {
+		AsyncResponse response = c.startAsync(w);
+		try {
+			specializedHandleAsync(c, response);
+		}
+		catch (RuntimeException ex) {
+			response.fail(ex);
+		}
+	}
+}
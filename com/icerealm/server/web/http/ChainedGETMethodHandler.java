@@ -4,11 +4,14 @@ import java.io.OutputStream;
 import java.util.Map;
 
 import com.icerealm.server.request.RequestEntireContent;
+import com.icerealm.server.web.io.ClientOutputStream;
 import com.icerealm.server.web.io.ContentHandler;
 
 /**
- * This class uses the DefaultHTTPMethodHandler to deliver any GET request
- * content. The Composition pattern has been used for this implementation. 
+ * This class uses the DefaultHTTPMethodHandler to deliver any GET or HEAD request
+ * content. The Composition pattern has been used for this implementation. It is the
+ * last handler of the chain and answers only the requests no handler before answered:
+ * a GET or a HEAD gets its file, the other methods their OPTIONS, 405 or 501 answer.
  * @author neilson
  *
  */
@@ -21,10 +24,7 @@ public class ChainedGETMethodHandler extends ChainedHTTPMethodHandler {
 	
 	@Override
 	public boolean canHandleRequest(RequestEntireContent request) {
-		if (request.getFirstHeaderLine().contains("GET")) {
-			return true;
-		}
-		return false;
+		return true;
 	}
 	
 	@Override
@@ -41,7 +41,24 @@ public class ChainedGETMethodHandler extends ChainedHTTPMethodHandler {
 
 	@Override
 	public void specializedHandleHTTPOperation(RequestEntireContent c, OutputStream w) {
-		_handler.handleHTTPOperation(c, w);
+		if (!isAnswered(c, w)) {
+			_handler.handleHTTPOperation(c, w);
+		}
+	}
+	
+	/**
+	 * determine if a handler before this one answered the request. The bytes written
+	 * to a stream that is not the client stream cannot be counted, the request is then
+	 * taken as answered rather than answered twice.
+	 * @param c the request
+	 * @param w the client stream
+	 * @return true if a response is written or will be written asynchronously
+	 */
+	static boolean isAnswered(RequestEntireContent c, OutputStream w) {
+		if (c.getAsyncResponse() != null) {
+			return true;
+		}
+		return !(w instanceof ClientOutputStream) || ((ClientOutputStream)w).getBytesWritten() > 0;
 	}
 
 	@Override
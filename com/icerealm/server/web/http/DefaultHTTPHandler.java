@@ -1,11 +1,27 @@
 package com.icerealm.server.web.http;
 
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import com.icerealm.server.request.RequestEntireContent;
 import com.icerealm.server.web.io.ContentHandler;
+import com.icerealm.server.web.io.ErrorResponse;
 
+/**
+ * Delivers the static files. GET and HEAD are answered by the ContentHandler, the
+ * server drops the body of a HEAD response. OPTIONS gets the methods of the files,
+ * the other methods get a 405 Method Not Allowed and an unknown method a 501.
+ * @author neilson
+ *
+ */
 public class DefaultHTTPHandler implements HTTPMethodHandler {
 
+	/**
+	 * default logger
+	 */
+	private static final Logger LOGGER = Logger.getLogger("Icerealm");
+
 	/**
 	 * the default ContentHandler to be used in in this implementation
 	 */
@@ -31,16 +47,32 @@ public class DefaultHTTPHandler implements HTTPMethodHandler {
 
 	@Override
 	public void handleHTTPOperation(RequestEntireContent content, OutputStream pw) {
+		HTTPMethod method = HTTPMethod.of(content);
 		
-		if (content.getFirstHeaderLine().contains("GET")) {
-			String[] tokenized = content.getFirstHeaderLine().split(" ");
-			String ressource = tokenized[1].substring(1);
-			
-			// construct the byte array for the wanted resource
-			byte[] binContent = _contentHandler.writeContent(ressource);
+		// write the response for the wanted resource, the stream is closed unless the connection is persistent
+		try {
+			if (method == HTTPMethod.GET || method == HTTPMethod.HEAD) {
+				String ressource = content.getRequestURI();
+				if (ressource.length() > 0) {
+					ressource = ressource.substring(1);
+				}
+				_contentHandler.writeContent(ressource, content, pw);
+			}
+			else if (method == null) {
+				// the body of an unknown method cannot be skipped
+				content.setKeepAlive(false);
+				ErrorResponse.NOT_IMPLEMENTED.writeTo(pw, false);
+			}
+			else {
+				AllowedMethods.STATIC.writeTo(content, pw);
+			}
 			
-			// write the content of the byte array and close the stream
-			_contentHandler.writeIntoStream(pw, binContent, true);
+			if (!content.isKeepAlive()) {
+				pw.close();
+			}
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Problem writing content to the client: " + ex.getMessage(), ex);
 		}
 	}
 
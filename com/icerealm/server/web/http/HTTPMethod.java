@@ -0,0 +1,91 @@
+package com.icerealm.server.web.http;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.icerealm.server.request.RequestEntireContent;
+
+/**
+ * The methods of HTTP/1.1. Each method has a bit, a set of methods is an int mask that
+ * a router tests with one AND.
+ * @author neilson
+ *
+ */
+public enum HTTPMethod {
+
+	GET, HEAD, POST, PUT, DELETE, OPTIONS, PATCH, TRACE, CONNECT;
+
+	/**
+	 * the mask of every method
+	 */
+	public static final int ALL = (1 << values().length) - 1;
+
+	/**
+	 * the methods by name, the names are case-sensitive
+	 */
+	private static final Map<String, HTTPMethod> NAMES = new HashMap<String, HTTPMethod>();
+
+	static {
+		for (HTTPMethod method : values()) {
+			NAMES.put(method.name(), method);
+		}
+	}
+
+	/**
+	 * the bit of the method in a mask
+	 * @return the bit
+	 */
+	public int bit() {
+		return 1 << ordinal();
+	}
+
+	/**
+	 * determine if a mask contains this method
+	 * @param mask the mask of methods
+	 * @return true if the bit of this method is set
+	 */
+	public boolean in(int mask) {
+		return (mask & bit()) != 0;
+	}
+
+	/**
+	 * Return the method of a request
+	 * @param name the method name of the request line, like "GET"
+	 * @return the method, null if it is not a method of HTTP/1.1
+	 */
+	public static HTTPMethod parse(String name) {
+		return name != null ? NAMES.get(name) : null;
+	}
+
+	/**
+	 * Return the method of a request, the handlers dispatch on it instead of
+	 * searching the request line
+	 * @param request the request
+	 * @return the method, null if it is not a method of HTTP/1.1
+	 */
+	public static HTTPMethod of(RequestEntireContent request) {
+		return parse(request.getMethodName());
+	}
+
+	/**
+	 * Return the mask of a list of methods
+	 * @param methods the names separated by commas, like "GET,POST". null, empty or "*" is every method
+	 * @return the mask
+	 * @throws IllegalArgumentException if a name is not a method of HTTP/1.1
+	 */
+	public static int mask(String methods) {
+		if (methods == null || methods.trim().length() == 0 || methods.trim().equals("*")) {
+			return ALL;
+		}
+
+		int mask = 0;
+		for (String name : methods.split(",")) {
+			HTTPMethod method = parse(name.trim().toUpperCase());
+			if (method == null) {
+				throw new IllegalArgumentException("Unknown HTTP method: " + name.trim());
+			}
+			mask |= method.bit();
+		}
+		return mask;
+	}
+}
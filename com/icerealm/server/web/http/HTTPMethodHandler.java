@@ -22,7 +22,9 @@ public interface HTTPMethodHandler {
 	/**
 	 * Handle the HTTP request that are received. The RequestEntireContent object
 	 * contains all the information to process a request. The OutputStream can 
-	 * be used to send data back to the client
+	 * be used to send data back to the client. When the request is persistent
+	 * (see RequestEntireContent.isKeepAlive()), the response must have a Content-Length
+	 * or the stream must be closed after it.
 	 * @param c Request content, as received from the client
 	 * @param w Client OutputStream, let the implementation writes anything to it
 	 */
@@ -0,0 +1,303 @@
+package com.icerealm.server.web.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.icerealm.server.request.RequestEntireContent;
+import com.icerealm.server.web.io.ContentHandler;
+
+/**
+ * Dispatches a request to the handlers of its path and method. The routes are built
+ * once, when the plugin starts, from the path and the methods of each handler:
+ * <pre>
+ * &lt;path&gt;/api/users&lt;/path&gt;    the path itself
+ * &lt;path&gt;/api/*&lt;/path&gt;        the path and everything below it
+ * &lt;methods&gt;GET,POST&lt;/methods&gt; the methods, every method when it is omitted
+ * </pre>
+ * The paths are kept in a trie of segments, a request walks one node per segment of
+ * its path and tests the methods of a route with one AND. Its handlers are called from
+ * the most specific route to the least specific one, then the chain of the handlers
+ * without path is called, as before, unless a handler stops it with pushToSuccessor().
+ * <p>
+ * A route that accepts GET accepts HEAD, the server drops the body of the response.
+ * The routes own their paths: a method none of them accepts is answered with a
+ * 405 Method Not Allowed, and OPTIONS with the methods of the path, unless a route
+ * accepts OPTIONS itself. An unknown method is passed to the chain.
+ * @author neilson
+ *
+ */
+public class HTTPRouter implements HTTPMethodHandler {
+
+	/**
+	 * default logger
+	 */
+	private static final Logger LOGGER = Logger.getLogger("Icerealm");
+
+	/**
+	 * the node of the root path "/"
+	 */
+	private Node _root = new Node();
+
+	/**
+	 * the handlers of the routes, in the order they were added
+	 */
+	private List<ChainedHTTPMethodHandler> _handlers = new ArrayList<ChainedHTTPMethodHandler>();
+
+	/**
+	 * the chain of the handlers without path, null if there is none
+	 */
+	private ChainedHTTPMethodHandler _fallback = null;
+
+	/**
+	 * Add a route
+	 * @param path the path, like "/api/users", or "/api/*" for the path and everything below it
+	 * @param methods the mask of the methods, see HTTPMethod.mask()
+	 * @param handler the handler of the route
+	 */
+	public void addRoute(String path, int methods, ChainedHTTPMethodHandler handler) {
+		boolean prefix = path.equals("*") || path.endsWith("/*");
+		String segments = prefix ? path.substring(0, path.length() - 1) : path;
+
+		Node node = _root;
+		int start = 0;
+		while ((start = nextSegment(segments, start)) < segments.length()) {
+			int end = segmentEnd(segments, start);
+			String segment = segments.substring(start, end);
+			Node child = node._children.get(segment);
+			if (child == null) {
+				child = new Node();
+				node._children.put(segment, child);
+			}
+			node = child;
+			start = end;
+		}
+
+		Route route = new Route(methods, handler);
+		if (prefix) {
+			node._prefixRoutes.add(route);
+		}
+		else {
+			node._routes.add(route);
+		}
+		_handlers.add(handler);
+	}
+
+	/**
+	 * Set the chain of the handlers without path, it is called after the routes
+	 * @param fallback the first handler of the chain, can be null
+	 */
+	public void setFallback(ChainedHTTPMethodHandler fallback) {
+		_fallback = fallback;
+	}
+
+	/**
+	 * the number of routes
+	 * @return the number of routes
+	 */
+	public int size() {
+		return _handlers.size();
+	}
+
+	/**
+	 * Find the handlers of a request, the exact routes of the path first, then the routes
+	 * of the parent paths, from the closest one
+	 * @param method the method of the request, null if it is not a method of HTTP/1.1
+	 * @param path the path of the request, without query string
+	 * @return the handlers, in the order they are called, an empty list shared by the
+	 * requests without route, it must not be modified
+	 */
+	public List<ChainedHTTPMethodHandler> match(HTTPMethod method, String path) {
+		List<ChainedHTTPMethodHandler> handlers = null;
+		if (method == null) {
+			return Collections.emptyList();
+		}
+
+		// the handlers of a deeper node go before the ones already found
+		Node node = _root;
+		int start = 0;
+		while (node != null) {
+			handlers = addHandlers(node._prefixRoutes, method, handlers);
+			start = nextSegment(path, start);
+			if (start >= path.length()) {
+				handlers = addHandlers(node._routes, method, handlers);
+				break;
+			}
+			int end = segmentEnd(path, start);
+			node = node._children.get(path.substring(start, end));
+			start = end;
+		}
+		if (handlers == null) {
+			return Collections.emptyList();
+		}
+		return handlers;
+	}
+
+	/**
+	 * Return the methods of the routes of a path
+	 * @param path the path of the request, without query string
+	 * @return the mask of the methods, 0 if no route covers the path
+	 */
+	public int getAllowedMethods(String path) {
+		int mask = 0;
+		Node node = _root;
+		int start = 0;
+		while (node != null) {
+			mask |= getMethods(node._prefixRoutes);
+			start = nextSegment(path, start);
+			if (start >= path.length()) {
+				mask |= getMethods(node._routes);
+				break;
+			}
+			int end = segmentEnd(path, start);
+			node = node._children.get(path.substring(start, end));
+			start = end;
+		}
+		return mask;
+	}
+
+	@Override
+	public void registerContentHandler(ContentHandler contentHandler) {
+		for (ChainedHTTPMethodHandler handler : _handlers) {
+			handler.registerContentHandler(contentHandler);
+		}
+	}
+
+	@Override
+	public void handleHTTPOperation(RequestEntireContent c, OutputStream w) {
+		String uri = c.getRequestURI();
+		int query = uri.indexOf('?');
+		String path = query >= 0 ? uri.substring(0, query) : uri;
+
+		// the route replaces canHandleRequest(), its path and methods matched already
+		HTTPMethod method = HTTPMethod.of(c);
+		List<ChainedHTTPMethodHandler> handlers = match(method, path);
+		for (ChainedHTTPMethodHandler handler : handlers) {
+			handler.specializedHandleHTTPOperation(c, w);
+			if (!handler.pushToSuccessor()) {
+				return;
+			}
+		}
+
+		// the path is routed, the method is not
+		if (handlers.isEmpty() && method != null) {
+			int allowed = getAllowedMethods(path);
+			if (allowed != 0) {
+				try {
+					AllowedMethods.of(allowed).writeTo(c, w);
+				}
+				catch (IOException ex) {
+					LOGGER.log(Level.FINE, "Problem writing the methods of " + path + ": " + ex.getMessage(), ex);
+				}
+				return;
+			}
+		}
+
+		// a routed handler that answered and still pushed to its successor is not answered twice
+		if (_fallback != null && (handlers.isEmpty() || !ChainedGETMethodHandler.isAnswered(c, w))) {
+			_fallback.handleHTTPOperation(c, w);
+		}
+	}
+
+	/**
+	 * add the handlers of the routes that accept a method before the handlers found
+	 * already, in the order of the routes
+	 * @return the handlers, created by the first one, null if there is none yet
+	 */
+	private static List<ChainedHTTPMethodHandler> addHandlers(List<Route> routes, HTTPMethod method, 
+															  List<ChainedHTTPMethodHandler> handlers) {
+		int position = 0;
+		for (int i = 0; i < routes.size(); i++) {
+			Route route = routes.get(i);
+			if (method.in(route._methods) || (method == HTTPMethod.HEAD && HTTPMethod.GET.in(route._methods))) {
+				if (handlers == null) {
+					handlers = new ArrayList<ChainedHTTPMethodHandler>(2);
+				}
+				handlers.add(position++, route._handler);
+			}
+		}
+		return handlers;
+	}
+
+	/**
+	 * the mask of the methods of routes
+	 */
+	private static int getMethods(List<Route> routes) {
+		int mask = 0;
+		for (Route route : routes) {
+			mask |= route._methods;
+		}
+		return mask;
+	}
+
+	/**
+	 * the start of the next segment, the slashes are skipped
+	 */
+	private static int nextSegment(String path, int index) {
+		while (index < path.length() && path.charAt(index) == '/') {
+			index++;
+		}
+		return index;
+	}
+
+	/**
+	 * the end of the segment that starts at an index
+	 */
+	private static int segmentEnd(String path, int start) {
+		int slash = path.indexOf('/', start);
+		return slash >= 0 ? slash : path.length();
+	}
+
+	/**
+	 * a node of the trie, one segment of a path
+	 */
+	private static class Node {
+
+		/**
+		 * the nodes of the next segments
+		 */
+		private Map<String, Node> _children = new HashMap<String, Node>(4);
+
+		/**
+		 * the routes of this path
+		 */
+		private List<Route> _routes = new ArrayList<Route>(1);
+
+		/**
+		 * the routes of this path and of everything below it
+		 */
+		private List<Route> _prefixRoutes = new ArrayList<Route>(1);
+	}
+
+	/**
+	 * a handler and its methods
+	 */
+	private static class Route {
+
+		/**
+		 * the mask of the methods of the route
+		 */
+		private int _methods = 0;
+
+		/**
+		 * the handler called for the route
+		 */
+		private ChainedHTTPMethodHandler _handler = null;
+
+		/**
+		 * default constructor
+		 * @param methods the mask of the methods
+		 * @param handler the handler of the route
+		 */
+		public Route(int methods, ChainedHTTPMethodHandler handler) {
+			_methods = methods;
+			_handler = handler;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package com.icerealm.server.web.io;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.icerealm.server.request.RequestEntireContent;
+
+/**
+ * Delivers a public folder packed in a SiteArchive. The archive is mapped in memory,
+ * a request is answered with one lookup and the body is written from the mapping. A
+ * thread watches the directory of the archive: when a new archive is renamed over it,
+ * the new version is opened and replaces the old one at once. A request uses the
+ * version it started with until its response is written.
+ * @author neilson
+ *
+ */
+public class ArchiveContentDeliver extends ContentHandler implements Runnable {
+
+	/**
+	 * the logger
+	 */
+	private static final Logger LOGGER = Logger.getLogger("Icerealm");
+
+	/**
+	 * the name of the index file of a directory
+	 */
+	private String _defaultIndexFilename = "index.html";
+
+	/**
+	 * the archive file
+	 */
+	private File _archiveFile = null;
+
+	/**
+	 * the current version of the archive, null if none could be opened
+	 */
+	private volatile SiteArchive _archive = null;
+
+	/**
+	 * the watch service of the directory of the archive
+	 */
+	private WatchService _watcher = null;
+
+	@Override
+	public byte[] writeContent(String s) {
+		return writeContent(s, null);
+	}
+
+	@Override
+	public byte[] writeContent(String s, RequestEntireContent req) {
+		CachedResponse response = find(s, req);
+		if (response == null) {
+			return ErrorResponse.NOT_FOUND.getBytes(req != null && req.isKeepAlive());
+		}
+		return WebContentDeliver.toByteArray(response, req);
+	}
+
+	@Override
+	public void writeContent(String s, RequestEntireContent req, OutputStream out) throws IOException {
+		CachedResponse response = find(s, req);
+		if (response == null) {
+			ErrorResponse.NOT_FOUND.writeTo(out, req != null && req.isKeepAlive());
+			return;
+		}
+		ClientOutputStream client = out instanceof ClientOutputStream ? (ClientOutputStream)out : new ClientOutputStream(out);
+		WebContentDeliver.writeResponse(response, req, client);
+	}
+
+	/**
+	 * Open the archive, the archive property or the public folder with ".archive".
+	 * The directory of the archive is then watched for new versions.
+	 */
+	@Override
+	public void onInit(Map<String, String> config) {
+		if (config.containsKey("archive")) {
+			_archiveFile = new File(config.get("archive"));
+		}
+		else {
+			_archiveFile = new File(new File(getRootFolder()).getPath() + ".archive");
+		}
+		reload();
+
+		try {
+			File dir = _archiveFile.getAbsoluteFile().getParentFile();
+			_watcher = FileSystems.getDefault().newWatchService();
+			dir.toPath().register(_watcher, ENTRY_CREATE, ENTRY_MODIFY);
+			Thread thread = new Thread(this, "Icerealm-archive-" + _archiveFile.getName());
+			thread.setDaemon(true);
+			thread.start();
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Cannot watch " + _archiveFile + ", a new version will not be loaded", ex);
+		}
+	}
+
+	/**
+	 * Open the archive file and replace the current version. The current version is kept
+	 * if the file is not a complete archive.
+	 * @return true if the new version is used
+	 */
+	public boolean reload() {
+		try {
+			long started = System.currentTimeMillis();
+			SiteArchive archive = SiteArchive.open(_archiveFile);
+			_archive = archive;
+			LOGGER.info("Site archive " + _archiveFile + " of " + archive.size() + " files opened in " +
+						(System.currentTimeMillis() - started) + " ms");
+			return true;
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Cannot open the site archive " + _archiveFile, ex);
+			return false;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			WatchKey key = null;
+			try {
+				key = _watcher.take();
+			}
+			catch (InterruptedException ex) {
+				break;
+			}
+			catch (ClosedWatchServiceException ex) {
+				break;
+			}
+
+			boolean changed = false;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				Object context = event.context();
+				if (context instanceof Path && ((Path)context).getFileName().toString().equals(_archiveFile.getName())) {
+					changed = true;
+				}
+			}
+
+			SiteArchive current = _archive;
+			if (changed && (current == null || current.getLastModified() != _archiveFile.lastModified())) {
+				reload();
+			}
+			if (!key.reset()) {
+				LOGGER.warning("The directory of " + _archiveFile + " is not watched anymore");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Find the response of a resource, in the encoding the client prefers. A directory
+	 * is answered with its index file.
+	 * @param s the requested resource
+	 * @param req the request, can be null
+	 * @return the response, null if the archive does not contain the resource
+	 */
+	private CachedResponse find(String s, RequestEntireContent req) {
+		SiteArchive archive = _archive;
+		if (archive == null) {
+			return null;
+		}
+
+		String path = s.startsWith("/") ? s : "/" + s;
+		CachedResponse response = null;
+		if (path.endsWith("/")) {
+			response = archive.get(path + _defaultIndexFilename);
+		}
+		else if ((response = archive.get(path)) == null) {
+			response = archive.get(path + "/" + _defaultIndexFilename);
+		}
+
+		if (response != null && response.isVary()) {
+			String encoding = WebContentDeliver.getEncoding(req);
+			CachedResponse variant = encoding != null ? response.getVariant(encoding) : null;
+			if (variant != null) {
+				return variant;
+			}
+		}
+		return response;
+	}
+}
@@ -0,0 +1,135 @@
+package com.icerealm.server.web.io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps the logical names of the assets, like "/js/app.js", to URLs that contain a hash
+ * of their content, like "/js/app.3f2a9c1d.js". A fingerprinted URL never changes of
+ * content, so it is sent with an immutable Cache-Control and the browser does not ask
+ * for it again. The manifest file is written by the build of the site, one asset per
+ * line: "/js/app.js /js/app.3f2a9c1d.js" or "/js/app.js=/js/app.3f2a9c1d.js", the
+ * fingerprinted files exist in the public folder. The assets that are not listed get
+ * a fingerprint computed from the entity tag of their content.
+ * @author neilson
+ *
+ */
+public class AssetManifest {
+
+	/**
+	 * the Cache-Control of a fingerprinted URL, one year
+	 */
+	public static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+	/**
+	 * the number of hexadecimal digits of a computed fingerprint
+	 */
+	public static final int FINGERPRINT_LENGTH = 8;
+
+	/**
+	 * a computed fingerprint in a path: the name, the fingerprint and the extension
+	 */
+	private static final Pattern FINGERPRINTED = Pattern.compile("^(.*/[^/]*?)\\.([0-9a-f]{" + FINGERPRINT_LENGTH + "})(\\.[^./]*)?$");
+
+	/**
+	 * the fingerprinted URL of each logical name
+	 */
+	private Map<String, String> _urls = new HashMap<String, String>();
+
+	/**
+	 * the fingerprinted URLs of the manifest
+	 */
+	private Set<String> _fingerprinted = new HashSet<String>();
+
+	/**
+	 * Read a manifest file
+	 * @param manifest the file
+	 * @return the manifest
+	 * @throws IOException if the file cannot be read
+	 */
+	public static AssetManifest read(File manifest) throws IOException {
+		AssetManifest assets = new AssetManifest();
+		BufferedReader reader = new BufferedReader(new FileReader(manifest));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] names = line.split("[=\\s]+", 2);
+				if (names.length == 2) {
+					assets._urls.put(names[0], names[1]);
+					assets._fingerprinted.add(names[1]);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return assets;
+	}
+
+	/**
+	 * Return the fingerprinted URL of an asset
+	 * @param path the logical name, like "/js/app.js"
+	 * @return the URL, null if the manifest does not list the asset
+	 */
+	public String get(String path) {
+		return _urls.get(path);
+	}
+
+	/**
+	 * Determine if a path is a fingerprinted URL of the manifest
+	 * @param path the requested path
+	 * @return true if its content never changes
+	 */
+	public boolean isFingerprinted(String path) {
+		return _fingerprinted.contains(path);
+	}
+
+	/**
+	 * the number of assets of the manifest
+	 * @return the number of assets
+	 */
+	public int size() {
+		return _urls.size();
+	}
+
+	/**
+	 * put a computed fingerprint in a path, before the extension
+	 * @param path the logical name, like "/js/app.js"
+	 * @param fingerprint the fingerprint
+	 * @return the fingerprinted URL, like "/js/app.3f2a9c1d.js"
+	 */
+	public static String fingerprint(String path, String fingerprint) {
+		int slash = path.lastIndexOf('/');
+		int dot = path.lastIndexOf('.');
+		if (dot <= slash + 1) {
+			return path + "." + fingerprint;
+		}
+		return path.substring(0, dot) + "." + fingerprint + path.substring(dot);
+	}
+
+	/**
+	 * find the computed fingerprint of a path
+	 * @param path the requested path, like "/js/app.3f2a9c1d.js"
+	 * @return the logical name and the fingerprint, null if the path has no fingerprint
+	 */
+	public static String[] parseFingerprint(String path) {
+		Matcher matcher = FINGERPRINTED.matcher(path);
+		if (!matcher.matches()) {
+			return null;
+		}
+		String extension = matcher.group(3) != null ? matcher.group(3) : "";
+		return new String[] { matcher.group(1) + extension, matcher.group(2) };
+	}
+}
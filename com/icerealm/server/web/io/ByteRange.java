@@ -0,0 +1,132 @@
+package com.icerealm.server.web.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of bytes asked for with the Range field of a request, like "bytes=0-499".
+ * The offsets are resolved against the size of the file, the end is inclusive.
+ * @author punisher
+ *
+ */
+public class ByteRange {
+
+	/**
+	 * the maximum number of ranges of a request, a request with more ranges gets
+	 * the whole file
+	 */
+	public static final int MAX_RANGES = 16;
+
+	/**
+	 * the offset of the first byte
+	 */
+	private long _start = 0;
+
+	/**
+	 * the offset of the last byte, inclusive
+	 */
+	private long _end = 0;
+
+	/**
+	 * default constructor
+	 * @param start the offset of the first byte
+	 * @param end the offset of the last byte, inclusive
+	 */
+	public ByteRange(long start, long end) {
+		_start = start;
+		_end = end;
+	}
+
+	/**
+	 * Parse the Range field of a request
+	 * @param range the value of the field, like "bytes=0-499, -500"
+	 * @param length the size of the file
+	 * @return the satisfiable ranges, an empty list if none of them is satisfiable, null
+	 * if the field is not valid and must be ignored
+	 */
+	public static List<ByteRange> parse(String range, long length) {
+		String value = range.trim();
+		if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+			return null;
+		}
+
+		String[] specs = value.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+
+		List<ByteRange> ranges = new ArrayList<ByteRange>();
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+
+			try {
+				String first = spec.substring(0, dash).trim();
+				String last = spec.substring(dash + 1).trim();
+				long start = 0, end = length - 1;
+
+				if (first.isEmpty()) {
+					// "-500" is the last 500 bytes
+					long suffix = Long.parseLong(last);
+					if (suffix <= 0) {
+						continue;
+					}
+					start = Math.max(0, length - suffix);
+				}
+				else {
+					start = Long.parseLong(first);
+					if (!last.isEmpty()) {
+						end = Math.min(end, Long.parseLong(last));
+						if (Long.parseLong(last) < start) {
+							return null;
+						}
+					}
+				}
+
+				if (start < length && start <= end) {
+					ranges.add(new ByteRange(start, end));
+				}
+			}
+			catch (NumberFormatException ex) {
+				return null;
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * the offset of the first byte
+	 * @return the offset
+	 */
+	public long getStart() {
+		return _start;
+	}
+
+	/**
+	 * the offset of the last byte, inclusive
+	 * @return the offset
+	 */
+	public long getEnd() {
+		return _end;
+	}
+
+	/**
+	 * the number of bytes of the range
+	 * @return the number of bytes
+	 */
+	public long getLength() {
+		return _end - _start + 1;
+	}
+
+	/**
+	 * the value of the Content-Range field of the range
+	 * @param length the size of the file
+	 * @return the value, like "bytes 0-499/1234"
+	 */
+	public String getContentRange(long length) {
+		return "bytes " + _start + "-" + _end + "/" + length;
+	}
+}
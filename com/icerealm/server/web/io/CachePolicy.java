@@ -0,0 +1,79 @@
+package com.icerealm.server.web.io;
+
+import java.util.List;
+
+/**
+ * Decides which entries a cache keeps within its byte budget. A policy only tracks the
+ * keys and the size of the entries, the cache stores the content. The methods are called
+ * by the cache while it holds its lock, a policy does not need to be thread-safe.
+ * @author neilson
+ *
+ * @param <K> the type of the keys
+ */
+public abstract class CachePolicy<K> {
+
+	/**
+	 * the value of the cachepolicy property for the least recently used policy
+	 */
+	public static final String LRU = "lru";
+
+	/**
+	 * the value of the cachepolicy property for the W-TinyLFU policy
+	 */
+	public static final String TINY_LFU = "tinylfu";
+
+	/**
+	 * the maximum number of bytes the cache holds
+	 */
+	private long _budget = 0;
+
+	/**
+	 * default constructor
+	 * @param budget the maximum number of bytes the cache holds
+	 */
+	protected CachePolicy(long budget) {
+		_budget = budget;
+	}
+
+	/**
+	 * Create a policy by its name
+	 * @param name the name of the policy, lru or tinylfu
+	 * @param budget the maximum number of bytes the cache holds
+	 * @return the policy, LRU if the name is unknown
+	 */
+	public static <K> CachePolicy<K> newPolicy(String name, long budget) {
+		if (TINY_LFU.equalsIgnoreCase(name)) {
+			return new TinyLFUCachePolicy<K>(budget);
+		}
+		return new LRUCachePolicy<K>(budget);
+	}
+
+	/**
+	 * the maximum number of bytes the cache holds
+	 * @return the budget in bytes
+	 */
+	public long getBudget() {
+		return _budget;
+	}
+
+	/**
+	 * record a hit on an entry of the cache
+	 * @param key the key of the entry
+	 */
+	public abstract void onAccess(K key);
+
+	/**
+	 * Record a new entry. To respect the budget, the policy can refuse it or ask
+	 * for older entries to be removed.
+	 * @param key the key of the entry
+	 * @param size the size of the entry, in bytes
+	 * @return the keys to remove from the cache, it can contain the new key
+	 */
+	public abstract List<K> onInsert(K key, long size);
+
+	/**
+	 * record an entry removed by the cache, like a file that changed
+	 * @param key the key of the entry
+	 */
+	public abstract void onRemove(K key);
+}
@@ -1,17 +1,43 @@
 package com.icerealm.server.web.io;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.icerealm.server.stats.CacheStatistic;
 
 /**
  * this class keeps the files that are requested in memory until the files
  * changes. the change is detected with the Last Modified field of the File
- * class
+ * class. The whole response is kept, its header is serialized once. The cache
+ * is shared by all the workers of a plugin: it holds at most a number of bytes,
+ * the entries to remove are chosen by a CachePolicy, and a file larger than the
+ * entry limit is read but never kept. The gzip and deflate variants of a file are
+ * kept with it, they are compressed once per version of the file, or read from the
+ * ".gz" file next to it. The entries can be saved in a snapshot file and restored
+ * when the server starts again.
  * @author neilson
  *
  */
@@ -21,56 +47,523 @@ public class CachedContentDeliver {
 	 * the logger
 	 */
 	private static final Logger LOGGER = Logger.getLogger("Icerealm");
-	
+
+	/**
+	 * the default maximum number of bytes held by the cache
+	 */
+	public static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+
+	/**
+	 * the default maximum size of a cached file
+	 */
+	public static final long DEFAULT_ENTRY_MAX = 1024 * 1024;
+
 	/**
-	 * the map that determine the last time a file was modified
+	 * the cached files, guarded by the lock of this instance
 	 */
-	private Map<File, Long> _lastModified = null;
-	
+	private Map<File, CachedResponse> _entries = null;
+
 	/**
-	 * the map that contains the byte for a file
+	 * chooses the entries to remove, guarded by the lock of this instance
 	 */
-	private Map<File, byte[]> _cachedContent = null;
-	
+	private CachePolicy<File> _policy = null;
+
 	/**
-	 * default constructor
+	 * the content codings the cache can produce
+	 */
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * the first bytes and the version of a snapshot file
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x4943534E;
+	private static final int SNAPSHOT_VERSION = 1;
+
+	/**
+	 * the maximum size of a cached file
+	 */
+	private long _entryMax = DEFAULT_ENTRY_MAX;
+
+	/**
+	 * the counters of the cache
+	 */
+	private CacheStatistic _statistic = null;
+
+	/**
+	 * where the bodies are kept
+	 */
+	private ContentStore _store = null;
+
+	/**
+	 * default constructor, a LRU cache with the default budget
 	 */
 	public CachedContentDeliver() {
-		_lastModified = new HashMap<File, Long>();
-		_cachedContent = new HashMap<File, byte[]>();
+		this(CachePolicy.<File>newPolicy(CachePolicy.LRU, DEFAULT_BUDGET), DEFAULT_ENTRY_MAX, new CacheStatistic("cache"));
+	}
+
+	/**
+	 * Create a cache
+	 * @param policy the policy that chooses the entries to remove, it knows the byte budget
+	 * @param entryMax the maximum size of a cached file
+	 * @param statistic the counters to update
+	 */
+	public CachedContentDeliver(CachePolicy<File> policy, long entryMax, CacheStatistic statistic) {
+		this(policy, entryMax, statistic, new HeapContentStore());
+	}
+
+	/**
+	 * Create a cache whose bodies are kept by a store, like outside of the heap
+	 * @param policy the policy that chooses the entries to remove, it knows the byte budget
+	 * @param entryMax the maximum size of a cached file
+	 * @param statistic the counters to update
+	 * @param store where the bodies are kept
+	 */
+	public CachedContentDeliver(CachePolicy<File> policy, long entryMax, CacheStatistic statistic, ContentStore store) {
+		_entries = new HashMap<File, CachedResponse>();
+		_policy = policy;
+		_entryMax = entryMax;
+		_statistic = statistic;
+		_store = store;
+	}
+
+	/**
+	 * Return the complete response of a requested file. The status line and the fields
+	 * are serialized when the file is read, they are invalidated with the file.
+	 * @param f the file to be sent
+	 * @param contentType the MIME type of the file
+	 * @param cacheControl the Cache-Control of the file, can be null
+	 * @return the response, null if the file cannot be read
+	 */
+	public CachedResponse getResponse(File f, String contentType, String cacheControl) {
+		return getResponse(f, contentType, cacheControl, false);
 	}
-	
+
 	/**
-	 * return the array of byte representing a requested file
+	 * Return the complete response of a requested file
 	 * @param f the file to be sent
-	 * @return the array of byte
-	 */
-	public byte[] getFileContent(File f) {
-		
-		if (!_lastModified.containsKey(f) || _lastModified.get(f) != f.lastModified()) {
-			
-			try {
-				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-				FileInputStream stream = new FileInputStream(f);
-				int byteRead = 0;
-				while ((byteRead = stream.read()) != -1) {
-					buffer.write(byteRead);
+	 * @param contentType the MIME type of the file
+	 * @param cacheControl the Cache-Control of the file, can be null
+	 * @param compressible true if the file is sent compressed to the clients that accept it
+	 * @return the response, null if the file cannot be read
+	 */
+	public CachedResponse getResponse(File f, String contentType, String cacheControl, boolean compressible) {
+		return getResponse(f, f.lastModified(), contentType, cacheControl, compressible);
+	}
+
+	/**
+	 * Return the complete response of a requested file whose last modified time is
+	 * already known, the file system is not asked when the entry is valid
+	 * @param f the file to be sent
+	 * @param lastModified the current last modified time of the file
+	 * @param contentType the MIME type of the file
+	 * @param cacheControl the Cache-Control of the file, can be null
+	 * @param compressible true if the file is sent compressed to the clients that accept it
+	 * @return the response, null if the file cannot be read
+	 */
+	public CachedResponse getResponse(File f, long lastModified, String contentType, String cacheControl, boolean compressible) {
+		synchronized (this) {
+			CachedResponse entry = _entries.get(f);
+			if (entry != null && entry.getLastModified() == lastModified) {
+				_policy.onAccess(f);
+				_statistic.hit();
+				return entry;
+			}
+		}
+
+		// the file is read without the lock, the other files are still served
+		_statistic.miss();
+		CachedResponse response = null;
+		try {
+			// a file that will not be kept does not use the store
+			ByteBuffer content = f.length() <= _entryMax ? _store.load(f) : ByteBuffer.wrap(ContentStore.readFile(f));
+			response = new CachedResponse(content.remaining(), contentType, lastModified, getETag(content), cacheControl, 
+										  content, null, compressible);
+		}
+		catch (Exception ex) {
+			LOGGER.log(Level.WARNING, "Error while writing file content to buffer: " + f, ex);
+			return null;
+		}
+
+		if (response.getBodyLength() <= _entryMax) {
+			put(f, response);
+		}
+		else {
+			remove(f);
+			_store.release(response.getBody());
+		}
+		return response;
+	}
+
+	/**
+	 * Return the encoded variant of a response. It is compressed the first time it is
+	 * asked for and kept with the response, a gzip variant is read from the ".gz" file
+	 * next to the file when that one is not older. A response that is not kept by the
+	 * cache is sent as it is, it would be compressed for every request.
+	 * @param f the file of the response
+	 * @param response the response, returned by getResponse()
+	 * @param encoding the content coding, GZIP or DEFLATE
+	 * @return the variant, or the response if the encoding does not make it smaller
+	 */
+	public CachedResponse getVariant(File f, CachedResponse response, String encoding) {
+		synchronized (this) {
+			CachedResponse variant = response.getVariant(encoding);
+			if (variant != null) {
+				return variant;
+			}
+			if (_entries.get(f) != response) {
+				return response;
+			}
+		}
+
+		CachedResponse variant = response;
+		try {
+			ByteBuffer encoded = null;
+			File sibling = new File(f.getPath() + ".gz");
+			if (encoding.equals(GZIP) && sibling.isFile() && sibling.lastModified() >= response.getLastModified()) {
+				encoded = _store.load(sibling);
+			}
+			else {
+				encoded = _store.copy(compress(response.getBody(), encoding));
+			}
+
+			if (encoded.remaining() < response.getBodyLength()) {
+				String etag = response.getETag();
+				variant = new CachedResponse(encoded.remaining(), response.getContentType(), response.getLastModified(), 
+											 etag.substring(0, etag.length() - 1) + "-" + encoding + "\"", 
+											 response.getCacheControl(), encoded, encoding, true);
+			}
+			else {
+				_store.release(encoded);
+			}
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Error while compressing file content: " + f, ex);
+			return response;
+		}
+
+		synchronized (this) {
+			// another worker may have compressed it meanwhile, or the file has changed
+			CachedResponse existing = response.getVariant(encoding);
+			if (existing != null) {
+				return existing;
+			}
+			if (_entries.get(f) == response) {
+				response.putVariant(encoding, variant);
+				if (variant != response) {
+					_statistic.added(variant.getSize());
+					evict(_policy.onInsert(f, response.getSize()));
+				}
+			}
+			else if (variant != response) {
+				_store.release(variant.getBody());
+			}
+		}
+		return variant;
+	}
+
+	/**
+	 * the counters of the cache
+	 * @return the statistic
+	 */
+	public CacheStatistic getStatistic() {
+		return _statistic;
+	}
+
+	/**
+	 * the maximum number of bytes held by the cache
+	 * @return the budget
+	 */
+	public long getBudget() {
+		return _policy.getBudget();
+	}
+
+	/**
+	 * the maximum size of a cached file
+	 * @return the number of bytes
+	 */
+	public long getEntryMax() {
+		return _entryMax;
+	}
+
+	/**
+	 * add a response read from a snapshot, unless the file is cached already
+	 * @param f the file of the response
+	 * @param response the response, with its variants
+	 */
+	public synchronized void restore(File f, CachedResponse response) {
+		if (_entries.containsKey(f) || response.getBodyLength() > _entryMax) {
+			return;
+		}
+		if (_store.isOffHeap()) {
+			// the snapshot is read in the heap, only the kept entries are copied to the store
+			CachedResponse copy = copyToStore(response);
+			for (Map.Entry<String, CachedResponse> variant : response.getVariants().entrySet()) {
+				copy.putVariant(variant.getKey(), copyToStore(variant.getValue()));
+			}
+			response = copy;
+		}
+		put(f, response);
+	}
+
+	/**
+	 * the store of the bodies
+	 * @return the store
+	 */
+	public ContentStore getStore() {
+		return _store;
+	}
+
+	/**
+	 * Write every entry and its variants in a snapshot file. The entries are copied
+	 * with the lock and written without it, the file is replaced once it is complete.
+	 * @param snapshot the file
+	 * @return the number of entries written
+	 * @throws IOException if the file cannot be written
+	 */
+	public int saveSnapshot(File snapshot) throws IOException {
+		List<File> files = new ArrayList<File>();
+		List<CachedResponse> responses = new ArrayList<CachedResponse>();
+		List<Map<String, CachedResponse>> variants = new ArrayList<Map<String, CachedResponse>>();
+		synchronized (this) {
+			for (Map.Entry<File, CachedResponse> entry : _entries.entrySet()) {
+				files.add(entry.getKey());
+				responses.add(entry.getValue());
+				variants.add(entry.getValue().getVariants());
+			}
+		}
+
+		File temp = new File(snapshot.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			for (int i = 0; i < files.size(); i++) {
+				out.writeBoolean(true);
+				out.writeUTF(files.get(i).getPath());
+				writeResponse(out, responses.get(i));
+
+				// a variant that is the response itself is not worth keeping
+				variants.get(i).values().removeAll(Collections.singleton(responses.get(i)));
+				out.writeInt(variants.get(i).size());
+				for (Map.Entry<String, CachedResponse> variant : variants.get(i).entrySet()) {
+					out.writeUTF(variant.getKey());
+					writeResponse(out, variant.getValue());
 				}
-				
-				stream.close();
-				buffer.flush();
-				buffer.close();
-				
-				_lastModified.put(f, f.lastModified());
-				_cachedContent.put(f, buffer.toByteArray());
-				
-			}
-			catch (Exception ex) {
-				LOGGER.log(Level.WARNING, "Error while writing file content to buffer: " + f, ex);
-				return new byte[0];
-			}				
-		}
-		
-		return _cachedContent.get(f);
-	}	
+			}
+			out.writeBoolean(false);
+		}
+		finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return files.size();
+	}
+
+	/**
+	 * Read the entries of a snapshot file. The entries of the files that have changed
+	 * since the snapshot was written are skipped, the others are not added to the cache.
+	 * @param snapshot the file
+	 * @return the responses by file, in the order of the snapshot
+	 * @throws IOException if the file cannot be read or is not a snapshot
+	 */
+	public Map<File, CachedResponse> readSnapshot(File snapshot) throws IOException {
+		Map<File, CachedResponse> entries = new LinkedHashMap<File, CachedResponse>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 65536));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				throw new IOException("Not a cache snapshot: " + snapshot);
+			}
+			while (in.readBoolean()) {
+				File f = new File(in.readUTF());
+				CachedResponse response = readResponse(in);
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String encoding = in.readUTF();
+					response.putVariant(encoding, readResponse(in));
+				}
+				if (f.lastModified() == response.getLastModified()) {
+					entries.put(f, response);
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * add an entry and remove the ones the policy chooses
+	 * @param f the file
+	 * @param entry the content of the file
+	 */
+	private synchronized void put(File f, CachedResponse entry) {
+		remove(f);
+		_entries.put(f, entry);
+		_statistic.added(entry.getSize());
+		evict(_policy.onInsert(f, entry.getSize()));
+	}
+
+	/**
+	 * remove the entries the policy has chosen
+	 * @param files the files of the entries
+	 */
+	private synchronized void evict(List<File> files) {
+		for (File evicted : files) {
+			CachedResponse old = _entries.remove(evicted);
+			if (old != null) {
+				_statistic.removed(old.getSize());
+				_statistic.evicted();
+				release(old);
+			}
+		}
+	}
+
+	/**
+	 * remove the entry of a file
+	 * @param f the file
+	 */
+	private synchronized void remove(File f) {
+		CachedResponse old = _entries.remove(f);
+		if (old != null) {
+			_policy.onRemove(f);
+			_statistic.removed(old.getSize());
+			release(old);
+		}
+	}
+
+	/**
+	 * give the bodies of a removed entry back to the store, the caller holds the lock
+	 * @param old the entry
+	 */
+	private void release(CachedResponse old) {
+		_store.release(old.getBody());
+		for (CachedResponse variant : old.getVariants().values()) {
+			if (variant != old) {
+				_store.release(variant.getBody());
+			}
+		}
+	}
+
+	/**
+	 * copy a response read from a snapshot to the store
+	 * @param response the response, its body is in the heap
+	 * @return the same response with its body in the store, without variants
+	 */
+	private CachedResponse copyToStore(CachedResponse response) {
+		ByteBuffer body = response.getBody();
+		byte[] content = new byte[body.remaining()];
+		body.get(content);
+		return new CachedResponse(content.length, response.getContentType(), response.getLastModified(), response.getETag(),
+								  response.getCacheControl(), _store.copy(content), response.getEncoding(), response.isVary());
+	}
+
+	/**
+	 * compute a strong entity tag from the content of a file
+	 * @param content the content, it is not consumed
+	 * @return the MD5 of the content in hexadecimal, with its quotes
+	 * @throws NoSuchAlgorithmException if the JVM does not provide MD5
+	 */
+	static String getETag(ByteBuffer content) throws NoSuchAlgorithmException {
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		md5.update(content.duplicate());
+		byte[] digest = md5.digest();
+		StringBuilder etag = new StringBuilder("\"");
+		for (byte b : digest) {
+			etag.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return etag.append('"').toString();
+	}
+
+	/**
+	 * write a response in a snapshot, its header is serialized again when it is read
+	 * @param out the snapshot
+	 * @param response the response, its body is kept
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	private void writeResponse(DataOutputStream out, CachedResponse response) throws IOException {
+		out.writeLong(response.getLastModified());
+		out.writeUTF(response.getContentType());
+		writeOptional(out, response.getCacheControl());
+		out.writeUTF(response.getETag());
+		writeOptional(out, response.getEncoding());
+		out.writeBoolean(response.isVary());
+
+		ByteBuffer body = response.getBody();
+		out.writeInt(body.remaining());
+		byte[] chunk = new byte[8192];
+		while (body.hasRemaining()) {
+			int length = Math.min(chunk.length, body.remaining());
+			body.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+	}
+
+	/**
+	 * read a response written by writeResponse()
+	 * @param in the snapshot
+	 * @return the response, without variants
+	 * @throws IOException if the snapshot cannot be read
+	 */
+	private CachedResponse readResponse(DataInputStream in) throws IOException {
+		long lastModified = in.readLong();
+		String contentType = in.readUTF();
+		String cacheControl = readOptional(in);
+		String etag = in.readUTF();
+		String encoding = readOptional(in);
+		boolean vary = in.readBoolean();
+
+		byte[] body = new byte[in.readInt()];
+		in.readFully(body);
+		return new CachedResponse(body.length, contentType, lastModified, etag, cacheControl, ByteBuffer.wrap(body), encoding, vary);
+	}
+
+	/**
+	 * write a string that can be null
+	 */
+	private void writeOptional(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	/**
+	 * read a string written by writeOptional()
+	 */
+	private String readOptional(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * compress a body
+	 * @param body the body
+	 * @param encoding the content coding, GZIP or DEFLATE
+	 * @return the compressed bytes
+	 * @throws IOException if the encoding is not known
+	 */
+	static byte[] compress(ByteBuffer body, String encoding) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.remaining() / 2);
+		OutputStream stream = null;
+		if (encoding.equals(GZIP)) {
+			stream = new GZIPOutputStream(buffer);
+		}
+		else if (encoding.equals(DEFLATE)) {
+			// the deflate coding of HTTP is the zlib format
+			stream = new DeflaterOutputStream(buffer);
+		}
+		else {
+			throw new IOException("Unknown content coding: " + encoding);
+		}
+
+		byte[] chunk = new byte[8192];
+		while (body.hasRemaining()) {
+			int length = Math.min(chunk.length, body.remaining());
+			body.get(chunk, 0, length);
+			stream.write(chunk, 0, length);
+		}
+		stream.close();
+		return buffer.toByteArray();
+	}
 }
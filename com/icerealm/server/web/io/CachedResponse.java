@@ -0,0 +1,586 @@
+package com.icerealm.server.web.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A complete response kept by the cache: the status line and the header fields that
+ * do not change are serialized once, for the 200 and for the 304 Not Modified, the body
+ * is a buffer. Only the Date, Expires and Connection fields are added when the response
+ * is written, with a single gathering write. The ETag is computed once per version of
+ * the file. A Range request is answered with slices of the buffer, or with positional
+ * transfers from the file when the body is not kept. A response of a compressible
+ * file keeps its encoded variants, they are compressed once per version of the file.
+ * @author punisher
+ *
+ */
+public class CachedResponse {
+
+	/**
+	 * the Connection field and the empty line that ends the header
+	 */
+	private static final byte[] KEEP_ALIVE = "Connection: keep-alive\r\n\r\n".getBytes();
+	private static final byte[] CLOSE = "Connection: close\r\n\r\n".getBytes();
+
+	/**
+	 * an empty field, used when there is no Expires
+	 */
+	private static final byte[] NONE = new byte[0];
+
+	/**
+	 * finds the max-age directive of a Cache-Control
+	 */
+	private static final Pattern MAX_AGE = Pattern.compile("max-age=(\\d+)");
+
+	/**
+	 * the status line and the fields that do not change
+	 */
+	private byte[] _header = null;
+
+	/**
+	 * the status line and the fields of the 304 Not Modified
+	 */
+	private byte[] _notModified = null;
+
+	/**
+	 * the MIME type of the body
+	 */
+	private String _contentType = null;
+
+	/**
+	 * the Cache-Control of the file, null if there is none
+	 */
+	private String _cacheControl = null;
+
+	/**
+	 * the Last-Modified, ETag, Cache-Control and Vary fields, sent with every status
+	 */
+	private String _validators = null;
+
+	/**
+	 * the Content-Encoding field, empty for the identity
+	 */
+	private String _contentEncoding = "";
+
+	/**
+	 * the content coding of the body, null for the identity
+	 */
+	private String _encoding = null;
+
+	/**
+	 * true if the response depends on the Accept-Encoding of the request
+	 */
+	private boolean _vary = false;
+
+	/**
+	 * the encoded variants of this response by content coding, guarded by the lock of
+	 * the cache. A variant that is not smaller than the identity is this response.
+	 */
+	private Map<String, CachedResponse> _variants = null;
+
+	/**
+	 * this response with an immutable Cache-Control, sent for a fingerprinted URL. It
+	 * shares the body, it is created on the first request of the URL.
+	 */
+	private volatile CachedResponse _immutable = null;
+
+	/**
+	 * the body, it is never modified. null when the body is sent from the file
+	 */
+	private ByteBuffer _body = null;
+
+	/**
+	 * the size of the body
+	 */
+	private long _length = 0;
+
+	/**
+	 * the last modified time of the file when it was read
+	 */
+	private long _lastModified = 0;
+
+	/**
+	 * the entity tag of this version of the file, with its quotes
+	 */
+	private String _etag = null;
+
+	/**
+	 * the number of seconds the client can keep the response, -1 when there is no Expires
+	 */
+	private long _maxAge = -1;
+
+	/**
+	 * the Expires field of the current second
+	 */
+	private volatile ExpiresLine _expires = null;
+
+	/**
+	 * Create a response
+	 * @param length the size of the body
+	 * @param contentType the MIME type of the body
+	 * @param lastModified the last modified time of the file when it was read
+	 * @param etag the entity tag of this version of the file, with its quotes
+	 * @param cacheControl the Cache-Control of the file, null if there is none
+	 * @param body the body, null if it is sent from the file
+	 */
+	public CachedResponse(long length, String contentType, long lastModified, String etag, String cacheControl, ByteBuffer body) {
+		this(length, contentType, lastModified, etag, cacheControl, body, null, false);
+	}
+
+	/**
+	 * Create a response that depends on the Accept-Encoding of the request
+	 * @param length the size of the body
+	 * @param contentType the MIME type of the body
+	 * @param lastModified the last modified time of the file when it was read
+	 * @param etag the entity tag of this version and encoding of the file, with its quotes
+	 * @param cacheControl the Cache-Control of the file, null if there is none
+	 * @param body the body, null if it is sent from the file
+	 * @param encoding the content coding of the body, like "gzip", null for the identity
+	 * @param vary true if the file is sent compressed to the clients that accept it
+	 */
+	public CachedResponse(long length, String contentType, long lastModified, String etag, String cacheControl, 
+						  ByteBuffer body, String encoding, boolean vary) {
+		_length = length;
+		_lastModified = lastModified;
+		_etag = etag;
+		_body = body;
+		_contentType = contentType;
+		_cacheControl = cacheControl;
+
+		String validators = "Last-Modified: " + HTTPDateClock.format(lastModified) + "\r\n" +
+							"ETag: " + etag + "\r\n";
+		if (cacheControl != null) {
+			validators += "Cache-Control: " + cacheControl + "\r\n";
+			Matcher maxAge = MAX_AGE.matcher(cacheControl);
+			if (maxAge.find()) {
+				_maxAge = Long.parseLong(maxAge.group(1));
+			}
+		}
+		_vary = vary;
+		if (vary) {
+			// the shared caches must keep one copy per encoding
+			validators += "Vary: Accept-Encoding\r\n";
+		}
+		if (encoding != null) {
+			_encoding = encoding;
+			_contentEncoding = "Content-Encoding: " + encoding + "\r\n";
+		}
+
+		_validators = validators;
+		_header = ("HTTP/1.1 200 OK\r\n" +
+				   "Content-Length: " + length + "\r\n" +
+				   "Content-Type: " + contentType + "\r\n" + _contentEncoding +
+				   "Accept-Ranges: bytes\r\n" + validators).getBytes();
+		_notModified = ("HTTP/1.1 304 Not Modified\r\n" + validators).getBytes();
+	}
+
+	/**
+	 * the status line and the fields that do not change
+	 * @return the bytes, they must not be modified
+	 */
+	public byte[] getHeader() {
+		return _header;
+	}
+
+	/**
+	 * the body
+	 * @return a view of the body, positioned at its start
+	 */
+	public ByteBuffer getBody() {
+		return _body.duplicate();
+	}
+
+	/**
+	 * the size of the body
+	 * @return the number of bytes
+	 */
+	public long getBodyLength() {
+		return _length;
+	}
+
+	/**
+	 * the memory used by the response
+	 * @return the number of bytes of the header and the body
+	 */
+	public long getSize() {
+		long size = _header.length + _notModified.length + (_body != null ? _body.remaining() : 0);
+		if (_variants != null) {
+			for (CachedResponse variant : _variants.values()) {
+				if (variant != this) {
+					size += variant.getSize();
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * the MIME type of the body
+	 * @return the type
+	 */
+	public String getContentType() {
+		return _contentType;
+	}
+
+	/**
+	 * the Cache-Control of the file
+	 * @return the directives, null if there is none
+	 */
+	public String getCacheControl() {
+		return _cacheControl;
+	}
+
+	/**
+	 * the content coding of the body
+	 * @return the coding, like "gzip", null for the identity
+	 */
+	public String getEncoding() {
+		return _encoding;
+	}
+
+	/**
+	 * determine if the response depends on the Accept-Encoding of the request
+	 * @return true if the file is sent compressed to the clients that accept it
+	 */
+	public boolean isVary() {
+		return _vary;
+	}
+
+	/**
+	 * return the encoded variants, the caller holds the lock of the cache
+	 * @return a copy of the variants by content coding
+	 */
+	public Map<String, CachedResponse> getVariants() {
+		if (_variants == null) {
+			return new HashMap<String, CachedResponse>(0);
+		}
+		return new HashMap<String, CachedResponse>(_variants);
+	}
+
+	/**
+	 * return an encoded variant, the caller holds the lock of the cache
+	 * @param encoding the content coding
+	 * @return the variant, this response if the encoding does not make it smaller, null
+	 * if it is not encoded yet
+	 */
+	public CachedResponse getVariant(String encoding) {
+		return _variants != null ? _variants.get(encoding) : null;
+	}
+
+	/**
+	 * keep an encoded variant, the caller holds the lock of the cache
+	 * @param encoding the content coding
+	 * @param variant the variant, this response if the encoding does not make it smaller
+	 */
+	public void putVariant(String encoding, CachedResponse variant) {
+		if (_variants == null) {
+			_variants = new HashMap<String, CachedResponse>(4);
+		}
+		_variants.put(encoding, variant);
+	}
+
+	/**
+	 * return this response with the Cache-Control of a fingerprinted URL, the content of
+	 * the URL never changes. The body is shared and not counted in the size of the cache.
+	 * @return the response with AssetManifest.IMMUTABLE
+	 */
+	public CachedResponse getImmutable() {
+		CachedResponse immutable = _immutable;
+		if (immutable == null) {
+			// two threads can build it at once, they build the same response
+			immutable = new CachedResponse(_length, _contentType, _lastModified, _etag, AssetManifest.IMMUTABLE, 
+										   _body, _encoding, _vary);
+			_immutable = immutable;
+		}
+		return immutable;
+	}
+
+	/**
+	 * the last modified time of the file when it was read
+	 * @return the time in ms
+	 */
+	public long getLastModified() {
+		return _lastModified;
+	}
+
+	/**
+	 * the entity tag of this version of the file
+	 * @return the tag, with its quotes
+	 */
+	public String getETag() {
+		return _etag;
+	}
+
+	/**
+	 * Determine if the client already has this version. If-None-Match is used when
+	 * it is present, otherwise If-Modified-Since.
+	 * @param ifNoneMatch the If-None-Match field of the request, can be null
+	 * @param ifModifiedSince the If-Modified-Since field of the request, can be null
+	 * @return true if a 304 Not Modified can be sent
+	 */
+	public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(_etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		if (ifModifiedSince != null) {
+			long since = HTTPDateClock.parse(ifModifiedSince);
+			// the dates of HTTP are in seconds
+			return since >= 0 && _lastModified / 1000 <= since / 1000;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if the ranges of a request apply to this version. With an If-Range,
+	 * they apply only if the entity tag or the date matches exactly.
+	 * @param ifRange the If-Range field of the request, can be null
+	 * @return true if the ranges can be sent, false to send the whole response
+	 */
+	public boolean isRangeValid(String ifRange) {
+		if (ifRange == null) {
+			return true;
+		}
+		String condition = ifRange.trim();
+		if (condition.startsWith("\"") || condition.startsWith("W/")) {
+			// a weak tag never matches, the comparison is strong
+			return condition.equals(_etag);
+		}
+		long date = HTTPDateClock.parse(condition);
+		return date >= 0 && date / 1000 == _lastModified / 1000;
+	}
+
+	/**
+	 * Write a 206 Partial Content. One range is sent as it is, several ranges are sent
+	 * as a multipart/byteranges body.
+	 * @param out the client stream
+	 * @param keepAlive true if the connection stays open after the response
+	 * @param ranges the satisfiable ranges, at least one
+	 * @param file the file, used when the body is not kept. It can be null otherwise
+	 * @throws IOException if the file or the socket fails
+	 */
+	public void writeRangesTo(ClientOutputStream out, boolean keepAlive, List<ByteRange> ranges, FileChannel file) throws IOException {
+		List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+
+		if (ranges.size() == 1) {
+			ByteRange range = ranges.get(0);
+			addPartialHeader(pending, range.getLength(), _contentType, "Content-Range: " + range.getContentRange(_length) + "\r\n", keepAlive);
+			writeRange(out, pending, range, file);
+		}
+		else {
+			String boundary = "ICEREALM" + Long.toHexString(System.nanoTime());
+			byte[][] parts = new byte[ranges.size()][];
+			long length = 0;
+			for (int i = 0; i < parts.length; i++) {
+				ByteRange range = ranges.get(i);
+				parts[i] = ("\r\n--" + boundary + "\r\n" + 
+							"Content-Type: " + _contentType + "\r\n" +
+							"Content-Range: " + range.getContentRange(_length) + "\r\n\r\n").getBytes();
+				length += parts[i].length + range.getLength();
+			}
+			byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes();
+			length += end.length;
+
+			addPartialHeader(pending, length, "multipart/byteranges; boundary=" + boundary, "", keepAlive);
+			for (int i = 0; i < parts.length; i++) {
+				pending.add(ByteBuffer.wrap(parts[i]));
+				writeRange(out, pending, ranges.get(i), file);
+			}
+			pending.add(ByteBuffer.wrap(end));
+		}
+
+		if (!pending.isEmpty()) {
+			out.write(pending.toArray(new ByteBuffer[pending.size()]));
+		}
+	}
+
+	/**
+	 * Write a 416 Range Not Satisfiable, when none of the ranges is in the file
+	 * @param out the client stream
+	 * @param keepAlive true if the connection stays open after the response
+	 * @throws IOException if the socket fails
+	 */
+	public void writeRangeNotSatisfiableTo(ClientOutputStream out, boolean keepAlive) throws IOException {
+		out.write(new ByteBuffer[] {
+			ByteBuffer.wrap(("HTTP/1.1 416 Range Not Satisfiable\r\n" +
+							 "Content-Range: bytes */" + _length + "\r\n" +
+							 "Content-Length: 0\r\n").getBytes()),
+			ByteBuffer.wrap(HTTPDateClock.getDateLine()),
+			ByteBuffer.wrap(keepAlive ? KEEP_ALIVE : CLOSE)
+		});
+	}
+
+	/**
+	 * Write the response with the current Date
+	 * @param out the client stream
+	 * @param keepAlive true if the connection stays open after the response
+	 * @throws IOException if the socket fails
+	 */
+	public void writeTo(ClientOutputStream out, boolean keepAlive) throws IOException {
+		out.write(new ByteBuffer[] {
+			ByteBuffer.wrap(_header),
+			ByteBuffer.wrap(HTTPDateClock.getDateLine()),
+			ByteBuffer.wrap(getExpiresLine()),
+			ByteBuffer.wrap(keepAlive ? KEEP_ALIVE : CLOSE),
+			getBody()
+		});
+	}
+
+	/**
+	 * Write the header only, the body is sent by the caller
+	 * @param out the client stream
+	 * @param keepAlive true if the connection stays open after the response
+	 * @throws IOException if the socket fails
+	 */
+	public void writeHeaderTo(ClientOutputStream out, boolean keepAlive) throws IOException {
+		out.write(new ByteBuffer[] {
+			ByteBuffer.wrap(_header),
+			ByteBuffer.wrap(HTTPDateClock.getDateLine()),
+			ByteBuffer.wrap(getExpiresLine()),
+			ByteBuffer.wrap(keepAlive ? KEEP_ALIVE : CLOSE)
+		});
+	}
+
+	/**
+	 * Write the 304 Not Modified, it has no body
+	 * @param out the client stream
+	 * @param keepAlive true if the connection stays open after the response
+	 * @throws IOException if the socket fails
+	 */
+	public void writeNotModifiedTo(ClientOutputStream out, boolean keepAlive) throws IOException {
+		out.write(new ByteBuffer[] {
+			ByteBuffer.wrap(_notModified),
+			ByteBuffer.wrap(HTTPDateClock.getDateLine()),
+			ByteBuffer.wrap(getExpiresLine()),
+			ByteBuffer.wrap(keepAlive ? KEEP_ALIVE : CLOSE)
+		});
+	}
+
+	/**
+	 * Return the response in a single array, for the callers that need the bytes
+	 * @param keepAlive true if the connection stays open after the response
+	 * @return the bytes of the response
+	 */
+	public byte[] toByteArray(boolean keepAlive) {
+		return concat(_header, keepAlive, getBody());
+	}
+
+	/**
+	 * Return the 304 Not Modified in a single array
+	 * @param keepAlive true if the connection stays open after the response
+	 * @return the bytes of the response
+	 */
+	public byte[] notModifiedToByteArray(boolean keepAlive) {
+		return concat(_notModified, keepAlive, ByteBuffer.wrap(NONE));
+	}
+
+	/**
+	 * add the header of a 206 Partial Content to the buffers to write
+	 */
+	private void addPartialHeader(List<ByteBuffer> pending, long length, String contentType, String contentRange, boolean keepAlive) {
+		pending.add(ByteBuffer.wrap(("HTTP/1.1 206 Partial Content\r\n" +
+									 "Content-Length: " + length + "\r\n" +
+									 "Content-Type: " + contentType + "\r\n" + _contentEncoding +
+									 contentRange + _validators).getBytes()));
+		pending.add(ByteBuffer.wrap(HTTPDateClock.getDateLine()));
+		pending.add(ByteBuffer.wrap(getExpiresLine()));
+		pending.add(ByteBuffer.wrap(keepAlive ? KEEP_ALIVE : CLOSE));
+	}
+
+	/**
+	 * Add the bytes of a range to the buffers to write. A range of the buffer is a slice,
+	 * a range of the file is transferred after the pending buffers are written.
+	 */
+	private void writeRange(ClientOutputStream out, List<ByteBuffer> pending, ByteRange range, FileChannel file) throws IOException {
+		if (_body != null) {
+			ByteBuffer slice = getBody();
+			slice.position(slice.position() + (int)range.getStart());
+			slice.limit(slice.position() + (int)range.getLength());
+			pending.add(slice);
+		}
+		else {
+			out.write(pending.toArray(new ByteBuffer[pending.size()]));
+			pending.clear();
+			out.transferFrom(file, range.getStart(), range.getLength());
+		}
+	}
+
+	/**
+	 * put a header, the variable fields and a body in one array
+	 */
+	private byte[] concat(byte[] header, boolean keepAlive, ByteBuffer body) {
+		byte[] date = HTTPDateClock.getDateLine();
+		byte[] expires = getExpiresLine();
+		byte[] connection = keepAlive ? KEEP_ALIVE : CLOSE;
+		byte[] response = new byte[header.length + date.length + expires.length + connection.length + body.remaining()];
+		ByteBuffer.wrap(response).put(header).put(date).put(expires).put(connection).put(body);
+		return response;
+	}
+
+	/**
+	 * the Expires field, it is formatted once per second
+	 * @return the bytes of "Expires: ...\r\n", empty if the response has no max-age
+	 */
+	private byte[] getExpiresLine() {
+		if (_maxAge < 0) {
+			return NONE;
+		}
+		long second = System.currentTimeMillis() / 1000;
+		ExpiresLine expires = _expires;
+		if (expires == null || expires.getSecond() != second) {
+			expires = new ExpiresLine(second, ("Expires: " + HTTPDateClock.format((second + _maxAge) * 1000) + "\r\n").getBytes());
+			_expires = expires;
+		}
+		return expires.getBytes();
+	}
+
+	/**
+	 * the Expires field of a second
+	 */
+	private static class ExpiresLine {
+
+		/**
+		 * the second, since the epoch
+		 */
+		private long _second = 0;
+
+		/**
+		 * the bytes of the field
+		 */
+		private byte[] _bytes = null;
+
+		/**
+		 * default constructor
+		 * @param second the second, since the epoch
+		 * @param bytes the bytes of the field
+		 */
+		public ExpiresLine(long second, byte[] bytes) {
+			_second = second;
+			_bytes = bytes;
+		}
+
+		public long getSecond() {
+			return _second;
+		}
+
+		public byte[] getBytes() {
+			return _bytes;
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package com.icerealm.server.web.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a body with "Transfer-Encoding: chunked". The bytes are collected until the
+ * flush threshold, then sent as one chunk in a single write: the buffer keeps room for
+ * the size line before the data and for the line end after it. A write larger than the
+ * threshold is sent as its own chunk without copy. close() sends the last chunk, the
+ * client stream stays open for the next response.
+ * <p>
+ * Once a write fails, the client is gone: every write after it fails at once, so the
+ * code that renders the body stops at its next write.
+ * @author punisher
+ *
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+	/**
+	 * the room for the size line of a chunk, 8 hexadecimal digits and CRLF
+	 */
+	private static final int SIZE_LINE_LENGTH = 10;
+
+	/**
+	 * the last chunk, without trailer
+	 */
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+	/**
+	 * the client stream
+	 */
+	private OutputStream _out = null;
+
+	/**
+	 * the chunk being filled, the data starts after the room of the size line
+	 */
+	private byte[] _buffer = null;
+
+	/**
+	 * the end of the data in the buffer
+	 */
+	private int _count = SIZE_LINE_LENGTH;
+
+	/**
+	 * true once the last chunk is sent
+	 */
+	private boolean _closed = false;
+
+	/**
+	 * true once a write to the client failed
+	 */
+	private boolean _failed = false;
+
+	/**
+	 * Encode a body
+	 * @param out the client stream
+	 * @param flushThreshold the size of a chunk, the bytes are sent when it is reached
+	 */
+	public ChunkedOutputStream(OutputStream out, int flushThreshold) {
+		_out = out;
+		_buffer = new byte[SIZE_LINE_LENGTH + Math.max(1, flushThreshold) + 2];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (_count == _buffer.length - 2) {
+			sendChunk();
+		}
+		_buffer[_count++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		int capacity = _buffer.length - 2 - SIZE_LINE_LENGTH;
+		if (len >= capacity) {
+			// a large write is its own chunk, the pending bytes go first
+			sendChunk();
+			writeChunk(b, off, len);
+			return;
+		}
+		if (_count + len > _buffer.length - 2) {
+			sendChunk();
+		}
+		System.arraycopy(b, off, _buffer, _count, len);
+		_count += len;
+	}
+
+	/**
+	 * Send the pending bytes as a chunk, and flush the client stream
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		sendChunk();
+		flushClient();
+	}
+
+	/**
+	 * Send the pending bytes and the last chunk. The client stream is not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (_closed) {
+			return;
+		}
+		ensureOpen();
+		sendChunk();
+		_closed = true;
+		try {
+			_out.write(LAST_CHUNK);
+			_out.flush();
+		}
+		catch (IOException ex) {
+			_failed = true;
+			throw ex;
+		}
+	}
+
+	/**
+	 * determine if the client is known to be gone
+	 * @return true if a write to the client failed
+	 */
+	public boolean isFailed() {
+		return _failed;
+	}
+
+	/**
+	 * send the bytes of the buffer as a chunk, with one write
+	 */
+	private void sendChunk() throws IOException {
+		int length = _count - SIZE_LINE_LENGTH;
+		if (length == 0) {
+			return;
+		}
+
+		byte[] sizeLine = (Integer.toHexString(length) + "\r\n").getBytes();
+		int start = SIZE_LINE_LENGTH - sizeLine.length;
+		System.arraycopy(sizeLine, 0, _buffer, start, sizeLine.length);
+		_buffer[_count++] = '\r';
+		_buffer[_count++] = '\n';
+		try {
+			_out.write(_buffer, start, _count - start);
+		}
+		catch (IOException ex) {
+			_failed = true;
+			throw ex;
+		}
+		finally {
+			_count = SIZE_LINE_LENGTH;
+		}
+	}
+
+	/**
+	 * send bytes as one chunk without copying them, with a gathering write when the
+	 * client stream has a channel
+	 */
+	private void writeChunk(byte[] b, int off, int len) throws IOException {
+		ByteBuffer[] chunk = new ByteBuffer[] {
+			ByteBuffer.wrap((Integer.toHexString(len) + "\r\n").getBytes()),
+			ByteBuffer.wrap(b, off, len),
+			ByteBuffer.wrap(new byte[] { '\r', '\n' })
+		};
+		try {
+			if (_out instanceof ClientOutputStream) {
+				((ClientOutputStream)_out).write(chunk);
+			}
+			else {
+				for (ByteBuffer buffer : chunk) {
+					_out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				}
+			}
+		}
+		catch (IOException ex) {
+			_failed = true;
+			throw ex;
+		}
+	}
+
+	/**
+	 * flush the client stream
+	 */
+	private void flushClient() throws IOException {
+		try {
+			_out.flush();
+		}
+		catch (IOException ex) {
+			_failed = true;
+			throw ex;
+		}
+	}
+
+	/**
+	 * fail at once when the stream is closed or when the client is gone
+	 */
+	private void ensureOpen() throws IOException {
+		if (_failed) {
+			throw new IOException("The client closed the connection");
+		}
+		if (_closed) {
+			throw new IOException("The last chunk is sent already");
+		}
+	}
+}
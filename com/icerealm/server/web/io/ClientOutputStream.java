@@ -0,0 +1,167 @@
+package com.icerealm.server.web.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The stream given to the HTTP handlers to write a response to the client. It counts
+ * the bytes written for the current response, so the server knows if a request was
+ * answered before it reads the next one from a persistent connection. When the socket
+ * has a channel, a file is sent with FileChannel.transferTo() and never passes through
+ * the heap.
+ * @author punisher
+ *
+ */
+public class ClientOutputStream extends FilterOutputStream {
+
+	/**
+	 * the number of bytes written since the last reset
+	 */
+	private long _written = 0;
+
+	/**
+	 * the channel of the client socket, null if the socket does not have one
+	 */
+	private WritableByteChannel _channel = null;
+
+	/**
+	 * Wrap the output stream of the client socket
+	 * @param out the socket output stream
+	 */
+	public ClientOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * Wrap the output stream of a client socket that has a channel
+	 * @param out the socket output stream
+	 * @param channel the socket channel, can be null
+	 */
+	public ClientOutputStream(OutputStream out, WritableByteChannel channel) {
+		super(out);
+		_channel = channel;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		_written++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		_written += len;
+	}
+
+	/**
+	 * Send a region of a file. With a channel, the kernel copies the file to the socket,
+	 * otherwise it is copied through a small buffer. The bytes written before are flushed first.
+	 * @param file the file
+	 * @param position the offset of the region in the file
+	 * @param count the number of bytes to send
+	 * @throws IOException if the file or the socket fails
+	 */
+	public void transferFrom(FileChannel file, long position, long count) throws IOException {
+		flush();
+		long end = position + count;
+
+		if (_channel != null) {
+			while (position < end) {
+				long sent = file.transferTo(position, end - position, _channel);
+				if (sent <= 0 && position >= file.size()) {
+					throw new IOException("File shorter than expected");
+				}
+				position += sent;
+				_written += sent;
+			}
+		}
+		else {
+			ByteBuffer buffer = ByteBuffer.allocate(8192);
+			while (position < end) {
+				buffer.clear();
+				buffer.limit((int)Math.min(buffer.capacity(), end - position));
+				int read = file.read(buffer, position);
+				if (read < 0) {
+					throw new IOException("File shorter than expected");
+				}
+				write(buffer.array(), 0, read);
+				position += read;
+			}
+			flush();
+		}
+	}
+
+	/**
+	 * Write several buffers, like a header and a body. With a channel they are sent
+	 * with a single gathering write, otherwise they are copied together through a small
+	 * array. The bytes written before are flushed first.
+	 * @param buffers the buffers, from their position to their limit
+	 * @throws IOException if the socket fails
+	 */
+	public void write(ByteBuffer[] buffers) throws IOException {
+		flush();
+
+		if (_channel instanceof GatheringByteChannel) {
+			GatheringByteChannel channel = (GatheringByteChannel)_channel;
+			long remaining = 0;
+			for (ByteBuffer buffer : buffers) {
+				remaining += buffer.remaining();
+			}
+			while (remaining > 0) {
+				long sent = channel.write(buffers);
+				remaining -= sent;
+				_written += sent;
+			}
+		}
+		else {
+			// the buffers are gathered in one array, a header and a small body sent in two
+			// writes would wait for the delayed acknowledgement of the client
+			byte[] copy = new byte[8192];
+			int length = 0;
+			for (ByteBuffer buffer : buffers) {
+				while (buffer.hasRemaining()) {
+					if (length == copy.length) {
+						write(copy, 0, length);
+						length = 0;
+					}
+					int part = Math.min(copy.length - length, buffer.remaining());
+					buffer.get(copy, length, part);
+					length += part;
+				}
+			}
+			if (length > 0) {
+				write(copy, 0, length);
+			}
+			flush();
+		}
+	}
+
+	/**
+	 * determine if the files are sent by the kernel
+	 * @return true if the client socket has a channel
+	 */
+	public boolean hasChannel() {
+		return _channel != null;
+	}
+
+	/**
+	 * the number of bytes written for the current response
+	 * @return the number of bytes
+	 */
+	public long getBytesWritten() {
+		return _written;
+	}
+
+	/**
+	 * start counting for a new response
+	 */
+	public void reset() {
+		_written = 0;
+	}
+}
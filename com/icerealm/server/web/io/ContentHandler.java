@@ -1,6 +1,8 @@
 package com.icerealm.server.web.io;
 
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,6 +31,44 @@ public abstract class ContentHandler {
 	
 	public abstract byte[] writeContent(String s, RequestEntireContent req);
 	
+	/**
+	 * Write the response for a resource directly into the client stream. The default
+	 * implementation writes the array of byte of writeContent(s, req), a ContentHandler
+	 * can override it to send large resources without building the whole response in memory.
+	 * @param s a unique identifier to find a specific resource
+	 * @param req the request
+	 * @param out the client stream, it is flushed but not closed
+	 * @throws IOException if the stream fails
+	 */
+	public void writeContent(String s, RequestEntireContent req, OutputStream out) throws IOException {
+		byte[] bin = writeContent(s, req);
+		if (bin != null && bin.length > 0) {
+			out.write(bin);
+			out.flush();
+		}
+	}
+	
+	/**
+	 * let the ContentHandler read the configuration of the plugin. The default
+	 * implementation does nothing.
+	 * @param config a Map containing the configuration of the plugin
+	 */
+	public void onInit(Map<String, String> config) {
+		
+	}
+	
+	/**
+	 * Return the URL a page should use for an asset, like a script or a style sheet. A
+	 * ContentHandler that fingerprints its assets returns a URL that changes with the
+	 * content, so the browser can keep it forever. The default implementation returns
+	 * the path as it is.
+	 * @param path the logical name of the asset, like "/js/app.js"
+	 * @return the URL of the asset
+	 */
+	public String resolveAsset(String path) {
+		return path;
+	}
+
 	/**
 	 * Provide a way to set the root folder for a specified resource
 	 * @param r the root folder. It can be empty, depending on the implementation of the ContentHandler
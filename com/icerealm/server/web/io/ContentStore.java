@@ -0,0 +1,131 @@
+package com.icerealm.server.web.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides where the bodies kept by a cache live. The heap store keeps arrays, the
+ * direct and mapped stores keep the bodies outside of the heap: the garbage collector
+ * never copies nor scans them, and a gathering write sends them to the socket without
+ * the copy the JVM makes of a heap buffer. A store only allocates, the cache decides
+ * what to keep within its budget and tells the store what it has removed.
+ * @author neilson
+ *
+ */
+public abstract class ContentStore {
+
+	/**
+	 * the value of the store property for the bodies kept in arrays
+	 */
+	public static final String HEAP = "heap";
+
+	/**
+	 * the value of the store property for the bodies kept in direct buffers
+	 */
+	public static final String DIRECT = "direct";
+
+	/**
+	 * the value of the store property for the files mapped in memory
+	 */
+	public static final String MAPPED = "mapped";
+
+	/**
+	 * the number of bytes outside of the heap held by the bodies that are kept
+	 */
+	private AtomicLong _offHeap = new AtomicLong();
+
+	/**
+	 * Create a store by its name
+	 * @param name the name of the store, heap, direct or mapped
+	 * @return the store, the heap store if the name is unknown
+	 */
+	public static ContentStore newStore(String name) {
+		if (DIRECT.equalsIgnoreCase(name)) {
+			return new DirectContentStore();
+		}
+		if (MAPPED.equalsIgnoreCase(name)) {
+			return new MappedContentStore();
+		}
+		return new HeapContentStore();
+	}
+
+	/**
+	 * Return the content of a file in a buffer of this store
+	 * @param f the file
+	 * @return the buffer, positioned at the start of the content
+	 * @throws IOException if the file cannot be read
+	 */
+	public abstract ByteBuffer load(File f) throws IOException;
+
+	/**
+	 * Return a copy of some bytes in a buffer of this store, like a compressed body
+	 * @param content the bytes
+	 * @return the buffer, positioned at the start of the bytes
+	 */
+	public abstract ByteBuffer copy(byte[] content);
+
+	/**
+	 * determine if the bodies of this store are outside of the heap
+	 * @return true for the direct and mapped stores
+	 */
+	public abstract boolean isOffHeap();
+
+	/**
+	 * Tell the store that a body is not kept anymore. The buffer is not reused, a
+	 * worker can still be writing it, its memory is freed with the buffer.
+	 * @param buffer the body, can be null
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer != null && buffer.isDirect()) {
+			_offHeap.addAndGet(-buffer.capacity());
+		}
+	}
+
+	/**
+	 * the number of bytes outside of the heap held by the bodies that are kept
+	 * @return the number of bytes
+	 */
+	public long getOffHeapSize() {
+		return _offHeap.get();
+	}
+
+	/**
+	 * count a buffer allocated outside of the heap
+	 * @param buffer the buffer
+	 * @return the buffer
+	 */
+	protected ByteBuffer allocated(ByteBuffer buffer) {
+		if (buffer.isDirect()) {
+			_offHeap.addAndGet(buffer.capacity());
+		}
+		return buffer;
+	}
+
+	/**
+	 * read a file in one array of its size
+	 * @param f the file
+	 * @return the content of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	protected static byte[] readFile(File f) throws IOException {
+		FileInputStream stream = new FileInputStream(f);
+		try {
+			byte[] content = new byte[(int)stream.getChannel().size()];
+			int offset = 0, read = 0;
+			while (offset < content.length && (read = stream.read(content, offset, content.length - offset)) != -1) {
+				offset += read;
+			}
+			if (offset < content.length) {
+				content = Arrays.copyOf(content, offset);
+			}
+			return content;
+		}
+		finally {
+			stream.close();
+		}
+	}
+}
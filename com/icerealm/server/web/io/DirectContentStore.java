@@ -0,0 +1,74 @@
+package com.icerealm.server.web.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The bodies are direct buffers, the files are read into them through their channel
+ * without passing through the heap. When the JVM cannot allocate more direct memory,
+ * see -XX:MaxDirectMemorySize, the body is kept in the heap instead.
+ * @author neilson
+ *
+ */
+public class DirectContentStore extends ContentStore {
+
+	/**
+	 * the logger
+	 */
+	private static final Logger LOGGER = Logger.getLogger("Icerealm");
+
+	@Override
+	public ByteBuffer load(File f) throws IOException {
+		FileInputStream stream = new FileInputStream(f);
+		try {
+			FileChannel channel = stream.getChannel();
+			ByteBuffer buffer = allocate((int)channel.size());
+			if (buffer == null) {
+				return ByteBuffer.wrap(readFile(f));
+			}
+			while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+				// the channel fills the buffer
+			}
+			buffer.flip();
+			return allocated(buffer);
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	@Override
+	public ByteBuffer copy(byte[] content) {
+		ByteBuffer buffer = allocate(content.length);
+		if (buffer == null) {
+			return ByteBuffer.wrap(content);
+		}
+		buffer.put(content).flip();
+		return allocated(buffer);
+	}
+
+	@Override
+	public boolean isOffHeap() {
+		return true;
+	}
+
+	/**
+	 * allocate a direct buffer
+	 * @param size the capacity of the buffer
+	 * @return the buffer, null if the direct memory of the JVM is exhausted
+	 */
+	protected ByteBuffer allocate(int size) {
+		try {
+			return ByteBuffer.allocateDirect(size);
+		}
+		catch (OutOfMemoryError ex) {
+			LOGGER.log(Level.WARNING, "No direct memory left for " + size + " bytes, the body is kept in the heap");
+			return null;
+		}
+	}
+}
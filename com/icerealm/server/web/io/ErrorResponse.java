@@ -0,0 +1,125 @@
+package com.icerealm.server.web.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A plain text error response serialized once. Only the Date and the Connection fields
+ * are added when it is written, from lines prepared in advance, so answering a scanner
+ * that requests thousands of missing paths only writes the same bytes again.
+ * @author punisher
+ *
+ */
+public class ErrorResponse {
+
+	/**
+	 * the response for a request the server cannot read, like a body of unknown length
+	 */
+	public static final ErrorResponse BAD_REQUEST = new ErrorResponse("400 Bad Request",
+																	  "Error 400 Bad Request\n");
+
+	/**
+	 * the response for a directory without index file
+	 */
+	public static final ErrorResponse FORBIDDEN = new ErrorResponse("403 Forbidden",
+																	"Error 403 Forbidden\nResource is a directory, access denied\n");
+
+	/**
+	 * the response for a resource that does not exist
+	 */
+	public static final ErrorResponse NOT_FOUND = new ErrorResponse("404 File not found",
+																	"Error 404 File Not Found\n");
+
+	/**
+	 * the response for a resource that exists but cannot be delivered
+	 */
+	public static final ErrorResponse SERVER_ERROR = new ErrorResponse("500 Server error",
+																	   "Error 500 Server Error\nThe server encountered an internal error\n");
+
+	/**
+	 * the response for a method the server does not know
+	 */
+	public static final ErrorResponse NOT_IMPLEMENTED = new ErrorResponse("501 Not Implemented",
+																		  "Error 501 Not Implemented\nThe method is not supported\n");
+
+	/**
+	 * the end of the header of the persistent connections
+	 */
+	private static final byte[] KEEP_ALIVE = "Connection: keep-alive\r\n\r\n".getBytes();
+
+	/**
+	 * the end of the header of the connections that are closed
+	 */
+	private static final byte[] CLOSE = "Connection: close\r\n\r\n".getBytes();
+
+	/**
+	 * the header up to the Date field
+	 */
+	private byte[] _header = null;
+
+	/**
+	 * the body, empty for a response without body
+	 */
+	private byte[] _body = null;
+
+	/**
+	 * default constructor
+	 * @param status the status code and reason
+	 * @param message the body of the response
+	 */
+	public ErrorResponse(String status, String message) {
+		this(status, "", message);
+	}
+
+	/**
+	 * Create a response with more header fields, like the Allow field of a 405
+	 * @param status the status code and reason
+	 * @param fields the header fields, each with its line end
+	 * @param message the body of the response, empty for a response without body
+	 */
+	public ErrorResponse(String status, String fields, String message) {
+		_body = message.getBytes();
+		_header = ("HTTP/1.1 " + status + "\r\n" + fields +
+				   (_body.length > 0 ? "Content-Type: text/plain\r\n" : "") +
+				   "Content-Length: " + _body.length + "\r\n").getBytes();
+	}
+
+	/**
+	 * Return the bytes of the response, with the current Date
+	 * @param keepAlive true if the connection stays open after the response
+	 * @return the bytes, a new array
+	 */
+	public byte[] getBytes(boolean keepAlive) {
+		byte[] date = HTTPDateClock.getDateLine();
+		byte[] connection = keepAlive ? KEEP_ALIVE : CLOSE;
+		byte[] response = new byte[_header.length + date.length + connection.length + _body.length];
+		int length = 0;
+		for (byte[] part : new byte[][] { _header, date, connection, _body }) {
+			System.arraycopy(part, 0, response, length, part.length);
+			length += part.length;
+		}
+		return response;
+	}
+
+	/**
+	 * Write the response with the current Date and flush the stream
+	 * @param out the client stream
+	 * @param keepAlive true if the connection stays open after the response
+	 * @throws IOException if the stream fails
+	 */
+	public void writeTo(OutputStream out, boolean keepAlive) throws IOException {
+		if (out instanceof ClientOutputStream) {
+			((ClientOutputStream)out).write(new ByteBuffer[] {
+				ByteBuffer.wrap(_header),
+				ByteBuffer.wrap(HTTPDateClock.getDateLine()),
+				ByteBuffer.wrap(keepAlive ? KEEP_ALIVE : CLOSE),
+				ByteBuffer.wrap(_body)
+			});
+		}
+		else {
+			out.write(getBytes(keepAlive));
+			out.flush();
+		}
+	}
+}
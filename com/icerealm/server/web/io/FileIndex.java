@@ -0,0 +1,255 @@
+package com.icerealm.server.web.io;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The metadata of every file of a public folder, kept in memory. The folder is walked
+ * once, then a thread waits for the events of a WatchService and updates only the
+ * files that have changed. A request looks its file up in the index instead of asking
+ * the file system, a file that is not in the index does not exist.
+ * @author neilson
+ *
+ */
+public class FileIndex implements Runnable {
+
+	/**
+	 * the logger
+	 */
+	private static final Logger LOGGER = Logger.getLogger("Icerealm");
+
+	/**
+	 * the public folder
+	 */
+	private Path _root = null;
+
+	/**
+	 * the metadata of the files, by file
+	 */
+	private Map<File, FileInfo> _entries = new ConcurrentHashMap<File, FileInfo>();
+
+	/**
+	 * the directory of each watch key, used by the thread of the index only
+	 */
+	private Map<WatchKey, Path> _keys = new HashMap<WatchKey, Path>();
+
+	/**
+	 * the watch service of the file system of the folder
+	 */
+	private WatchService _watcher = null;
+
+	/**
+	 * the thread that receives the events
+	 */
+	private Thread _thread = null;
+
+	/**
+	 * Create the index of a folder, start() walks it
+	 * @param root the public folder
+	 * @throws IOException if the file system cannot be watched
+	 */
+	public FileIndex(File root) throws IOException {
+		_root = root.toPath();
+		_watcher = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * walk the folder and start the thread that receives the events. The directories
+	 * are registered before they are walked, a file created meanwhile is not missed.
+	 * @throws IOException if the folder cannot be walked
+	 */
+	public void start() throws IOException {
+		scan(_root);
+		_thread = new Thread(this, "Icerealm-index-" + _root.getFileName());
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * stop the thread, the index is not updated anymore
+	 */
+	public void stop() {
+		try {
+			_watcher.close();
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Cannot close the watch service of " + _root, ex);
+		}
+	}
+
+	/**
+	 * Return the metadata of a file
+	 * @param f the file, its path starts with the path of the folder
+	 * @return the metadata, null if the file does not exist
+	 */
+	public FileInfo get(File f) {
+		return _entries.get(f);
+	}
+
+	/**
+	 * the number of files and directories of the index
+	 * @return the number of entries
+	 */
+	public int size() {
+		return _entries.size();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			WatchKey key = null;
+			try {
+				key = _watcher.take();
+			}
+			catch (InterruptedException ex) {
+				break;
+			}
+			catch (ClosedWatchServiceException ex) {
+				break;
+			}
+
+			Path dir = _keys.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				try {
+					if (event.kind() == OVERFLOW || dir == null) {
+						// events were lost, the whole folder is walked again
+						rescan();
+						continue;
+					}
+
+					Path child = dir.resolve((Path)event.context());
+					if (event.kind() == ENTRY_DELETE) {
+						removeTree(child.toFile());
+					}
+					else if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+						scan(child);
+					}
+					else {
+						update(child.toFile());
+					}
+				}
+				catch (IOException ex) {
+					LOGGER.log(Level.WARNING, "Cannot update the index of " + _root, ex);
+				}
+			}
+
+			// the key is not valid anymore when its directory is deleted
+			if (!key.reset()) {
+				_keys.remove(key);
+			}
+		}
+		LOGGER.info("The index of " + _root + " is stopped");
+	}
+
+	/**
+	 * register the directories of a tree and add its files to the index
+	 * @param start the top of the tree
+	 * @throws IOException if the tree cannot be walked
+	 */
+	private void scan(Path start) throws IOException {
+		Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				_keys.put(dir.register(_watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+				put(dir.toFile(), attrs);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				put(file.toFile(), attrs);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException ex) {
+				LOGGER.log(Level.WARNING, "Cannot index " + file, ex);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * walk the whole folder again and forget the files that are gone
+	 * @throws IOException if the folder cannot be walked
+	 */
+	private void rescan() throws IOException {
+		for (WatchKey key : _keys.keySet()) {
+			key.cancel();
+		}
+		_keys.clear();
+
+		long started = System.currentTimeMillis();
+		scan(_root);
+		Iterator<FileInfo> entries = _entries.values().iterator();
+		while (entries.hasNext()) {
+			if (!entries.next().getFile().exists()) {
+				entries.remove();
+			}
+		}
+		LOGGER.info("The index of " + _root + " was rebuilt in " + (System.currentTimeMillis() - started) + " ms");
+	}
+
+	/**
+	 * read the metadata of a file again
+	 * @param f the file
+	 */
+	private void update(File f) {
+		FileInfo info = FileInfo.stat(f);
+		if (info.exists()) {
+			_entries.put(f, info);
+		}
+		else {
+			_entries.remove(f);
+		}
+	}
+
+	/**
+	 * add a file found by a walk
+	 * @param f the file
+	 * @param attrs its attributes
+	 */
+	private void put(File f, BasicFileAttributes attrs) {
+		boolean directory = attrs.isDirectory();
+		_entries.put(f, new FileInfo(f, true, directory, directory ? 0 : attrs.size(), attrs.lastModifiedTime().toMillis()));
+	}
+
+	/**
+	 * remove a file, and all the files under it if it is a directory
+	 * @param f the file
+	 */
+	private void removeTree(File f) {
+		_entries.remove(f);
+		String prefix = f.getPath() + File.separator;
+		Iterator<File> files = _entries.keySet().iterator();
+		while (files.hasNext()) {
+			if (files.next().getPath().startsWith(prefix)) {
+				files.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.icerealm.server.web.io;
+
+import java.io.File;
+
+/**
+ * The metadata of a file of the public folder: what a request needs to know before
+ * the file is read. It is taken once with stat(), or kept by a FileIndex until the
+ * file changes.
+ * @author neilson
+ *
+ */
+public class FileInfo {
+
+	/**
+	 * the file
+	 */
+	private File _file = null;
+
+	/**
+	 * true if the file exists
+	 */
+	private boolean _exists = false;
+
+	/**
+	 * true if the file is a directory
+	 */
+	private boolean _directory = false;
+
+	/**
+	 * the size of the file
+	 */
+	private long _length = 0;
+
+	/**
+	 * the last modified time of the file
+	 */
+	private long _lastModified = 0;
+
+	/**
+	 * default constructor
+	 * @param file the file
+	 * @param exists true if the file exists
+	 * @param directory true if the file is a directory
+	 * @param length the size of the file
+	 * @param lastModified the last modified time of the file, in ms
+	 */
+	public FileInfo(File file, boolean exists, boolean directory, long length, long lastModified) {
+		_file = file;
+		_exists = exists;
+		_directory = directory;
+		_length = length;
+		_lastModified = lastModified;
+	}
+
+	/**
+	 * read the metadata of a file from the file system
+	 * @param file the file
+	 * @return the metadata, a file that does not exist has a size of 0
+	 */
+	public static FileInfo stat(File file) {
+		long lastModified = file.lastModified();
+		if (lastModified == 0 && !file.exists()) {
+			return new FileInfo(file, false, false, 0, 0);
+		}
+		boolean directory = file.isDirectory();
+		return new FileInfo(file, true, directory, directory ? 0 : file.length(), lastModified);
+	}
+
+	public File getFile() {
+		return _file;
+	}
+
+	public boolean exists() {
+		return _exists;
+	}
+
+	public boolean isDirectory() {
+		return _directory;
+	}
+
+	public boolean isFile() {
+		return _exists && !_directory;
+	}
+
+	public long getLength() {
+		return _length;
+	}
+
+	public long getLastModified() {
+		return _lastModified;
+	}
+}
@@ -0,0 +1,109 @@
+package com.icerealm.server.web.io;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Gives the Date field of the responses. The field only changes once per second, so it
+ * is formatted once per second and the same bytes are shared by all the responses sent
+ * during that second.
+ * @author punisher
+ *
+ */
+public final class HTTPDateClock {
+
+	/**
+	 * the format of the dates in HTTP, like "Sun, 06 Nov 1994 08:49:37 GMT"
+	 */
+	private static final SimpleDateFormat FORMAT = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+	static {
+		FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+	}
+
+	/**
+	 * the Date field of the current second, with its line break
+	 */
+	private static volatile DateLine _current = new DateLine(System.currentTimeMillis() / 1000);
+
+	/**
+	 * utility class, no instance
+	 */
+	private HTTPDateClock() { }
+
+	/**
+	 * Return the Date field for the current second, the array must not be modified
+	 * @return the bytes of "Date: ...\r\n"
+	 */
+	public static byte[] getDateLine() {
+		long second = System.currentTimeMillis() / 1000;
+		DateLine current = _current;
+		if (current.getSecond() != second) {
+			current = new DateLine(second);
+			_current = current;
+		}
+		return current.getBytes();
+	}
+
+	/**
+	 * format a time as a HTTP date
+	 * @param time the time in ms
+	 * @return the date, like "Sun, 06 Nov 1994 08:49:37 GMT"
+	 */
+	public static String format(long time) {
+		synchronized (FORMAT) {
+			return FORMAT.format(new Date(time));
+		}
+	}
+
+	/**
+	 * parse a HTTP date
+	 * @param date the date, like "Sun, 06 Nov 1994 08:49:37 GMT"
+	 * @return the time in ms, -1 if the date is not valid
+	 */
+	public static long parse(String date) {
+		try {
+			synchronized (FORMAT) {
+				return FORMAT.parse(date.trim()).getTime();
+			}
+		}
+		catch (Exception ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * the Date field of a second
+	 */
+	private static class DateLine {
+
+		/**
+		 * the second, since the epoch
+		 */
+		private long _second = 0;
+
+		/**
+		 * the bytes of the field
+		 */
+		private byte[] _bytes = null;
+
+		/**
+		 * default constructor
+		 * @param second the second, since the epoch
+		 */
+		public DateLine(long second) {
+			_second = second;
+			_bytes = ("Date: " + format(second * 1000) + "\r\n").getBytes();
+		}
+
+		public long getSecond() {
+			return _second;
+		}
+
+		public byte[] getBytes() {
+			return _bytes;
+		}
+	}
+}
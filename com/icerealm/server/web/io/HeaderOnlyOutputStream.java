@@ -0,0 +1,126 @@
+package com.icerealm.server.web.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The stream given to the handlers for a HEAD request. The handlers write the response
+ * they would write for a GET, the header is sent and the body is dropped: a file sent
+ * with transferFrom() is not read and a cached body is not copied. The fields of the
+ * header, like the Content-Length and the ETag, are the ones of the GET.
+ * @author punisher
+ *
+ */
+public class HeaderOnlyOutputStream extends ClientOutputStream {
+
+	/**
+	 * the end of a header
+	 */
+	private static final byte[] HEADER_END = "\r\n\r\n".getBytes();
+
+	/**
+	 * the number of bytes of HEADER_END matched by the last bytes written
+	 */
+	private int _matched = 0;
+
+	/**
+	 * true once the end of the header is written
+	 */
+	private boolean _body = false;
+
+	/**
+	 * Wrap the stream of the client
+	 * @param out the client stream
+	 */
+	public HeaderOnlyOutputStream(ClientOutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (!_body) {
+			match((byte)b);
+			super.write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		int header = getHeaderLength(b, off, len);
+		if (header > 0) {
+			super.write(b, off, header);
+		}
+	}
+
+	/**
+	 * The body is not sent, the file is not read
+	 */
+	@Override
+	public void transferFrom(FileChannel file, long position, long count) throws IOException {
+		flush();
+	}
+
+	/**
+	 * Write the part of the buffers that belongs to the header, the buffers are consumed
+	 */
+	@Override
+	public void write(ByteBuffer[] buffers) throws IOException {
+		byte[] copy = null;
+		for (ByteBuffer buffer : buffers) {
+			if (buffer.hasArray()) {
+				if (!_body) {
+					write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				}
+			}
+			else {
+				// a direct buffer is copied until the end of the header only
+				while (buffer.hasRemaining() && !_body) {
+					if (copy == null) {
+						copy = new byte[512];
+					}
+					int length = Math.min(copy.length, buffer.remaining());
+					buffer.get(copy, 0, length);
+					write(copy, 0, length);
+				}
+			}
+			buffer.position(buffer.limit());
+		}
+		flush();
+	}
+
+	/**
+	 * determine if the header is sent
+	 * @return true once the end of the header is written
+	 */
+	public boolean isHeaderSent() {
+		return _body;
+	}
+
+	/**
+	 * find how many bytes belong to the header, the end of the header may be split
+	 * across several writes
+	 */
+	private int getHeaderLength(byte[] b, int off, int len) {
+		int i = 0;
+		while (i < len && !_body) {
+			match(b[off + i]);
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * follow the end of the header with a byte of the header
+	 * @param b the byte written
+	 */
+	private void match(byte b) {
+		if (b == HEADER_END[_matched]) {
+			_matched++;
+		}
+		else {
+			_matched = b == HEADER_END[0] ? 1 : 0;
+		}
+		_body = _matched == HEADER_END.length;
+	}
+}
@@ -0,0 +1,28 @@
+package com.icerealm.server.web.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The bodies are arrays of the heap, the default store
+ * @author neilson
+ *
+ */
+public class HeapContentStore extends ContentStore {
+
+	@Override
+	public ByteBuffer load(File f) throws IOException {
+		return ByteBuffer.wrap(readFile(f));
+	}
+
+	@Override
+	public ByteBuffer copy(byte[] content) {
+		return ByteBuffer.wrap(content);
+	}
+
+	@Override
+	public boolean isOffHeap() {
+		return false;
+	}
+}
@@ -0,0 +1,64 @@
+package com.icerealm.server.web.io;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes the least recently used entries once the byte budget is reached.
+ * @author neilson
+ *
+ * @param <K> the type of the keys
+ */
+public class LRUCachePolicy<K> extends CachePolicy<K> {
+
+	/**
+	 * the size of the entries, from the least to the most recently used
+	 */
+	private LinkedHashMap<K, Long> _entries = new LinkedHashMap<K, Long>(16, 0.75f, true);
+
+	/**
+	 * the number of bytes of the entries
+	 */
+	private long _size = 0;
+
+	/**
+	 * default constructor
+	 * @param budget the maximum number of bytes the cache holds
+	 */
+	public LRUCachePolicy(long budget) {
+		super(budget);
+	}
+
+	@Override
+	public void onAccess(K key) {
+		_entries.get(key);
+	}
+
+	@Override
+	public List<K> onInsert(K key, long size) {
+		onRemove(key);
+		_entries.put(key, size);
+		_size += size;
+
+		List<K> evicted = new ArrayList<K>();
+		Iterator<Map.Entry<K, Long>> eldest = _entries.entrySet().iterator();
+		while (_size > getBudget() && eldest.hasNext()) {
+			Map.Entry<K, Long> entry = eldest.next();
+			_size -= entry.getValue();
+			evicted.add(entry.getKey());
+			eldest.remove();
+		}
+		return evicted;
+	}
+
+	@Override
+	public void onRemove(K key) {
+		Long size = _entries.remove(key);
+		if (size != null) {
+			_size -= size;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.icerealm.server.web.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The files are mapped in memory, read-only. Their pages belong to the page cache of
+ * the system, outside of the heap and of the direct memory of the JVM, and the system
+ * can write them back to the disk when it needs the memory. The compressed bodies are
+ * kept in direct buffers.
+ * The files of the public folder can be rewritten or truncated while they are served,
+ * a mapping of them would change the bytes sent under the cached ETag or fail the
+ * worker that reads a page that disappeared. A file is therefore copied once in a
+ * temporary file that only this store knows, removed as soon as it is mapped, and
+ * that copy is mapped. The archive of a site is mapped directly, it is only replaced.
+ * Each mapping takes at least a page and one of the mappings a process can have, see
+ * vm.max_map_count on Linux: the small files are kept in direct buffers, and a file
+ * that cannot be mapped too.
+ * @author neilson
+ *
+ */
+public class MappedContentStore extends DirectContentStore {
+
+	/**
+	 * the logger
+	 */
+	private static final Logger LOGGER = Logger.getLogger("Icerealm");
+
+	/**
+	 * the size from which a file is mapped, a smaller one is kept in a direct buffer
+	 */
+	private static final long MIN_MAPPED_SIZE = 65536;
+
+	@Override
+	public ByteBuffer load(File f) throws IOException {
+		if (f.length() < MIN_MAPPED_SIZE) {
+			return super.load(f);
+		}
+		try {
+			return map(f);
+		}
+		catch (IOException ex) {
+			// the process may have used all its mappings, or the temporary folder is full
+			LOGGER.log(Level.WARNING, "Cannot map " + f + ", it is kept in a direct buffer: " + ex.getMessage());
+			return super.load(f);
+		}
+	}
+
+	/**
+	 * copy a file in a temporary file and map the copy
+	 * @param f the file
+	 * @return the mapping of the copy
+	 * @throws IOException if the file cannot be copied or the copy cannot be mapped
+	 */
+	private ByteBuffer map(File f) throws IOException {
+		File copy = File.createTempFile("icerealm", ".body");
+		try {
+			RandomAccessFile snapshot = new RandomAccessFile(copy, "rw");
+			try {
+				FileChannel channel = snapshot.getChannel();
+				long size = copy(f, channel);
+				// the mapping stays valid once the channel is closed and the file removed
+				return allocated(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+			}
+			finally {
+				snapshot.close();
+			}
+		}
+		finally {
+			if (!copy.delete()) {
+				// a system that cannot remove a mapped file removes it at exit
+				LOGGER.log(Level.FINE, "Cannot remove the copy of " + f + " yet: " + copy);
+				copy.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * copy a file in the channel of the snapshot
+	 * @param f the file
+	 * @param snapshot the channel of the copy
+	 * @return the number of bytes copied, the size of the file when the copy started
+	 *         or less if the file is truncated meanwhile
+	 * @throws IOException if the file cannot be read or the copy written
+	 */
+	private static long copy(File f, FileChannel snapshot) throws IOException {
+		FileInputStream stream = new FileInputStream(f);
+		try {
+			FileChannel channel = stream.getChannel();
+			long size = channel.size();
+			long position = 0;
+			while (position < size) {
+				long transferred = channel.transferTo(position, size - position, snapshot);
+				if (transferred <= 0) {
+					break;
+				}
+				position += transferred;
+			}
+			return position;
+		}
+		finally {
+			stream.close();
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package com.icerealm.server.web.io;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the files that were not found, so a request for a missing path does not
+ * ask the file system again. The paths are grouped by directory: a file cannot appear
+ * without changing the last modified time of its directory, so the time of a directory
+ * is checked at most once per check interval and a change forgets all its paths. An
+ * entry also expires after a time to live. The number of paths is bounded, the least
+ * recently used directories are forgotten first.
+ * @author neilson
+ *
+ */
+public class NegativeCache {
+
+	/**
+	 * the default time to live of an entry, in ms
+	 */
+	public static final long DEFAULT_TTL = 10000;
+
+	/**
+	 * the default maximum number of paths
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	/**
+	 * the time between two checks of a directory, in ms
+	 */
+	private static final long CHECK_INTERVAL = 1000;
+
+	/**
+	 * the missing files by directory, from the least to the most recently used,
+	 * guarded by the lock of this instance
+	 */
+	private LinkedHashMap<File, Directory> _directories = new LinkedHashMap<File, Directory>(64, 0.75f, true);
+
+	/**
+	 * the number of paths of all the directories
+	 */
+	private int _size = 0;
+
+	/**
+	 * the maximum number of paths
+	 */
+	private int _maxEntries = DEFAULT_MAX_ENTRIES;
+
+	/**
+	 * the time to live of an entry, in ms
+	 */
+	private long _ttl = DEFAULT_TTL;
+
+	/**
+	 * default constructor
+	 * @param ttl the time to live of an entry, in ms
+	 * @param maxEntries the maximum number of paths
+	 */
+	public NegativeCache(long ttl, int maxEntries) {
+		_ttl = ttl;
+		_maxEntries = maxEntries;
+	}
+
+	/**
+	 * Determine if a file is known to be missing. The directory of the file is asked
+	 * for its last modified time when it was not checked during the interval.
+	 * @param f the file
+	 * @return true if the file does not exist
+	 */
+	public boolean isMissing(File f) {
+		File parent = getParent(f);
+		long now = System.currentTimeMillis();
+		Directory dir = null;
+
+		synchronized (this) {
+			dir = _directories.get(parent);
+			if (dir == null) {
+				return false;
+			}
+			Long expires = dir.getNames().get(f.getName());
+			if (expires == null) {
+				return false;
+			}
+			if (expires < now) {
+				dir.getNames().remove(f.getName());
+				_size--;
+				return false;
+			}
+			if (now - dir.getChecked() < CHECK_INTERVAL) {
+				return true;
+			}
+			dir.setChecked(now);
+		}
+
+		// the directory is checked without the lock
+		if (parent.lastModified() == dir.getLastModified()) {
+			return true;
+		}
+		synchronized (this) {
+			if (_directories.get(parent) == dir) {
+				_directories.remove(parent);
+				_size -= dir.getNames().size();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * remember a file that was not found
+	 * @param f the file
+	 */
+	public void add(File f) {
+		File parent = getParent(f);
+		long lastModified = parent.lastModified();
+		long now = System.currentTimeMillis();
+
+		synchronized (this) {
+			Directory dir = _directories.get(parent);
+			if (dir == null || dir.getLastModified() != lastModified) {
+				if (dir != null) {
+					_size -= dir.getNames().size();
+				}
+				dir = new Directory(lastModified, now);
+				_directories.put(parent, dir);
+			}
+			if (dir.getNames().put(f.getName(), now + _ttl) == null) {
+				_size++;
+			}
+
+			Iterator<Directory> eldest = _directories.values().iterator();
+			while (_size > _maxEntries && eldest.hasNext()) {
+				Directory evicted = eldest.next();
+				if (evicted != dir) {
+					_size -= evicted.getNames().size();
+					eldest.remove();
+				}
+			}
+			if (_size > _maxEntries) {
+				// a single directory holds all the paths
+				dir.getNames().remove(f.getName());
+				_size--;
+			}
+		}
+	}
+
+	/**
+	 * forget every path
+	 */
+	public synchronized void clear() {
+		_directories.clear();
+		_size = 0;
+	}
+
+	/**
+	 * the number of paths known to be missing
+	 * @return the number of paths
+	 */
+	public synchronized int size() {
+		return _size;
+	}
+
+	/**
+	 * the directory of a file, a relative file without directory is in the current one
+	 */
+	private File getParent(File f) {
+		File parent = f.getParentFile();
+		return parent != null ? parent : new File(".");
+	}
+
+	/**
+	 * the missing files of a directory
+	 */
+	private static class Directory {
+
+		/**
+		 * the last modified time of the directory when its first path was added
+		 */
+		private long _lastModified = 0;
+
+		/**
+		 * the last time the directory was checked
+		 */
+		private long _checked = 0;
+
+		/**
+		 * the expiration time of the missing files, by name
+		 */
+		private Map<String, Long> _names = new HashMap<String, Long>();
+
+		/**
+		 * default constructor
+		 * @param lastModified the last modified time of the directory, 0 if it does not exist
+		 * @param checked the time it was read
+		 */
+		public Directory(long lastModified, long checked) {
+			_lastModified = lastModified;
+			_checked = checked;
+		}
+
+		public long getLastModified() {
+			return _lastModified;
+		}
+
+		public long getChecked() {
+			return _checked;
+		}
+
+		public void setChecked(long checked) {
+			_checked = checked;
+		}
+
+		public Map<String, Long> getNames() {
+			return _names;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.icerealm.server.web.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A public folder packed in one file by the SiteArchiveBuilder. The file starts with
+ * the bodies, then comes the index, sorted by path, and a trailer with the position of
+ * the index:
+ * <pre>
+ * int magic, int version
+ * the bodies and their compressed variants
+ * int count, then per entry:
+ *   UTF path, UTF content type, boolean + UTF cache control, UTF etag, long last modified,
+ *   long offset, int length, int variants, then per variant: UTF encoding, long offset, int length
+ * long index offset, int magic
+ * </pre>
+ * The archive is mapped in memory, read-only. Every entry is a response ready to be sent
+ * whose body is a slice of the mapping, a request costs a binary search and no system
+ * call. An archive is replaced by renaming a new file over it, never rewritten in place.
+ * @author neilson
+ *
+ */
+public class SiteArchive {
+
+	/**
+	 * the first and the last bytes of an archive, "ICEA"
+	 */
+	public static final int MAGIC = 0x49434541;
+
+	/**
+	 * the version of the format
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * the size of the trailer
+	 */
+	static final int TRAILER_SIZE = 12;
+
+	/**
+	 * the archive file
+	 */
+	private File _file = null;
+
+	/**
+	 * the last modified time of the archive when it was opened
+	 */
+	private long _lastModified = 0;
+
+	/**
+	 * the paths of the entries, sorted
+	 */
+	private String[] _paths = null;
+
+	/**
+	 * the responses of the entries, in the order of the paths
+	 */
+	private CachedResponse[] _responses = null;
+
+	/**
+	 * open an archive with open()
+	 */
+	private SiteArchive(File file, long lastModified, String[] paths, CachedResponse[] responses) {
+		_file = file;
+		_lastModified = lastModified;
+		_paths = paths;
+		_responses = responses;
+	}
+
+	/**
+	 * Map an archive and read its index
+	 * @param file the archive
+	 * @return the archive
+	 * @throws IOException if the file cannot be read or is not a complete archive
+	 */
+	public static SiteArchive open(File file) throws IOException {
+		long lastModified = file.lastModified();
+		FileInputStream stream = new FileInputStream(file);
+		MappedByteBuffer map = null;
+		try {
+			FileChannel channel = stream.getChannel();
+			if (channel.size() < 8 + TRAILER_SIZE || channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Not a site archive, or larger than 2 GB: " + file);
+			}
+			// the mapping stays valid once the channel is closed
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally {
+			stream.close();
+		}
+
+		int size = map.capacity();
+		long indexOffset = map.getLong(size - TRAILER_SIZE);
+		if (map.getInt(0) != MAGIC || map.getInt(size - 4) != MAGIC || map.getInt(4) != VERSION ||
+			indexOffset < 8 || indexOffset > size - TRAILER_SIZE) {
+			throw new IOException("Not a complete site archive of version " + VERSION + ": " + file);
+		}
+
+		// the index is read from a copy, the bodies stay in the mapping
+		byte[] index = new byte[size - TRAILER_SIZE - (int)indexOffset];
+		ByteBuffer view = map.duplicate();
+		view.position((int)indexOffset);
+		view.get(index);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+
+		int count = in.readInt();
+		String[] paths = new String[count];
+		CachedResponse[] responses = new CachedResponse[count];
+		for (int i = 0; i < count; i++) {
+			paths[i] = in.readUTF();
+			String contentType = in.readUTF();
+			String cacheControl = in.readBoolean() ? in.readUTF() : null;
+			String etag = in.readUTF();
+			long modified = in.readLong();
+			ByteBuffer body = slice(map, in.readLong(), in.readInt());
+			int variants = in.readInt();
+
+			responses[i] = new CachedResponse(body.remaining(), contentType, modified, etag, cacheControl, body, null, variants > 0);
+			for (int v = 0; v < variants; v++) {
+				String encoding = in.readUTF();
+				ByteBuffer encoded = slice(map, in.readLong(), in.readInt());
+				String variantTag = etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+				responses[i].putVariant(encoding, new CachedResponse(encoded.remaining(), contentType, modified, variantTag,
+																	  cacheControl, encoded, encoding, true));
+			}
+			if (i > 0 && paths[i - 1].compareTo(paths[i]) >= 0) {
+				throw new IOException("The index of the site archive is not sorted: " + file);
+			}
+		}
+		return new SiteArchive(file, lastModified, paths, responses);
+	}
+
+	/**
+	 * Find the response of a path
+	 * @param path the path, like "/css/site.css"
+	 * @return the response, null if the archive does not contain the path
+	 */
+	public CachedResponse get(String path) {
+		int index = Arrays.binarySearch(_paths, path);
+		return index >= 0 ? _responses[index] : null;
+	}
+
+	/**
+	 * the number of entries
+	 * @return the number of files of the archive
+	 */
+	public int size() {
+		return _paths.length;
+	}
+
+	/**
+	 * the archive file
+	 * @return the file
+	 */
+	public File getFile() {
+		return _file;
+	}
+
+	/**
+	 * the last modified time of the archive when it was opened
+	 * @return the time in ms
+	 */
+	public long getLastModified() {
+		return _lastModified;
+	}
+
+	/**
+	 * a part of the mapping
+	 */
+	private static ByteBuffer slice(MappedByteBuffer map, long offset, int length) throws IOException {
+		if (offset < 8 || length < 0 || offset + length > map.capacity()) {
+			throw new IOException("An entry of the site archive is out of bounds");
+		}
+		ByteBuffer view = map.duplicate();
+		view.position((int)offset);
+		view.limit((int)offset + length);
+		return view.slice();
+	}
+}
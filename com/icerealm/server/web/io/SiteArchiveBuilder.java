@@ -0,0 +1,251 @@
+package com.icerealm.server.web.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Packs a public folder in a SiteArchive, at build time:
+ * <pre>
+ * java com.icerealm.server.web.io.SiteArchiveBuilder html html.archive [key=value ...]
+ * </pre>
+ * The optional properties are the ones of the plugin, like compresstypes, compressminsize
+ * or cachecontrol, so the archive is built with the rules the server would apply. The
+ * compressed variants are made once here, a ".gz" file next to a file is used as its gzip
+ * variant. The archive is written next to the destination and renamed over it, a server
+ * that maps the old one is never disturbed.
+ * @author neilson
+ *
+ */
+public class SiteArchiveBuilder {
+
+	/**
+	 * the content codings of the variants
+	 */
+	private static final String[] ENCODINGS = new String[] { CachedContentDeliver.GZIP, CachedContentDeliver.DEFLATE };
+
+	/**
+	 * the rules of the plugin: MIME types, Cache-Control and compression
+	 */
+	private WebContentDeliver _rules = null;
+
+	/**
+	 * the number of bytes written in the archive being built. DataOutputStream.size()
+	 * stops counting at 2 GB, the offsets are counted here
+	 */
+	private long _offset = 0;
+
+	/**
+	 * default constructor
+	 * @param config the properties of the plugin that decide how the files are sent
+	 */
+	public SiteArchiveBuilder(Map<String, String> config) {
+		_rules = new WebContentDeliver();
+		_rules.readRules(config);
+	}
+
+	/**
+	 * build the archive of a folder
+	 * @param args the folder, the archive and the optional properties
+	 * @throws IOException if the folder cannot be read or the archive cannot be written
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("usage: SiteArchiveBuilder <public folder> <archive> [key=value ...]");
+			System.exit(1);
+		}
+
+		Map<String, String> config = new HashMap<String, String>();
+		for (int i = 2; i < args.length; i++) {
+			int equal = args[i].indexOf('=');
+			if (equal > 0) {
+				config.put(args[i].substring(0, equal), args[i].substring(equal + 1));
+			}
+		}
+
+		long started = System.currentTimeMillis();
+		int count = new SiteArchiveBuilder(config).build(new File(args[0]), new File(args[1]));
+		System.out.println(count + " files packed in " + args[1] + " in " + (System.currentTimeMillis() - started) + " ms");
+	}
+
+	/**
+	 * Pack the files of a folder
+	 * @param folder the public folder
+	 * @param archive the archive to write, it is replaced once the new one is complete
+	 * @return the number of files packed
+	 * @throws IOException if the folder cannot be read or the archive cannot be written
+	 */
+	public int build(File folder, File archive) throws IOException {
+		// sorted like the binary search of the SiteArchive expects
+		TreeMap<String, File> files = new TreeMap<String, File>();
+		listFiles(folder, "", files);
+
+		File temp = new File(archive.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		List<Entry> entries = new ArrayList<Entry>();
+		try {
+			out.writeInt(SiteArchive.MAGIC);
+			out.writeInt(SiteArchive.VERSION);
+			_offset = 8;
+
+			for (Map.Entry<String, File> file : files.entrySet()) {
+				entries.add(pack(file.getKey(), file.getValue(), out));
+			}
+
+			// the index and the trailer must fit in the archive too
+			ByteArrayOutputStream index = new ByteArrayOutputStream();
+			DataOutputStream indexOut = new DataOutputStream(index);
+			indexOut.writeInt(entries.size());
+			for (Entry entry : entries) {
+				entry.writeTo(indexOut);
+			}
+			indexOut.writeLong(_offset);
+			indexOut.writeInt(SiteArchive.MAGIC);
+			write(index.toByteArray(), "the index", out);
+		}
+		finally {
+			out.close();
+		}
+
+		Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return entries.size();
+	}
+
+	/**
+	 * write the body and the variants of a file
+	 * @param path the path of the file in the archive
+	 * @param f the file
+	 * @param out the archive
+	 * @return the entry of the index
+	 * @throws IOException if the file cannot be read or the archive cannot be written
+	 */
+	private Entry pack(String path, File f, DataOutputStream out) throws IOException {
+		byte[] content = ContentStore.readFile(f);
+		Entry entry = new Entry();
+		entry._path = path;
+		entry._contentType = _rules.getMimeType(f);
+		entry._cacheControl = _rules.getCacheControl(f);
+		entry._lastModified = f.lastModified();
+		try {
+			entry._etag = CachedContentDeliver.getETag(ByteBuffer.wrap(content));
+		}
+		catch (Exception ex) {
+			throw new IOException("Cannot compute the entity tag of " + f, ex);
+		}
+
+		entry._offset = _offset;
+		entry._length = content.length;
+		write(content, path, out);
+
+		if (_rules.isCompressible(f, content.length)) {
+			File sibling = new File(f.getPath() + ".gz");
+			for (String encoding : ENCODINGS) {
+				byte[] encoded = null;
+				if (encoding.equals(CachedContentDeliver.GZIP) && sibling.isFile() && sibling.lastModified() >= f.lastModified()) {
+					encoded = ContentStore.readFile(sibling);
+				}
+				else {
+					encoded = CachedContentDeliver.compress(ByteBuffer.wrap(content), encoding);
+				}
+
+				if (encoded.length < content.length) {
+					entry._encodings.add(encoding);
+					entry._variantOffsets.add(_offset);
+					entry._variantLengths.add(encoded.length);
+					write(encoded, path + " (" + encoding + ")", out);
+				}
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * write bytes in the archive, the SiteArchive maps it in one buffer so it cannot
+	 * go past 2 GB
+	 * @param bytes the bytes
+	 * @param what what the bytes are, for the error message
+	 * @param out the archive
+	 * @throws IOException if the archive would be too large or cannot be written
+	 */
+	private void write(byte[] bytes, String what, DataOutputStream out) throws IOException {
+		if (_offset + bytes.length > Integer.MAX_VALUE) {
+			throw new IOException("The site archive would be larger than 2 GB with " + what);
+		}
+		out.write(bytes);
+		_offset += bytes.length;
+	}
+
+	/**
+	 * add the files of a directory and of its subdirectories, except the ".gz" files
+	 * @param dir the directory
+	 * @param prefix the path of the directory in the archive
+	 * @param files the files by path
+	 */
+	private void listFiles(File dir, String prefix, Map<String, File> files) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			String path = prefix + "/" + child.getName();
+			if (child.isDirectory()) {
+				listFiles(child, path, files);
+			}
+			else if (!child.getName().endsWith(".gz")) {
+				files.put(path, child);
+			}
+		}
+	}
+
+	/**
+	 * an entry of the index
+	 */
+	private static class Entry {
+
+		private String _path = null;
+		private String _contentType = null;
+		private String _cacheControl = null;
+		private String _etag = null;
+		private long _lastModified = 0;
+		private long _offset = 0;
+		private int _length = 0;
+		private List<String> _encodings = new ArrayList<String>();
+		private List<Long> _variantOffsets = new ArrayList<Long>();
+		private List<Integer> _variantLengths = new ArrayList<Integer>();
+
+		/**
+		 * write the entry in the index
+		 * @param out the archive
+		 * @throws IOException if the archive cannot be written
+		 */
+		public void writeTo(DataOutputStream out) throws IOException {
+			out.writeUTF(_path);
+			out.writeUTF(_contentType);
+			out.writeBoolean(_cacheControl != null);
+			if (_cacheControl != null) {
+				out.writeUTF(_cacheControl);
+			}
+			out.writeUTF(_etag);
+			out.writeLong(_lastModified);
+			out.writeLong(_offset);
+			out.writeInt(_length);
+			out.writeInt(_encodings.size());
+			for (int i = 0; i < _encodings.size(); i++) {
+				out.writeUTF(_encodings.get(i));
+				out.writeLong(_variantOffsets.get(i));
+				out.writeInt(_variantLengths.get(i));
+			}
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package com.icerealm.server.web.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.icerealm.server.request.RequestEntireContent;
+
+/**
+ * A response whose body is written while it is produced, like a large report or a CSV
+ * export. The status and the fields are set first, body() sends the header and returns
+ * the stream of the body:
+ * <pre>
+ * StreamingResponse response = new StreamingResponse(request, out).contentType("text/csv");
+ * OutputStream body = response.body();
+ * for (Row row : rows) {
+ *     body.write(row.toCSV());
+ * }
+ * body.close();
+ * </pre>
+ * When the length is not known, the body is sent with "Transfer-Encoding: chunked",
+ * to a HTTP/1.0 client it is sent until the connection is closed. The bytes are sent
+ * each time the flush threshold is reached, the first bytes leave before the rest is
+ * produced. A write fails once the client is gone, and every write after it.
+ * The body must be closed, closing it does not close the connection. Until it is closed
+ * the connection is not kept alive: a handler that returns without closing it leaves the
+ * client waiting for the end of the body. The response to
+ * a HEAD has the header of the GET and no body, see hasBody() to skip rendering it.
+ * @author punisher
+ *
+ */
+public class StreamingResponse {
+
+	/**
+	 * the default number of bytes sent at once
+	 */
+	public static final int DEFAULT_FLUSH_THRESHOLD = 8192;
+
+	/**
+	 * the end of the header
+	 */
+	private static final byte[] CRLF = "\r\n".getBytes();
+
+	/**
+	 * the request
+	 */
+	private RequestEntireContent _request = null;
+
+	/**
+	 * the client stream
+	 */
+	private OutputStream _out = null;
+
+	/**
+	 * the status line, without its line end
+	 */
+	private String _statusLine = "HTTP/1.1 200 OK";
+
+	/**
+	 * the MIME type of the body
+	 */
+	private String _contentType = "text/plain";
+
+	/**
+	 * the other fields, each with its line end
+	 */
+	private StringBuilder _fields = new StringBuilder();
+
+	/**
+	 * the size of the body, -1 when it is not known
+	 */
+	private long _length = -1;
+
+	/**
+	 * the number of bytes sent at once
+	 */
+	private int _flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+
+	/**
+	 * the stream of the body, null until the header is sent
+	 */
+	private OutputStream _body = null;
+
+	/**
+	 * Start a response
+	 * @param request the request
+	 * @param out the client stream the handler received
+	 */
+	public StreamingResponse(RequestEntireContent request, OutputStream out) {
+		_request = request;
+		_out = out;
+	}
+
+	/**
+	 * Set the status, 200 OK by default
+	 * @param code the status code
+	 * @param reason the reason phrase, like "Not Found"
+	 * @return this response
+	 */
+	public StreamingResponse status(int code, String reason) {
+		ensureNotCommitted();
+		_statusLine = "HTTP/1.1 " + code + " " + reason;
+		return this;
+	}
+
+	/**
+	 * Add a field to the header. Content-Length, Transfer-Encoding and Connection are
+	 * set by the response.
+	 * @param name the name of the field
+	 * @param value the value
+	 * @return this response
+	 */
+	public StreamingResponse header(String name, String value) {
+		ensureNotCommitted();
+		_fields.append(name).append(": ").append(value).append("\r\n");
+		return this;
+	}
+
+	/**
+	 * Set the MIME type of the body, text/plain by default
+	 * @param contentType the type, like "text/csv; charset=UTF-8"
+	 * @return this response
+	 */
+	public StreamingResponse contentType(String contentType) {
+		ensureNotCommitted();
+		_contentType = contentType;
+		return this;
+	}
+
+	/**
+	 * Set the size of the body when it is known, it is sent with a Content-Length
+	 * @param length the number of bytes of the body
+	 * @return this response
+	 */
+	public StreamingResponse contentLength(long length) {
+		ensureNotCommitted();
+		_length = length;
+		return this;
+	}
+
+	/**
+	 * Set the number of bytes collected before they are sent
+	 * @param flushThreshold the number of bytes, DEFAULT_FLUSH_THRESHOLD by default
+	 * @return this response
+	 */
+	public StreamingResponse flushThreshold(int flushThreshold) {
+		ensureNotCommitted();
+		_flushThreshold = flushThreshold;
+		return this;
+	}
+
+	/**
+	 * determine if the header is sent
+	 * @return true once body() was called
+	 */
+	public boolean isCommitted() {
+		return _body != null;
+	}
+
+	/**
+	 * determine if the body is sent
+	 * @return false for a HEAD request, the bytes written to the body are dropped
+	 */
+	public boolean hasBody() {
+		return !(_out instanceof HeaderOnlyOutputStream);
+	}
+
+	/**
+	 * Send the header and return the stream of the body. The next calls return the same stream.
+	 * @return the stream of the body, it must be closed
+	 * @throws IOException if the client is gone
+	 */
+	public OutputStream body() throws IOException {
+		if (_body != null) {
+			return _body;
+		}
+
+		boolean keepAlive = _request != null && _request.isKeepAlive();
+		boolean chunked = false;
+		StringBuilder header = new StringBuilder(_statusLine).append("\r\n");
+		header.append("Content-Type: ").append(_contentType).append("\r\n");
+		if (_length >= 0) {
+			header.append("Content-Length: ").append(_length).append("\r\n");
+		}
+		else if (_request == null || _request.getHTTPVersion().equals("HTTP/1.1")) {
+			header.append("Transfer-Encoding: chunked\r\n");
+			chunked = true;
+		}
+		else {
+			// a HTTP/1.0 client reads the body until the connection is closed
+			keepAlive = false;
+		}
+		if (!keepAlive) {
+			header.append("Connection: close\r\n");
+			if (_request != null) {
+				_request.setKeepAlive(false);
+			}
+		}
+		header.append(_fields);
+
+		// the header is sent with one write
+		byte[] fields = header.toString().getBytes();
+		byte[] date = HTTPDateClock.getDateLine();
+		byte[] bytes = new byte[fields.length + date.length + CRLF.length];
+		System.arraycopy(fields, 0, bytes, 0, fields.length);
+		System.arraycopy(date, 0, bytes, fields.length, date.length);
+		System.arraycopy(CRLF, 0, bytes, fields.length + date.length, CRLF.length);
+		_out.write(bytes);
+
+		OutputStream sink = null;
+		if (!hasBody()) {
+			sink = new IdentityOutputStream(_out, -1, 1, null);
+		}
+		else if (chunked) {
+			sink = new ChunkedOutputStream(_out, _flushThreshold);
+		}
+		else {
+			sink = new IdentityOutputStream(_out, _length, _flushThreshold, _request);
+		}
+
+		// the connection is kept alive only once the body is complete
+		if (_request != null) {
+			_request.setKeepAlive(false);
+		}
+		_body = new CompletingOutputStream(sink, _request, keepAlive);
+		return _body;
+	}
+
+	/**
+	 * fail when a field is set after the header is sent
+	 */
+	private void ensureNotCommitted() {
+		if (_body != null) {
+			throw new IllegalStateException("The header of the response is sent already");
+		}
+	}
+
+	/**
+	 * The body given to the handler. It gives the connection its keep-alive back when the
+	 * body is closed without error, the body is then complete on the client side.
+	 */
+	private static class CompletingOutputStream extends OutputStream {
+
+		private OutputStream _sink = null;
+		private RequestEntireContent _request = null;
+		private boolean _keepAlive = false;
+		private boolean _closed = false;
+
+		/**
+		 * @param sink the stream of the body
+		 * @param request the request, can be null
+		 * @param keepAlive the keep-alive of the connection once the body is complete
+		 */
+		public CompletingOutputStream(OutputStream sink, RequestEntireContent request, boolean keepAlive) {
+			_sink = sink;
+			_request = request;
+			_keepAlive = keepAlive;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			_sink.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			_sink.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			_sink.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (_closed) {
+				return;
+			}
+			// a body that failed to close stays incomplete, even if it is closed again
+			_closed = true;
+			_sink.close();
+			if (_request != null) {
+				_request.setKeepAlive(_keepAlive);
+			}
+		}
+	}
+
+	/**
+	 * A body sent as it is, with its Content-Length or until the connection is closed.
+	 * The bytes are sent by blocks of the flush threshold, more bytes than the
+	 * Content-Length are refused.
+	 */
+	private static class IdentityOutputStream extends OutputStream {
+
+		private OutputStream _out = null;
+		private RequestEntireContent _request = null;
+		private boolean _bounded = false;
+		private long _remaining = 0;
+		private byte[] _buffer = null;
+		private int _count = 0;
+		private boolean _closed = false;
+		private boolean _failed = false;
+
+		/**
+		 * @param out the client stream
+		 * @param length the Content-Length, -1 to send until the connection is closed
+		 * @param flushThreshold the number of bytes sent at once
+		 * @param request the request, its connection is closed when the body is short
+		 */
+		public IdentityOutputStream(OutputStream out, long length, int flushThreshold, RequestEntireContent request) {
+			_out = out;
+			_request = request;
+			_bounded = length >= 0;
+			_remaining = _bounded ? length : Long.MAX_VALUE;
+			_buffer = new byte[Math.max(1, flushThreshold)];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ensureOpen();
+			if (len > _remaining) {
+				throw new IOException("The body is larger than its Content-Length");
+			}
+			_remaining -= len;
+
+			if (_count + len > _buffer.length) {
+				send();
+			}
+			if (len >= _buffer.length) {
+				try {
+					_out.write(b, off, len);
+				}
+				catch (IOException ex) {
+					_failed = true;
+					throw ex;
+				}
+				return;
+			}
+			System.arraycopy(b, off, _buffer, _count, len);
+			_count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			ensureOpen();
+			send();
+			try {
+				_out.flush();
+			}
+			catch (IOException ex) {
+				_failed = true;
+				throw ex;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (_closed) {
+				return;
+			}
+			flush();
+			_closed = true;
+			if (_bounded && _remaining > 0) {
+				// the client waits for the missing bytes, the connection cannot serve another request
+				if (_request != null) {
+					_request.setKeepAlive(false);
+				}
+				throw new IOException("The body is shorter than its Content-Length by " + _remaining + " bytes");
+			}
+		}
+
+		private void send() throws IOException {
+			if (_count == 0) {
+				return;
+			}
+			try {
+				_out.write(_buffer, 0, _count);
+			}
+			catch (IOException ex) {
+				_failed = true;
+				throw ex;
+			}
+			finally {
+				_count = 0;
+			}
+		}
+
+		private void ensureOpen() throws IOException {
+			if (_failed) {
+				throw new IOException("The client closed the connection");
+			}
+			if (_closed) {
+				throw new IOException("The body is closed already");
+			}
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package com.icerealm.server.web.io;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The W-TinyLFU policy. A new entry goes into a small LRU window. When it leaves the
+ * window, it enters the main space only if it was requested more often than the entry
+ * it would replace, the frequencies are estimated by a count-min sketch. The main space
+ * is a segmented LRU: an entry hit a second time moves from probation to protected.
+ * A burst of files requested once, like a crawler, does not push out the popular ones.
+ * @author neilson
+ *
+ * @param <K> the type of the keys
+ */
+public class TinyLFUCachePolicy<K> extends CachePolicy<K> {
+
+	/**
+	 * the part of the budget used by the window, in percent
+	 */
+	private static final int WINDOW_PERCENT = 1;
+
+	/**
+	 * the part of the main space used by the protected segment, in percent
+	 */
+	private static final int PROTECTED_PERCENT = 80;
+
+	/**
+	 * the entries of the window, of the probation and of the protected segments,
+	 * from the least to the most recently used
+	 */
+	private LinkedHashMap<K, Long> _window = new LinkedHashMap<K, Long>();
+	private LinkedHashMap<K, Long> _probation = new LinkedHashMap<K, Long>();
+	private LinkedHashMap<K, Long> _protected = new LinkedHashMap<K, Long>();
+
+	/**
+	 * the number of bytes of each segment
+	 */
+	private long _windowSize = 0, _probationSize = 0, _protectedSize = 0;
+
+	/**
+	 * the budget of each space
+	 */
+	private long _windowBudget = 0, _mainBudget = 0, _protectedBudget = 0;
+
+	/**
+	 * the estimated frequency of the keys
+	 */
+	private FrequencySketch _sketch = null;
+
+	/**
+	 * default constructor
+	 * @param budget the maximum number of bytes the cache holds
+	 */
+	public TinyLFUCachePolicy(long budget) {
+		super(budget);
+		_windowBudget = Math.max(1, budget * WINDOW_PERCENT / 100);
+		_mainBudget = budget - _windowBudget;
+		_protectedBudget = _mainBudget * PROTECTED_PERCENT / 100;
+
+		// about one counter per 8 KB of budget, the files of a web site are small
+		long counters = Math.min(1 << 20, Math.max(1024, budget / 8192));
+		_sketch = new FrequencySketch(Integer.highestOneBit((int)counters));
+	}
+
+	@Override
+	public void onAccess(K key) {
+		_sketch.increment(key.hashCode());
+
+		Long size = null;
+		if ((size = _window.remove(key)) != null) {
+			_window.put(key, size);
+		}
+		else if ((size = _probation.remove(key)) != null) {
+			// a second hit, the entry is protected
+			_probationSize -= size;
+			_protected.put(key, size);
+			_protectedSize += size;
+			demoteProtected();
+		}
+		else if ((size = _protected.remove(key)) != null) {
+			_protected.put(key, size);
+		}
+	}
+
+	@Override
+	public List<K> onInsert(K key, long size) {
+		onRemove(key);
+		_sketch.increment(key.hashCode());
+		_window.put(key, size);
+		_windowSize += size;
+
+		// the entries leaving the window compete for the main space
+		List<K> evicted = new ArrayList<K>();
+		while (_windowSize > _windowBudget && !_window.isEmpty()) {
+			K candidate = _window.keySet().iterator().next();
+			long candidateSize = _window.remove(candidate);
+			_windowSize -= candidateSize;
+			admit(candidate, candidateSize, evicted);
+		}
+		return evicted;
+	}
+
+	@Override
+	public void onRemove(K key) {
+		Long size = null;
+		if ((size = _window.remove(key)) != null) {
+			_windowSize -= size;
+		}
+		else if ((size = _probation.remove(key)) != null) {
+			_probationSize -= size;
+		}
+		else if ((size = _protected.remove(key)) != null) {
+			_protectedSize -= size;
+		}
+	}
+
+	/**
+	 * let an entry that leaves the window into the main space, if it is requested more
+	 * often than the entries it replaces
+	 * @param candidate the key of the entry
+	 * @param size the size of the entry
+	 * @param evicted the keys to remove from the cache
+	 */
+	private void admit(K candidate, long size, List<K> evicted) {
+		if (size > _mainBudget) {
+			evicted.add(candidate);
+			return;
+		}
+
+		int frequency = _sketch.frequency(candidate.hashCode());
+		while (_probationSize + _protectedSize + size > _mainBudget) {
+			boolean fromProbation = !_probation.isEmpty();
+			LinkedHashMap<K, Long> segment = fromProbation ? _probation : _protected;
+			K victim = segment.keySet().iterator().next();
+
+			if (frequency <= _sketch.frequency(victim.hashCode())) {
+				evicted.add(candidate);
+				return;
+			}
+
+			long victimSize = segment.remove(victim);
+			if (fromProbation) {
+				_probationSize -= victimSize;
+			}
+			else {
+				_protectedSize -= victimSize;
+			}
+			evicted.add(victim);
+		}
+
+		_probation.put(candidate, size);
+		_probationSize += size;
+	}
+
+	/**
+	 * move the least recently used protected entries back to probation when the
+	 * protected segment is full
+	 */
+	private void demoteProtected() {
+		while (_protectedSize > _protectedBudget && !_protected.isEmpty()) {
+			K key = _protected.keySet().iterator().next();
+			long size = _protected.remove(key);
+			_protectedSize -= size;
+			_probation.put(key, size);
+			_probationSize += size;
+		}
+	}
+
+	/**
+	 * A count-min sketch with 4 rows of counters that saturate at 15. The counters are
+	 * halved after a number of increments, so the old popularity fades.
+	 */
+	private static class FrequencySketch {
+
+		/**
+		 * the maximum value of a counter
+		 */
+		private static final int MAX_COUNT = 15;
+
+		/**
+		 * the seeds of the hash of each row
+		 */
+		private static final int[] SEEDS = new int[] { 0x97cb3127, 0xb3c4d5e7, 0x5bd1e995, 0x7feb352d };
+
+		/**
+		 * the counters, one array per row
+		 */
+		private int[][] _table = null;
+
+		/**
+		 * the number of increments before the counters are halved
+		 */
+		private int _sampleSize = 0;
+
+		/**
+		 * the number of increments since the last halving
+		 */
+		private int _additions = 0;
+
+		/**
+		 * default constructor
+		 * @param width the number of counters of a row, a power of two
+		 */
+		public FrequencySketch(int width) {
+			_table = new int[SEEDS.length][width];
+			_sampleSize = width * 10;
+		}
+
+		/**
+		 * count one more occurrence of a key
+		 * @param hash the hash of the key
+		 */
+		public void increment(int hash) {
+			boolean added = false;
+			for (int row = 0; row < SEEDS.length; row++) {
+				int index = indexOf(hash, row);
+				if (_table[row][index] < MAX_COUNT) {
+					_table[row][index]++;
+					added = true;
+				}
+			}
+			if (added && ++_additions >= _sampleSize) {
+				reset();
+			}
+		}
+
+		/**
+		 * estimate the number of occurrences of a key
+		 * @param hash the hash of the key
+		 * @return the smallest counter of the key
+		 */
+		public int frequency(int hash) {
+			int frequency = MAX_COUNT;
+			for (int row = 0; row < SEEDS.length; row++) {
+				frequency = Math.min(frequency, _table[row][indexOf(hash, row)]);
+			}
+			return frequency;
+		}
+
+		/**
+		 * the counter of a key in a row
+		 */
+		private int indexOf(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+			h ^= h >>> 16;
+			return h & (_table[row].length - 1);
+		}
+
+		/**
+		 * halve every counter
+		 */
+		private void reset() {
+			for (int[] row : _table) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] >>= 1;
+				}
+			}
+			_additions = 0;
+		}
+	}
+}
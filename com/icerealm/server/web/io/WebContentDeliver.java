@@ -1,17 +1,27 @@
 package com.icerealm.server.web.io;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.FilenameFilter;
-import java.sql.Timestamp;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
 
+import com.icerealm.server.WebContainer;
+import com.icerealm.server.request.HTTPHeaders;
 import com.icerealm.server.request.RequestEntireContent;
+import com.icerealm.server.stats.CacheStatistic;
+import com.icerealm.server.stats.StatisticRegistry;
 
 /**
  * This class delivers content that is requested by a remote client. It is optimized for 
@@ -27,6 +37,32 @@ public class WebContentDeliver extends ContentHandler {
 	 */
 	private static final Logger LOGGER = Logger.getLogger("Icerealm");
 	
+	/**
+	 * the default size from which a file is sent by the kernel instead of the cache
+	 */
+	private static final long DEFAULT_TRANSFER_THRESHOLD = 65536;
+	
+	/**
+	 * the size from which a file is sent by the kernel instead of the cache, in bytes
+	 */
+	private long _transferThreshold = DEFAULT_TRANSFER_THRESHOLD;
+	
+	/**
+	 * the default size from which a file is compressed
+	 */
+	private static final long DEFAULT_COMPRESS_MIN_SIZE = 1024;
+	
+	/**
+	 * the size from which a file is compressed, in bytes. The smaller files do not gain
+	 * more than the size of the gzip header.
+	 */
+	private long _compressMinSize = DEFAULT_COMPRESS_MIN_SIZE;
+	
+	/**
+	 * the MIME types that are compressed, the images and the sounds are compressed already
+	 */
+	private Set<String> _compressibleTypes = null;
+	
 	/**
 	 * represents the default index filename for each directory
 	 */
@@ -37,11 +73,32 @@ public class WebContentDeliver extends ContentHandler {
 	 */
 	private Map<String, String> _extensionContentType = null;
 	
+	/**
+	 * represent the Cache-Control that is sent with specific files
+	 */
+	private Map<String, String> _extensionCacheControl = null;
+	
 	/**
 	 * represents the cache handler
 	 */
 	private CachedContentDeliver _cachedHandler = null;
 	
+	/**
+	 * the metadata of the public folder kept by a WatchService, null when the
+	 * file system is asked on every request
+	 */
+	private FileIndex _index = null;
+	
+	/**
+	 * the files that were not found, null when the index answers or when it is disabled
+	 */
+	private NegativeCache _missingFiles = null;
+	
+	/**
+	 * the fingerprinted URLs written by the build of the site, null when there is no manifest
+	 */
+	private AssetManifest _assets = null;
+	
 	/**
 	 * default constructor, it initialize the MIME type table
 	 */
@@ -63,127 +120,724 @@ public class WebContentDeliver extends ContentHandler {
 		_extensionContentType.put("dart", "application/dart");
 		_extensionContentType.put("ogg", "application/ogg");
 		_extensionContentType.put("wav", "audio/x-wav");
+		
+		// defining the extensionCacheControl, the pages are checked on every visit
+		// and the assets are kept for a while
+		_extensionCacheControl = new HashMap<String, String>();
+		_extensionCacheControl.put("html", "no-cache");
+		_extensionCacheControl.put("htm", "no-cache");
+		_extensionCacheControl.put("css", "public, max-age=3600");
+		_extensionCacheControl.put("js", "public, max-age=3600");
+		_extensionCacheControl.put("dart", "public, max-age=3600");
+		_extensionCacheControl.put("ico", "public, max-age=86400");
+		_extensionCacheControl.put("jpeg", "public, max-age=86400");
+		_extensionCacheControl.put("jpg", "public, max-age=86400");
+		_extensionCacheControl.put("png", "public, max-age=86400");
+		_extensionCacheControl.put("gif", "public, max-age=86400");
+		_extensionCacheControl.put("ogg", "public, max-age=86400");
+		_extensionCacheControl.put("wav", "public, max-age=86400");
+		
+		_compressibleTypes = new HashSet<String>();
+		_compressibleTypes.add("text/html");
+		_compressibleTypes.add("text/css");
+		_compressibleTypes.add("text/javascript");
+		_compressibleTypes.add("text/plain");
+		_compressibleTypes.add("application/dart");
+		
+		_missingFiles = new NegativeCache(NegativeCache.DEFAULT_TTL, NegativeCache.DEFAULT_MAX_ENTRIES);
 	}
 
 	@Override
 	public byte[] writeContent(String s) {
+		return writeContent(s, null);
+	}
+	
+	/**
+	 * Write the response for a resource. A file larger than the transfer threshold is
+	 * not cached, its header is written and the file is sent with FileChannel.transferTo(),
+	 * so the kernel copies it to the socket. The conditional and Range requests are
+	 * answered here, a compressible file is sent with the encoding the client prefers.
+	 */
+	@Override
+	public void writeContent(String s, RequestEntireContent req, OutputStream out) throws IOException {
+		boolean keepAlive = req != null && req.isKeepAlive();
+		String path = s.startsWith("/") ? s : "/" + s;
+		boolean immutable = _assets != null && _assets.isFingerprinted(path);
+		FileInfo file = getFileInfo(new File(getRootFolder() + s));
+		if (file.isDirectory()) {
+			file = getIndexFile(file);
+			if (file == null) {
+				ErrorResponse.FORBIDDEN.writeTo(out, keepAlive);
+				return;
+			}
+		}
+		else if (!file.exists()) {
+			file = getFingerprintedFile(path);
+			if (file == null) {
+				ErrorResponse.NOT_FOUND.writeTo(out, keepAlive);
+				return;
+			}
+			immutable = true;
+		}
+		
+		ClientOutputStream client = out instanceof ClientOutputStream ? (ClientOutputStream)out : new ClientOutputStream(out);
+		if (file.getLength() >= _transferThreshold) {
+			sendFile(file, req, client, immutable ? AssetManifest.IMMUTABLE : getCacheControl(file.getFile()));
+			return;
+		}
+		
+		// a cache hit writes the stored response as it is
+		CachedResponse response = getResponse(file, req);
+		if (response == null) {
+			super.writeContent(s, req, out);
+		}
+		else {
+			writeResponse(immutable ? response.getImmutable() : response, req, client);
+		}
+	}
+	
+	/**
+	 * Write a response whose body is in memory, as a 304 Not Modified, a 206 Partial
+	 * Content, a 416 or a 200 depending on the request
+	 * @param response the response
+	 * @param req the request, can be null
+	 * @param out the client stream
+	 * @throws IOException if the socket fails
+	 */
+	static void writeResponse(CachedResponse response, RequestEntireContent req, ClientOutputStream out) throws IOException {
+		boolean keepAlive = req != null && req.isKeepAlive();
+		if (isNotModified(response, req)) {
+			response.writeNotModifiedTo(out, keepAlive);
+			return;
+		}
+		
+		List<ByteRange> ranges = getRanges(response, req);
+		if (ranges == null) {
+			response.writeTo(out, keepAlive);
+		}
+		else if (ranges.isEmpty()) {
+			response.writeRangeNotSatisfiableTo(out, keepAlive);
+		}
+		else {
+			response.writeRangesTo(out, keepAlive, ranges, null);
+		}
+	}
+	
+	/**
+	 * Return the bytes of a response whose body is in memory, or of its 304 Not Modified
+	 * @param response the response
+	 * @param req the request, can be null
+	 * @return the bytes of the response
+	 */
+	static byte[] toByteArray(CachedResponse response, RequestEntireContent req) {
+		boolean keepAlive = req != null && req.isKeepAlive();
+		if (isNotModified(response, req)) {
+			return response.notModifiedToByteArray(keepAlive);
+		}
+		return response.toByteArray(keepAlive);
+	}
+	
+	@Override
+	public void onInit(Map<String, String> config) {
+		try {
+			if (config.containsKey("transferthreshold")) {
+				_transferThreshold = Long.parseLong(config.get("transferthreshold"));
+			}
+		}
+		catch (NumberFormatException ex) {
+			LOGGER.log(Level.WARNING, "Cannot parse the transfer threshold", ex);
+		}
+		
+		readRules(config);
+		
+		// the cache budget of this plugin, the bodies of a direct or mapped store
+		// are outside of the heap and have their own budget
+		long budget = CachedContentDeliver.DEFAULT_BUDGET;
+		long entryMax = CachedContentDeliver.DEFAULT_ENTRY_MAX;
+		ContentStore store = ContentStore.newStore(config.get("store"));
+		try {
+			if (config.containsKey("cachesize")) {
+				budget = Long.parseLong(config.get("cachesize"));
+			}
+			if (store.isOffHeap() && config.containsKey("offheapsize")) {
+				budget = Long.parseLong(config.get("offheapsize"));
+			}
+			if (config.containsKey("cacheentrymax")) {
+				entryMax = Long.parseLong(config.get("cacheentrymax"));
+			}
+		}
+		catch (NumberFormatException ex) {
+			LOGGER.log(Level.WARNING, "Cannot parse the cache configuration", ex);
+		}
+		
+		// the missing files are remembered for a while, 0 disables it
+		try {
+			long ttl = NegativeCache.DEFAULT_TTL;
+			int maxEntries = NegativeCache.DEFAULT_MAX_ENTRIES;
+			if (config.containsKey("negativettl")) {
+				ttl = Long.parseLong(config.get("negativettl"));
+			}
+			if (config.containsKey("negativesize")) {
+				maxEntries = Integer.parseInt(config.get("negativesize"));
+			}
+			_missingFiles = ttl > 0 && maxEntries > 0 ? new NegativeCache(ttl, maxEntries) : null;
+		}
+		catch (NumberFormatException ex) {
+			LOGGER.log(Level.WARNING, "Cannot parse the negative cache configuration", ex);
+		}
+		
+		// the files are looked up in memory, the WatchService reports their changes
+		if ("true".equalsIgnoreCase(config.get("watch"))) {
+			if (getRootFolder().length() == 0) {
+				LOGGER.log(Level.WARNING, "Cannot watch a plugin without public folder");
+			}
+			else {
+				try {
+					long started = System.currentTimeMillis();
+					FileIndex index = new FileIndex(new File(getRootFolder()));
+					index.start();
+					_index = index;
+					// a file that is not in the index is missing, there is nothing to remember
+					_missingFiles = null;
+					LOGGER.info("Index of " + index.size() + " files of " + getRootFolder() + " built in " + 
+								(System.currentTimeMillis() - started) + " ms");
+				}
+				catch (IOException ex) {
+					LOGGER.log(Level.WARNING, "Cannot watch " + getRootFolder() + ", the files are checked on every request", ex);
+				}
+			}
+		}
+		
+		String name = config.get(WebContainer.getDefaultAppName()) + ".cache";
+		CacheStatistic statistic = new CacheStatistic(name);
+		StatisticRegistry.register(name, statistic);
+		_cachedHandler = new CachedContentDeliver(CachePolicy.<File>newPolicy(config.get("cachepolicy"), budget), entryMax, statistic, store);
+		LOGGER.info("Cache of " + budget + " bytes with the " + 
+					(config.containsKey("cachepolicy") ? config.get("cachepolicy") : CachePolicy.LRU) + " policy in the " +
+					(config.containsKey("store") ? config.get("store") : ContentStore.HEAP) + " store");
+		
+		// the cache of the previous run is restored, and saved when the server stops
+		if (config.containsKey("cachesnapshot")) {
+			final File snapshot = new File(config.get("cachesnapshot"));
+			final CachedContentDeliver cache = _cachedHandler;
+			restoreSnapshot(snapshot);
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						cache.saveSnapshot(snapshot);
+					}
+					catch (IOException ex) {
+						LOGGER.log(Level.WARNING, "Cannot save the cache snapshot " + snapshot, ex);
+					}
+				}
+			}, "Icerealm-snapshot"));
+		}
+		
+		// the fingerprinted URLs of the assets the build of the site renamed
+		if (config.containsKey("assetmanifest")) {
+			File manifest = new File(config.get("assetmanifest"));
+			try {
+				_assets = AssetManifest.read(manifest);
+				LOGGER.info("Asset manifest " + manifest + " of " + _assets.size() + " assets loaded");
+			}
+			catch (IOException ex) {
+				LOGGER.log(Level.WARNING, "Cannot read the asset manifest " + manifest + ", the fingerprints are computed", ex);
+			}
+		}
+		
+		// the cache is filled before the listener accepts the first client
+		if (config.containsKey("warmupmanifest")) {
+			warmUp(readManifest(new File(config.get("warmupmanifest"))));
+		}
+		else if ("true".equalsIgnoreCase(config.get("warmup"))) {
+			List<File> files = new ArrayList<File>();
+			listFiles(new File(getRootFolder()), files);
+			warmUp(files);
+		}
+	}
+	
+	/**
+	 * read the rules that decide how a file is sent: its compression and its Cache-Control.
+	 * They are shared with the SiteArchiveBuilder, an archive is built with the rules of
+	 * the plugin that serves it.
+	 * @param config the configuration of the plugin
+	 */
+	void readRules(Map<String, String> config) {
+		try {
+			if (config.containsKey("compressminsize")) {
+				_compressMinSize = Long.parseLong(config.get("compressminsize"));
+			}
+		}
+		catch (NumberFormatException ex) {
+			LOGGER.log(Level.WARNING, "Cannot parse the compression minimum size", ex);
+		}
+		
+		// the compressed MIME types, like "text/html,text/css", empty to compress nothing
+		if (config.containsKey("compresstypes")) {
+			_compressibleTypes.clear();
+			for (String type : config.get("compresstypes").split(",")) {
+				if (type.trim().length() > 0) {
+					_compressibleTypes.add(type.trim().toLowerCase());
+				}
+			}
+		}
+		
+		// the Cache-Control by extension, like "css,js=public, max-age=86400;html=no-cache"
+		if (config.containsKey("cachecontrol")) {
+			for (String policy : config.get("cachecontrol").split(";")) {
+				int equal = policy.indexOf('=');
+				if (equal > 0) {
+					String value = policy.substring(equal + 1).trim();
+					for (String extension : policy.substring(0, equal).split(",")) {
+						_extensionCacheControl.put(extension.trim().toLowerCase(), value);
+					}
+				}
+				else if (policy.trim().length() > 0) {
+					LOGGER.log(Level.WARNING, "Cannot parse the Cache-Control policy: " + policy);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Build the complete response for a resource. Every response has a Content-Length
+	 * so the connection can be reused when it is persistent.
+	 * @param s the requested resource
+	 * @param req the request, can be null
+	 * @return an array of byte representing the response
+	 */
+	@Override
+	public byte[] writeContent(String s, RequestEntireContent req) {
 		
+		boolean keepAlive = req != null && req.isKeepAlive();
 		byte[] fileContent = new byte[0];
 		
 		try {
-			String ressourcePath = getRootFolder() + s;
-			File file = new File(ressourcePath);
+			FileInfo file = getFileInfo(new File(getRootFolder() + s));
 			
 			if (file.isDirectory()) {
 
-				if (findIndexFile(file)) {
-					fileContent = getFileContent(new File(ressourcePath + System.getProperty("file.separator") + _defaultIndexFilename));
+				FileInfo index = getIndexFile(file);
+				if (index != null) {
+					fileContent = getFileContent(index, req, false);
 				}
 				else {
-					fileContent = getFordiddenRessourceContent(s);
+					fileContent = ErrorResponse.FORBIDDEN.getBytes(keepAlive);
 				}
 			}
 			else if (!file.exists()) {
-				fileContent = getFileNotFoundContent(s);
+				FileInfo fingerprinted = getFingerprintedFile(s.startsWith("/") ? s : "/" + s);
+				if (fingerprinted != null) {
+					fileContent = getFileContent(fingerprinted, req, true);
+				}
+				else {
+					fileContent = ErrorResponse.NOT_FOUND.getBytes(keepAlive);
+				}
 			}
 			else {
-				fileContent = getFileContent(file);
+				fileContent = getFileContent(file, req, _assets != null && _assets.isFingerprinted(s.startsWith("/") ? s : "/" + s));
 			}
 		}
 		catch (Exception ex) {
 			LOGGER.log(Level.WARNING, "Error while delivering content for: " + s, ex);
-			try {
-				fileContent = getErrorServerContent(s);
-			}
-			catch (Exception e) {
-				LOGGER.log(Level.SEVERE, "IO problem with the buffer: " + e.getMessage(), e);
-			}
+			fileContent = ErrorResponse.SERVER_ERROR.getBytes(keepAlive);
 		}
 
 		return fileContent;
 	}
 	
-
+	
+	/**
+	 * Return the fingerprinted URL of an asset. The URL of the asset manifest is used when
+	 * it lists the asset, otherwise the fingerprint comes from the entity tag of the cached
+	 * content, like "/js/app.3f2a9c1d.js", and the file does not have to be renamed. A file
+	 * that is not cached, or that is missing, keeps its path: it is never sent as immutable.
+	 * @param path the logical name of the asset, like "/js/app.js"
+	 * @return the URL of the asset
+	 */
 	@Override
-	public byte[] writeContent(String s, RequestEntireContent req) {
-		return writeContent(s);
+	public String resolveAsset(String path) {
+		if (_assets != null) {
+			String url = _assets.get(path);
+			if (url != null) {
+				return url;
+			}
+		}
+		
+		String fingerprint = getFingerprint(getFileInfo(new File(getRootFolder() + path)));
+		return fingerprint != null ? AssetManifest.fingerprint(path, fingerprint) : path;
+	}
+	
+	/**
+	 * return the fingerprint of the current content of a file, the start of its entity tag
+	 * @param info the file
+	 * @return the fingerprint, null if the file is missing or too large to be cached
+	 */
+	private String getFingerprint(FileInfo info) {
+		if (!info.isFile() || info.getLength() >= _transferThreshold || info.getLength() > _cachedHandler.getEntryMax()) {
+			return null;
+		}
+		
+		File f = info.getFile();
+		CachedResponse response = _cachedHandler.getResponse(f, info.getLastModified(), getMimeType(f), getCacheControl(f), 
+															 isCompressible(f, info.getLength()));
+		String etag = response != null ? response.getETag() : null;
+		if (etag == null || etag.length() < AssetManifest.FINGERPRINT_LENGTH + 2) {
+			return null;
+		}
+		return etag.substring(1, AssetManifest.FINGERPRINT_LENGTH + 1);
+	}
+	
+	/**
+	 * find the file of a URL fingerprinted by resolveAsset(). The fingerprint must be the
+	 * one of the current content, an old URL is not found rather than sent as immutable
+	 * with a content it never had.
+	 * @param path the requested resource, like "/js/app.3f2a9c1d.js"
+	 * @return the file, like "/js/app.js", null if the URL is not a current fingerprint
+	 */
+	private FileInfo getFingerprintedFile(String path) {
+		String[] fingerprinted = AssetManifest.parseFingerprint(path);
+		if (fingerprinted == null) {
+			return null;
+		}
+		
+		FileInfo info = getFileInfo(new File(getRootFolder() + fingerprinted[0]));
+		return fingerprinted[1].equals(getFingerprint(info)) ? info : null;
+	}
+	
+	/**
+	 * add the entries of a snapshot to the cache. An entry whose MIME type, Cache-Control
+	 * or compression does not match the current configuration is read again later.
+	 * @param snapshot the snapshot file
+	 */
+	private void restoreSnapshot(File snapshot) {
+		if (!snapshot.isFile()) {
+			return;
+		}
+		
+		try {
+			long started = System.currentTimeMillis();
+			int restored = 0;
+			Map<File, CachedResponse> entries = _cachedHandler.readSnapshot(snapshot);
+			for (Map.Entry<File, CachedResponse> entry : entries.entrySet()) {
+				File f = entry.getKey();
+				CachedResponse response = entry.getValue();
+				String cacheControl = getCacheControl(f);
+				
+				if (response.getContentType().equals(getMimeType(f)) && 
+					(cacheControl == null ? response.getCacheControl() == null : cacheControl.equals(response.getCacheControl())) &&
+					response.isVary() == isCompressible(f, response.getBodyLength())) {
+					_cachedHandler.restore(f, response);
+					restored++;
+				}
+			}
+			LOGGER.info("Restored " + restored + " entries of the cache snapshot " + snapshot + " in " + 
+						(System.currentTimeMillis() - started) + " ms");
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Cannot read the cache snapshot " + snapshot, ex);
+		}
+	}
+	
+	/**
+	 * Load files in the cache, with their gzip variant, until the budget is used. The
+	 * files sent with transferTo() are skipped, they are never cached.
+	 * @param files the files, a directory is replaced by its index file
+	 */
+	private void warmUp(List<File> files) {
+		long started = System.currentTimeMillis();
+		int loaded = 0;
+		for (File f : files) {
+			FileInfo info = getFileInfo(f);
+			if (info.isDirectory()) {
+				info = getIndexFile(info);
+			}
+			if (info == null || !info.isFile() || info.getLength() >= _transferThreshold || 
+				info.getLength() > _cachedHandler.getEntryMax() ||
+				_cachedHandler.getStatistic().getBytes() + info.getLength() > _cachedHandler.getBudget()) {
+				continue;
+			}
+			
+			CachedResponse response = getResponse(info, null);
+			if (response != null) {
+				if (response.isVary()) {
+					_cachedHandler.getVariant(info.getFile(), response, CachedContentDeliver.GZIP);
+				}
+				loaded++;
+			}
+		}
+		LOGGER.info("Warm-up of " + loaded + " files, " + _cachedHandler.getStatistic().getBytes() + " bytes cached in " + 
+					(System.currentTimeMillis() - started) + " ms");
+	}
+	
+	/**
+	 * read the resources of a warm-up manifest, one per line like "/css/site.css".
+	 * The empty lines and the lines starting with '#' are skipped.
+	 * @param manifest the manifest file
+	 * @return the files of the resources
+	 */
+	private List<File> readManifest(File manifest) {
+		List<File> files = new ArrayList<File>();
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(manifest));
+			try {
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.length() > 0 && !line.startsWith("#")) {
+						files.add(new File(getRootFolder() + line));
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Cannot read the warm-up manifest " + manifest, ex);
+		}
+		return files;
+	}
+	
+	/**
+	 * add the files of a directory and of its subdirectories to a list, except the
+	 * pre-compressed files
+	 * @param dir the directory
+	 * @param files the list
+	 */
+	private void listFiles(File dir, List<File> files) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory()) {
+				listFiles(child, files);
+			}
+			else if (!child.getName().endsWith(".gz")) {
+				// a ".gz" file is sent as the gzip variant of its file
+				files.add(child);
+			}
+		}
+	}
+	
+	/**
+	 * find the index file of a directory
+	 * @param dir the directory
+	 * @return the index file, null if the directory has none
+	 */
+	private FileInfo getIndexFile(FileInfo dir) {
+		if (_index == null && !findIndexFile(dir.getFile())) {
+			return null;
+		}
+		FileInfo index = getFileInfo(new File(dir.getFile(), _defaultIndexFilename));
+		return index.isFile() ? index : null;
+	}
+	
+	/**
+	 * return the metadata of a file, from the index when the public folder is watched.
+	 * Otherwise the file system is asked, unless the file is known to be missing.
+	 * @param f the file
+	 * @return the metadata
+	 */
+	private FileInfo getFileInfo(File f) {
+		if (_index != null) {
+			FileInfo info = _index.get(f);
+			return info != null ? info : new FileInfo(f, false, false, 0, 0);
+		}
+		
+		if (_missingFiles != null && _missingFiles.isMissing(f)) {
+			return new FileInfo(f, false, false, 0, 0);
+		}
+		FileInfo info = FileInfo.stat(f);
+		if (!info.exists() && _missingFiles != null) {
+			_missingFiles.add(f);
+		}
+		return info;
+	}
+	
+	/**
+	 * Send a file with its header, the file does not pass through the heap. Its
+	 * entity tag comes from its size and last modified time, the content is not read.
+	 * A large file is not compressed on the fly, the ".gz" file next to it is sent
+	 * instead when the client accepts gzip and it is not older.
+	 * @param info the file
+	 * @param req the request
+	 * @param out the client stream
+	 * @param cacheControl the Cache-Control of the file, null if there is none
+	 * @throws IOException if the file or the socket fails
+	 */
+	private void sendFile(FileInfo info, RequestEntireContent req, ClientOutputStream out, String cacheControl) throws IOException {
+		boolean keepAlive = req != null && req.isKeepAlive();
+		File f = info.getFile();
+		boolean compressible = isCompressible(f, info.getLength());
+		String encoding = null;
+		File source = f;
+		
+		if (compressible && CachedContentDeliver.GZIP.equals(getEncoding(req))) {
+			FileInfo sibling = getFileInfo(new File(f.getPath() + ".gz"));
+			if (sibling.isFile() && sibling.getLastModified() >= info.getLastModified()) {
+				encoding = CachedContentDeliver.GZIP;
+				source = sibling.getFile();
+			}
+		}
+		
+		FileInputStream stream = new FileInputStream(source);
+		try {
+			FileChannel channel = stream.getChannel();
+			long length = channel.size();
+			long lastModified = info.getLastModified();
+			String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + 
+						  (encoding != null ? "-" + encoding : "") + "\"";
+			CachedResponse response = new CachedResponse(length, getMimeType(f), lastModified, etag, cacheControl, 
+														 null, encoding, compressible);
+			
+			List<ByteRange> ranges = getRanges(response, req);
+			if (isNotModified(response, req)) {
+				response.writeNotModifiedTo(out, keepAlive);
+			}
+			else if (ranges == null) {
+				response.writeHeaderTo(out, keepAlive);
+				out.transferFrom(channel, 0, length);
+			}
+			else if (ranges.isEmpty()) {
+				response.writeRangeNotSatisfiableTo(out, keepAlive);
+			}
+			else {
+				// only the requested bytes are read from the file
+				response.writeRangesTo(out, keepAlive, ranges, channel);
+			}
+		}
+		finally {
+			stream.close();
+		}
 	}
 	
 	/**
 	 * Return the bytes that represent the file that is requested
 	 * @param f the file
-	 * @return a array of byte representing the file
+	 * @param req the request, can be null
+	 * @param immutable true if the file is requested with a fingerprinted URL
+	 * @return a array of byte representing the file, or a 304 Not Modified
 	 * @throws Exception in case there is a problem with the buffer
 	 */
-	private byte[] getFileContent(File f) throws Exception {
+	private byte[] getFileContent(FileInfo f, RequestEntireContent req, boolean immutable) throws Exception {
 		
-		// writing the http header to the client
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		buffer.write("HTTP/1.1 200 OK\n".getBytes());
-		buffer.write((getCurrentTime() + "\n").getBytes());
-		buffer.write((getContentLentgh(f) + "\n").getBytes());
-		buffer.write((getContentType(f) + "\n").getBytes());			
-		buffer.write((getLastModified(f) + "\n").getBytes());				
-		buffer.write("\n".getBytes());
-
-		// using the cached content handler
-		byte[] fileContent = _cachedHandler.getFileContent(f);
-		buffer.write(fileContent);
-		buffer.flush();
-		buffer.close();
-		return buffer.toByteArray();
-	}
-	
-	/**
-	 * return an array of byte representing a file not found http error
-	 * @param ressource the requested ressource that could not be found
-	 * @return an array of byte representing the content to be sent to the client
-	 * @throws Exception in case there is IO error with the buffer
-	 */
-	private byte[] getFileNotFoundContent(String ressource) throws Exception {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		buffer.write("HTTP/1.1 404 File not found\n".getBytes());
-		buffer.write("Content-Type: text/plain\n".getBytes());
-		buffer.write("\n".getBytes());
-		buffer.write("Error 404 File Not Found\n".getBytes());
-		buffer.write(("Ressource not available: " + ressource).getBytes());		
-		buffer.flush();
-		return buffer.toByteArray();
-	}
-	
-	/**
-	 * return an array of byte representing a fordidden access error
-	 * @param ressource the fordidden requested ressource
-	 * @return an array of byte representing the message return to the client
-	 * @throws Exception in case of IO error with the buffer
-	 */
-	private byte[] getFordiddenRessourceContent(String ressource) throws Exception {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		buffer.write("HTTP/1.1 403 Forbidden\n".getBytes());
-		buffer.write("Content-Type: text/plain\n".getBytes());
-		buffer.write("\n".getBytes());
-		buffer.write("Error 403 Forbidden\n".getBytes());
-		buffer.write("Resource is a directory, access denied".getBytes());
-		buffer.flush();
-		return buffer.toByteArray();
-	}
-	
-	/**
-	 * return an array of byte representing an internal server error 
-	 * @param s the ressource that was requested
-	 * @return an array of byte
-	 * @throws Exception in case there is a problem with the buffer IO
-	 */
-	private byte[] getErrorServerContent(String s) throws Exception {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		buffer.write("HTTP/1.1 500 Server error\n".getBytes());
-		buffer.write("Content-Type: text/plain\n".getBytes());
-		buffer.write("\n".getBytes());
-		buffer.write(("Ressource is available: " + s + " but server encoutered an internal error").getBytes());
-		buffer.flush();
-		return buffer.toByteArray();
+		// using the cached content handler, the header is already serialized
+		CachedResponse response = getResponse(f, req);
+		if (response == null) {
+			throw new IOException("Cannot read " + f.getFile());
+		}
+		return toByteArray(immutable ? response.getImmutable() : response, req);
 	}
-
+	
+	/**
+	 * return the cached response of a file, in the encoding the client prefers
+	 * @param info the file
+	 * @param req the request, can be null
+	 * @return the response, null if the file cannot be read
+	 */
+	private CachedResponse getResponse(FileInfo info, RequestEntireContent req) {
+		File f = info.getFile();
+		boolean compressible = isCompressible(f, info.getLength());
+		CachedResponse response = _cachedHandler.getResponse(f, info.getLastModified(), getMimeType(f), getCacheControl(f), compressible);
+		
+		String encoding = compressible ? getEncoding(req) : null;
+		if (response != null && encoding != null) {
+			return _cachedHandler.getVariant(f, response, encoding);
+		}
+		return response;
+	}
+	
+	/**
+	 * determine if a file is sent compressed to the clients that accept it
+	 * @param f the file
+	 * @param length the size of the file
+	 * @return true if its MIME type is compressible and it is large enough
+	 */
+	boolean isCompressible(File f, long length) {
+		return length >= _compressMinSize && _compressibleTypes.contains(getMimeType(f));
+	}
+	
+	/**
+	 * choose the content coding from the Accept-Encoding of a request, gzip is preferred
+	 * to deflate when their quality is the same
+	 * @param req the request, can be null
+	 * @return CachedContentDeliver.GZIP or DEFLATE, null for the identity
+	 */
+	static String getEncoding(RequestEntireContent req) {
+		String accept = req != null ? req.getHeader(HTTPHeaders.ACCEPT_ENCODING) : null;
+		if (accept == null) {
+			return null;
+		}
+		
+		float gzip = -1, deflate = -1, any = -1;
+		for (String coding : accept.split(",")) {
+			String name = coding.trim();
+			float quality = 1;
+			int semicolon = name.indexOf(';');
+			if (semicolon >= 0) {
+				String parameter = name.substring(semicolon + 1).trim();
+				name = name.substring(0, semicolon).trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Float.parseFloat(parameter.substring(2));
+					}
+					catch (NumberFormatException ex) {
+						quality = 0;
+					}
+				}
+			}
+			
+			if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+				gzip = quality;
+			}
+			else if (name.equalsIgnoreCase("deflate")) {
+				deflate = quality;
+			}
+			else if (name.equals("*")) {
+				any = quality;
+			}
+		}
+		
+		// a coding that is not listed takes the quality of "*"
+		gzip = gzip < 0 ? any : gzip;
+		deflate = deflate < 0 ? any : deflate;
+		if (gzip > 0 && gzip >= deflate) {
+			return CachedContentDeliver.GZIP;
+		}
+		if (deflate > 0) {
+			return CachedContentDeliver.DEFLATE;
+		}
+		return null;
+	}
+	
+	/**
+	 * return the ranges of the file the client asked for
+	 * @param response the response
+	 * @param req the request, can be null
+	 * @return the satisfiable ranges, an empty list if none is satisfiable, null to send the whole file
+	 */
+	static List<ByteRange> getRanges(CachedResponse response, RequestEntireContent req) {
+		String range = req != null ? req.getHeader(HTTPHeaders.RANGE) : null;
+		if (range == null || !response.isRangeValid(req.getHeader(HTTPHeaders.IF_RANGE))) {
+			return null;
+		}
+		return ByteRange.parse(range, response.getBodyLength());
+	}
+	
+	/**
+	 * determine if the client already has the version of the response
+	 * @param response the response
+	 * @param req the request, can be null
+	 * @return true if a 304 Not Modified can be sent
+	 */
+	static boolean isNotModified(CachedResponse response, RequestEntireContent req) {
+		return req != null && response.isNotModified(req.getHeader(HTTPHeaders.IF_NONE_MATCH), 
+													 req.getHeader(HTTPHeaders.IF_MODIFIED_SINCE));
+	}
+	
 	/**
 	 * check a directory to find the default index filename
 	 * @param f the directory to search
@@ -200,45 +854,25 @@ public class WebContentDeliver extends ContentHandler {
 	}
 
 	/**
-	 * return the content length of a file
+	 * return the MIME type associated with the extension of a file
 	 * @param f the file
-	 * @return the lenght, in bytes
+	 * @return the MIME type, text/plain if the extension is unknown
 	 */
-	private String getContentLentgh(File f) {
-		return ("Content-Length: " + f.length());
-	}
-	
-	/**
-	 * return the current time
-	 * @return the current timestamp
-	 */
-	@SuppressWarnings("deprecation")
-	private String getCurrentTime() {
-		return ("Date: " + new Timestamp(System.currentTimeMillis()).toGMTString());
-	}
-	
-	/**
-	 * return a valid MIME type for the file
-	 * @param f the file
-	 * @return a string representing a MIME type
-	 */
-	private String getContentType(File f) {
+	String getMimeType(File f) {
 		String extension = f.getName().substring(f.getName().lastIndexOf(".") + 1);
 		if (_extensionContentType.containsKey(extension)) {
-			return "Content-Type: " + _extensionContentType.get(extension);
+			return _extensionContentType.get(extension);
 		}
-		return "Content-Type: text/plain";
+		return "text/plain";
 	}
-	
+
 	/**
-	 * get the timestamp of the last time the file was modified
+	 * return the Cache-Control associated with the extension of a file
 	 * @param f the file
-	 * @return the string representing a timestamp
+	 * @return the Cache-Control, null if the extension has none
 	 */
-	@SuppressWarnings("deprecation")
-	private String getLastModified(File f) {
-		Timestamp tm = new Timestamp(f.lastModified());
-		return "Last-Modified: " + tm.toGMTString();
+	String getCacheControl(File f) {
+		String extension = f.getName().substring(f.getName().lastIndexOf(".") + 1);
+		return _extensionCacheControl.get(extension.toLowerCase());
 	}
-
 }